@@ -0,0 +1,71 @@
+package com.kai.paymentdemo.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.kai.paymentdemo.entity.OrderInfo;
+import com.kai.paymentdemo.entity.RefundInfo;
+import com.kai.paymentdemo.mapper.OrderInfoMapper;
+import com.kai.paymentdemo.mapper.RefundInfoMapper;
+import com.kai.paymentdemo.util.OrderNoUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * 当前节点的配置
+ * 部署多个实例时 每个实例配置不同的节点号，保证生成的订单号、退款单号不重复
+ */
+@Configuration
+@Slf4j
+public class PaymentNodeConfig {
+
+    //节点号：0-99
+    @Value("${payment.node-id:0}")
+    private int nodeId;
+
+    @Resource
+    private OrderInfoMapper orderInfoMapper;
+
+    @Resource
+    private RefundInfoMapper refundInfoMapper;
+
+    @PostConstruct
+    public void init() {
+        OrderNoUtils.setNodeId(nodeId);
+        log.info("当前节点号 ===> {}", nodeId);
+        advanceOrderNo();
+    }
+
+    /**
+     * 一秒内生成超过10000个编号时 会借用之后的秒：重启时从数据库读取当前节点借用过的编号，
+     * 之后生成的编号从它们之后开始，不会重复
+     * 只有时间不早于当前秒的编号可能是借用的：按唯一索引的范围查询，数据量很小
+     */
+    private void advanceOrderNo() {
+        String now = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").format(LocalDateTime.now());
+
+        List<Object> orderNos = orderInfoMapper.selectObjs(
+                new QueryWrapper<OrderInfo>().select("order_no").ge("order_no", "ORDER_" + now).likeRight("order_no", "ORDER_"));
+        List<Object> refundNos = refundInfoMapper.selectObjs(
+                new QueryWrapper<RefundInfo>().select("refund_no").ge("refund_no", "REFUND_" + now).likeRight("refund_no", "REFUND_"));
+
+        if (advanceTo(orderNos) + advanceTo(refundNos) > 0) {
+            log.warn("当前节点在重启前借用了之后的订单号 ===> 从已生成的最大编号之后继续生成");
+        }
+    }
+
+    private static int advanceTo(List<Object> nos) {
+        int advanced = 0;
+        for (Object no : nos) {
+            if (no != null && OrderNoUtils.advanceTo(no.toString())) {
+                advanced++;
+            }
+        }
+        return advanced;
+    }
+}
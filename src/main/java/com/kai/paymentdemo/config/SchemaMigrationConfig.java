@@ -0,0 +1,45 @@
+package com.kai.paymentdemo.config;
+
+import com.kai.paymentdemo.util.SchemaMigrator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import javax.sql.DataSource;
+
+/**
+ * 启动时执行数据库脚本(db/migration)
+ * <p>
+ * 在数据源创建后、注入其他bean之前执行：定时任务的节点租约等 在初始化时就会访问数据库
+ */
+@Configuration
+@Slf4j
+public class SchemaMigrationConfig {
+
+    @Bean
+    public static BeanPostProcessor schemaMigrationPostProcessor(Environment environment) {
+
+        boolean enabled = environment.getProperty("payment.schema.migrate-on-startup", Boolean.class, true);
+        String location = environment.getProperty("payment.schema.location", "classpath:db/migration");
+        int baselineVersion = environment.getProperty("payment.schema.baseline-version", Integer.class, 0);
+
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+                if (enabled && bean instanceof DataSource) {
+                    try {
+                        int count = new SchemaMigrator((DataSource) bean, location, baselineVersion).migrate();
+                        log.info("数据库脚本执行完成 ===> 本次执行 {} 个", count);
+                    } catch (Exception e) {
+                        throw new BeanCreationException(beanName, "数据库脚本执行失败", e);
+                    }
+                }
+                return bean;
+            }
+        };
+    }
+}
@@ -6,9 +6,15 @@ import com.wechat.pay.contrib.apache.httpclient.auth.ScheduledUpdateCertificates
 import com.wechat.pay.contrib.apache.httpclient.auth.WechatPay2Credentials;
 import com.wechat.pay.contrib.apache.httpclient.auth.WechatPay2Validator;
 import com.wechat.pay.contrib.apache.httpclient.util.PemUtil;
+import com.kai.paymentdemo.util.NotificationDecryptor;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -18,6 +24,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -54,6 +61,37 @@ public class WxPayConfig {
     // APIv2密钥
     private String partnerKey;
 
+    // 访问微信接口的http连接池、超时时间
+    private Http http = new Http();
+
+    /**
+     * http连接池、超时时间 配置：wxpay.http.*
+     */
+    @Data
+    public static class Http {
+
+        // 连接池的最大连接数
+        private int maxTotal = 200;
+
+        // 每个路由(目标主机)的最大连接数
+        private int maxPerRoute = 50;
+
+        // 建立连接的超时时间(毫秒)
+        private int connectTimeout = 5000;
+
+        // 等待响应数据的超时时间(毫秒)
+        private int socketTimeout = 10000;
+
+        // 从连接池获取连接的超时时间(毫秒)
+        private int connectionRequestTimeout = 2000;
+
+        // 空闲连接的回收时间(毫秒)
+        private long idleTimeout = 30000;
+
+        // 连接的最长存活时间(毫秒)
+        private long timeToLive = 300000;
+    }
+
     /**
      * 获取商户的私钥文件
      *
@@ -71,6 +109,14 @@ public class WxPayConfig {
 
     // 1、商户 向 微信 发起支付请求NativePay()方法中 需要 初始化：获取签名验证器方法  和  获取http请求对象方法
 
+    /**
+     * 解密APIv3通知：密钥只创建一次，每个线程复用Cipher
+     */
+    @Bean
+    public NotificationDecryptor notificationDecryptor() {
+        return new NotificationDecryptor(apiV3Key.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * 1、进行签名(前提需要获得微信平台证书)
      *
@@ -106,7 +152,8 @@ public class WxPayConfig {
      * @return
      */
     @Bean(name = "wxPayClient")
-    public CloseableHttpClient getWxPayClient(ScheduledUpdateCertificatesVerifier verifier) {
+    public CloseableHttpClient getWxPayClient(ScheduledUpdateCertificatesVerifier verifier,
+                                              @Qualifier("wxPayConnectionManager") PoolingHttpClientConnectionManager connectionManager) {
 
         log.info("获取httpClient");
 
@@ -117,6 +164,7 @@ public class WxPayConfig {
                 .withMerchant(mchId, mchSerialNo, privateKey)
                 .withValidator(new WechatPay2Validator(verifier));
         // ... 接下来，你仍然可以通过builder设置各种参数，来配置你的HttpClient
+        configurePool(builder, connectionManager);
 
         // 通过WechatPayHttpClientBuilder构造的HttpClient，会自动的处理签名和验签，并进行证书自动更新
         CloseableHttpClient httpClient = builder.build();
@@ -128,7 +176,8 @@ public class WxPayConfig {
      * 获取HttpClient，无需进行应答签名验证，跳过验签的流程
      */
     @Bean(name = "wxPayNoSignClient")
-    public CloseableHttpClient getWxPayNoSignClient() {
+    public CloseableHttpClient getWxPayNoSignClient(
+            @Qualifier("wxPayNoSignConnectionManager") PoolingHttpClientConnectionManager connectionManager) {
 
         //获取商户私钥
         PrivateKey privateKey = getPrivateKey(privateKeyPath);
@@ -139,6 +188,7 @@ public class WxPayConfig {
                 .withMerchant(mchId, mchSerialNo, privateKey)
                 //无需进行签名验证、通过withValidator((response) -> true)实现
                 .withValidator((response) -> true);
+        configurePool(builder, connectionManager);
 
         // 通过WechatPayHttpClientBuilder构造的HttpClient，会自动的处理签名和验签，并进行证书自动更新
         CloseableHttpClient httpClient = builder.build();
@@ -148,4 +198,68 @@ public class WxPayConfig {
         return httpClient;
     }
 
+    /**
+     * 获取APIv2使用的HttpClient：共享连接池，复用连接(keep-alive)，不需要每次请求都进行TLS握手
+     * 使用默认的证书校验和主机名校验
+     */
+    @Bean(name = "wxPayV2Client")
+    public CloseableHttpClient getWxPayV2Client(
+            @Qualifier("wxPayV2ConnectionManager") PoolingHttpClientConnectionManager connectionManager) {
+
+        CloseableHttpClient httpClient = configurePool(HttpClients.custom(), connectionManager).build();
+
+        log.info("== getWxPayV2Client END ==");
+
+        return httpClient;
+    }
+
+    /**
+     * 每个HttpClient使用各自的连接池，注册成bean 方便监控连接池的使用情况
+     */
+    @Bean(name = "wxPayConnectionManager")
+    public PoolingHttpClientConnectionManager getWxPayConnectionManager() {
+        return createConnectionManager();
+    }
+
+    @Bean(name = "wxPayNoSignConnectionManager")
+    public PoolingHttpClientConnectionManager getWxPayNoSignConnectionManager() {
+        return createConnectionManager();
+    }
+
+    @Bean(name = "wxPayV2ConnectionManager")
+    public PoolingHttpClientConnectionManager getWxPayV2ConnectionManager() {
+        return createConnectionManager();
+    }
+
+    /**
+     * 创建连接池：最大连接数、每个路由的最大连接数、连接的最长存活时间
+     */
+    private PoolingHttpClientConnectionManager createConnectionManager() {
+
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(http.getTimeToLive(), TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(http.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(http.getMaxPerRoute());
+        return connectionManager;
+    }
+
+    /**
+     * 为HttpClient设置 连接池、超时时间，并由后台线程回收 空闲和过期的连接
+     */
+    private HttpClientBuilder configurePool(HttpClientBuilder builder,
+                                            PoolingHttpClientConnectionManager connectionManager) {
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(http.getConnectTimeout())
+                .setSocketTimeout(http.getSocketTimeout())
+                .setConnectionRequestTimeout(http.getConnectionRequestTimeout())
+                .build();
+
+        return builder
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(http.getIdleTimeout(), TimeUnit.MILLISECONDS)
+                .evictExpiredConnections();
+    }
+
 }
@@ -0,0 +1,176 @@
+package com.kai.paymentdemo.controller;
+
+import com.kai.paymentdemo.service.BillReconcileService;
+import com.kai.paymentdemo.service.OrderExpiryService;
+import com.kai.paymentdemo.service.OrderInfoService;
+import com.kai.paymentdemo.service.OrderStatusWatchService;
+import com.kai.paymentdemo.service.PaymentLogBatchService;
+import com.kai.paymentdemo.service.ProductService;
+import com.kai.paymentdemo.service.TaskLeaseService;
+import com.kai.paymentdemo.service.WxBillService;
+import com.kai.paymentdemo.service.WxPayAsyncService;
+import com.kai.paymentdemo.service.WxPayNotifyService;
+import com.kai.paymentdemo.service.WxPayReconcileService;
+import com.kai.paymentdemo.vo.R;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Api(tags = "运行状态监控")
+@RestController
+@RequestMapping("/api/monitor")
+public class MonitorController {
+
+    @Resource
+    private WxPayNotifyService wxPayNotifyService;
+
+    @Resource
+    private WxPayAsyncService wxPayAsyncService;
+
+    @Resource
+    private WxPayReconcileService wxPayReconcileService;
+
+    @Resource
+    private OrderExpiryService orderExpiryService;
+
+    @Resource
+    private OrderStatusWatchService orderStatusWatchService;
+
+    @Resource
+    private PaymentLogBatchService paymentLogBatchService;
+
+    @Resource
+    private TaskLeaseService taskLeaseService;
+
+    @Resource
+    private ProductService productService;
+
+    @Resource
+    private OrderInfoService orderInfoService;
+
+    @Resource
+    private BillReconcileService billReconcileService;
+
+    @Resource
+    private WxBillService wxBillService;
+
+    //所有的http连接池，key为bean的名称
+    @Resource
+    private Map<String, PoolingHttpClientConnectionManager> connectionManagers;
+
+    @ApiOperation("通知队列：队列深度、处理延迟")
+    @GetMapping("/notify")
+    public R notifyStats() {
+
+        return R.ok().setData(wxPayNotifyService.getStats());
+    }
+
+    @ApiOperation("微信接口调用：线程池、等待队列、正在执行的请求数")
+    @GetMapping("/gateway")
+    public R gatewayStats() {
+
+        return R.ok().setData(wxPayAsyncService.getStats());
+    }
+
+    @ApiOperation("定时查单：每次执行的吞吐量、积压的订单数")
+    @GetMapping("/reconcile")
+    public R reconcileStats() {
+
+        return R.ok().setData(wxPayReconcileService.getStats());
+    }
+
+    @ApiOperation("订单超时时间轮：等待到期的订单数")
+    @GetMapping("/order-expiry")
+    public R orderExpiryStats() {
+
+        return R.ok().setData(orderExpiryService.getStats());
+    }
+
+    @ApiOperation("定时任务分片：租约未过期的节点、当前节点的序号")
+    @GetMapping("/lease")
+    public R leaseStats() {
+
+        return R.ok().setData(taskLeaseService.getStats());
+    }
+
+    @ApiOperation("商品缓存：命中率、商品列表快照")
+    @GetMapping("/product-cache")
+    public R productCacheStats() {
+
+        return R.ok().setData(productService.getCacheStats());
+    }
+
+    @ApiOperation("订单状态缓存：命中率")
+    @GetMapping("/order-status-cache")
+    public R orderStatusCacheStats() {
+
+        return R.ok().setData(orderInfoService.getStatusCacheStats());
+    }
+
+    @ApiOperation("支付日志批量写入：队列深度、批次大小")
+    @GetMapping("/payment-log")
+    public R paymentLogStats() {
+
+        return R.ok().setData(paymentLogBatchService.getStats());
+    }
+
+    @ApiOperation("等待订单支付完成：等待中的请求数")
+    @GetMapping("/order-watch")
+    public R orderWatchStats() {
+
+        return R.ok().setData(orderStatusWatchService.getStats());
+    }
+
+    @ApiOperation("对账：最近一次对账的差异数量")
+    @GetMapping("/bill-reconcile")
+    public R billReconcileStats() {
+
+        return R.ok().setData(billReconcileService.getStats());
+    }
+
+    @ApiOperation("账单缓存：本地账单的数量和大小、命中次数")
+    @GetMapping("/bill-cache")
+    public R billCacheStats() {
+
+        return R.ok().setData(wxBillService.getCacheStats());
+    }
+
+    @ApiOperation("http连接池：已租用、等待、空闲的连接数")
+    @GetMapping("/http-pool")
+    public R httpPoolStats() {
+
+        Map<String, Object> pools = new LinkedHashMap<>();
+        connectionManagers.forEach((name, connectionManager) -> {
+            PoolStats total = connectionManager.getTotalStats();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("leased", total.getLeased());
+            stats.put("pending", total.getPending());
+            stats.put("available", total.getAvailable());
+            stats.put("max", total.getMax());
+            //按路由(目标主机)统计
+            Map<String, Object> routes = new LinkedHashMap<>();
+            for (HttpRoute route : connectionManager.getRoutes()) {
+                PoolStats routeStats = connectionManager.getStats(route);
+                Map<String, Object> routeMap = new LinkedHashMap<>();
+                routeMap.put("leased", routeStats.getLeased());
+                routeMap.put("pending", routeStats.getPending());
+                routeMap.put("available", routeStats.getAvailable());
+                routeMap.put("max", routeStats.getMax());
+                routes.put(route.getTargetHost().toURI(), routeMap);
+            }
+            stats.put("routes", routes);
+            pools.put(name, stats);
+        });
+
+        return R.ok().setData(pools);
+    }
+}
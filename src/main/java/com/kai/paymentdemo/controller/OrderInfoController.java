@@ -1,15 +1,24 @@
 package com.kai.paymentdemo.controller;
 
-import com.kai.paymentdemo.entity.OrderInfo;
 import com.kai.paymentdemo.enums.OrderStatus;
 import com.kai.paymentdemo.service.OrderInfoService;
+import com.kai.paymentdemo.service.OrderStatusWatchService;
+import com.kai.paymentdemo.vo.OrderPage;
 import com.kai.paymentdemo.vo.R;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
-import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 
 @CrossOrigin //开放前端的跨域访问
 @Api(tags = "商品订单管理")
@@ -20,15 +29,66 @@ public class OrderInfoController {
     @Resource
     private OrderInfoService orderInfoService;
 
+    @Resource
+    private OrderStatusWatchService orderStatusWatchService;
+
     /**
-     * 查询订单列表
+     * 查询订单列表：按创建时间倒序分页
+     * 查询下一页时 传入上一页返回的nextCursor；nextCursor为空表示没有下一页
      */
     @ApiOperation("订单列表")
     @GetMapping("/list")
-    public R list() {
+    public R list(@RequestParam(required = false) String cursor,
+                  @RequestParam(defaultValue = "20") int size,
+                  @RequestParam(required = false) String orderStatus,
+                  @RequestParam(required = false) Long productId) {
+
+        OrderPage page;
+        try {
+            page = orderInfoService.getOrderPage(cursor, size, orderStatus, productId);
+        } catch (IllegalArgumentException e) {
+            return R.error().setMessage(e.getMessage());
+        }
+        return R.ok().data("list", page.getList()).data("nextCursor", page.getNextCursor());
+    }
 
-        List<OrderInfo> list = orderInfoService.listOrderByCreateTimeDesc();
-        return R.ok().data("list", list);
+    /**
+     * 导出订单(csv)：逐行写入响应，不在内存中保存订单列表
+     */
+    @ApiOperation("导出订单")
+    @GetMapping("/export")
+    public void export(@RequestParam(required = false) String orderStatus,
+                       @RequestParam(required = false) Long productId,
+                       HttpServletResponse response) throws IOException {
+
+        response.setContentType("text/csv;charset=UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=orders.csv");
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        writer.write("订单编号,订单标题,商品id,用户id,订单金额(分),订单状态,创建时间\n");
+        orderInfoService.exportOrders(orderStatus, productId, orderInfo -> {
+            try {
+                writer.write(orderInfo.getOrderNo());
+                writer.write(',');
+                writer.write(csv(orderInfo.getTitle()));
+                writer.write(',');
+                writer.write(String.valueOf(orderInfo.getProductId()));
+                writer.write(',');
+                writer.write(String.valueOf(orderInfo.getUserId()));
+                writer.write(',');
+                writer.write(String.valueOf(orderInfo.getTotalFee()));
+                writer.write(',');
+                writer.write(csv(orderInfo.getOrderStatus()));
+                writer.write(',');
+                writer.write(orderInfo.getCreateTime() == null ? "" : dateFormat.format(orderInfo.getCreateTime()));
+                writer.write('\n');
+            } catch (IOException e) {
+                //客户端断开连接：结束导出，释放数据库连接
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.flush();
     }
 
     /**
@@ -47,5 +107,29 @@ public class OrderInfoController {
         return R.ok().setCode(101).setMessage("支付中......");
     }
 
+    /**
+     * csv字段：包含逗号、引号、换行时 用引号括起来
+     */
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * 等待订单支付完成(长轮询)
+     * 订单支付成功、关闭或取消时立即返回，否则在timeout毫秒后返回当前的状态；前端收到 支付中(101) 后再次请求
+     */
+    @ApiOperation("等待订单支付完成")
+    @GetMapping(value = "/query-order-status/{orderNo}", params = "timeout")
+    public DeferredResult<R> watchOrderStatus(@PathVariable String orderNo, @RequestParam long timeout) {
+
+        return orderStatusWatchService.watch(orderNo, timeout);
+    }
+
 
 }
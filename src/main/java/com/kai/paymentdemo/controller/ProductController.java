@@ -1,18 +1,21 @@
 package com.kai.paymentdemo.controller;
 
-import com.kai.paymentdemo.entity.Product;
 import com.kai.paymentdemo.service.ProductService;
+import com.kai.paymentdemo.vo.ProductListSnapshot;
 import com.kai.paymentdemo.vo.R;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
 import java.util.Date;
-import java.util.List;
 
 @CrossOrigin //开放前端的跨域访问
 @Api(tags = "商品管理")
@@ -30,12 +33,24 @@ public class ProductController {
         return R.ok().data("message", "hello").data("now", new Date());
     }
 
+    /**
+     * 商品列表：返回已经序列化的快照
+     * 请求头If-None-Match与快照的ETag一致时 返回304，不返回响应体
+     */
     @ApiOperation("商品列表")
     @GetMapping("/list")
-    public R list(){
-
-        List<Product> list = productService.list();
-        return R.ok().data("productList", list);
+    public ResponseEntity<byte[]> list(WebRequest request){
+
+        ProductListSnapshot snapshot = productService.getListSnapshot();
+        //设置ETag响应头，并返回304
+        if (request.checkNotModified(snapshot.getEtag())) {
+            return null;
+        }
+        return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .cacheControl(CacheControl.noCache()) //每次使用前需要验证ETag
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.getBody());
     }
 
 }
@@ -1,7 +1,11 @@
 package com.kai.paymentdemo.controller;
 
 import com.google.gson.Gson;
-import com.kai.paymentdemo.service.WxPayService;
+import com.kai.paymentdemo.enums.wxpay.WxNotifyType;
+import com.kai.paymentdemo.service.BillReconcileService;
+import com.kai.paymentdemo.service.WxBillService;
+import com.kai.paymentdemo.service.WxPayNotifyService;
+import com.kai.paymentdemo.service.WxPayAsyncService;
 import com.kai.paymentdemo.util.HttpUtils;
 import com.kai.paymentdemo.util.WechatPay2ValidatorForRequest;
 import com.kai.paymentdemo.vo.R;
@@ -9,14 +13,21 @@ import com.wechat.pay.contrib.apache.httpclient.auth.Verifier;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 @CrossOrigin //跨域
 @RestController
@@ -25,12 +36,26 @@ import java.util.concurrent.TimeUnit;
 @Slf4j
 public class WxPayController {
 
+    //访问微信接口：在独立的线程池中执行，不占用servlet线程
     @Resource
-    private WxPayService wxPayService;
+    private WxPayAsyncService wxPayAsyncService;
+
+    @Resource
+    private WxPayNotifyService wxPayNotifyService;
+
+    @Resource
+    private WxBillService wxBillService;
+
+    @Resource
+    private BillReconcileService billReconcileService;
 
     @Resource
     private Verifier verifier;
 
+    //前端等待下载账单的最长时间(毫秒)：超时后下载在后台继续
+    @Value("${payment.bill.download-timeout-millis:120000}")
+    private long billDownloadTimeoutMillis;
+
     /**
      * Native支付接口
      * <p>
@@ -39,14 +64,13 @@ public class WxPayController {
      */
     @ApiOperation("调用统一下单API，生成支付二维码")
     @PostMapping("/native/{productId}")
-    public R nativePay(@PathVariable Long productId) throws Exception {
+    public CompletableFuture<R> nativePay(@PathVariable Long productId) {
 
         log.info("发起支付请求 v3");
 
         //返回Map【支付二维码url(提供扫码支付)和订单号】
-        Map<String, Object> map = wxPayService.nativePay(productId);
-
-        return R.ok().setData(map);
+        return wxPayAsyncService.nativePay(productId)
+                .thenApply(map -> R.ok().setData(map));
     }
 
     /**
@@ -57,18 +81,19 @@ public class WxPayController {
      */
     @ApiOperation("申请退款")
     @PostMapping("/refunds/{orderNo}/{reason}")
-    public R refunds(@PathVariable String orderNo, @PathVariable String reason) throws Exception {
+    public CompletableFuture<R> refunds(@PathVariable String orderNo, @PathVariable String reason) {
 
         log.info("申请退款");
-        wxPayService.refund(orderNo, reason);
-        return R.ok();
+        return wxPayAsyncService.refund(orderNo, reason)
+                .thenApply(v -> R.ok());
     }
 
     /**
      * 支付结果通知接口
      * <p>
      * 微信访问该接口
-     * 进行 验证签名、处理退款单方法、解密、修改订单状态、增加支付日志的记录
+     * 进行 验证签名 后将通知放入处理队列 立即应答；
+     * 解密、修改订单状态、增加支付日志的记录 由队列的工作线程异步完成
      */
 
     @ApiOperation("支付通知")
@@ -89,6 +114,15 @@ public class WxPayController {
             //log.info("支付通知的完整数据 ===> {}", body);
             //int a = 9 / 0;
 
+            //重复的通知：已经处理成功，直接成功应答，不再验签、解密、查询数据库
+            if (wxPayNotifyService.isProcessed(requestId)) {
+                log.info("重复的支付通知 ===> {}", requestId);
+                response.setStatus(200);
+                map.put("code", "SUCCESS");
+                map.put("message", "成功");
+                return gson.toJson(map);
+            }
+
             //验证签名【利用微信支付系统的公钥】
             WechatPay2ValidatorForRequest wechatPay2ValidatorForRequest = new WechatPay2ValidatorForRequest(verifier, requestId, body);
 
@@ -105,13 +139,14 @@ public class WxPayController {
 
             log.info("通知验签成功");
 
-            //验证签名成功 进行 解密数据()
-            //处理订单(密钥解密)
-            wxPayService.processOrder(bodyMap);
-
-            //应答超时
-            //模拟接收微信端的重复通知
-            TimeUnit.SECONDS.sleep(5);
+            //验证签名成功 放入处理队列(解密、处理订单 由工作线程完成)
+            if (!wxPayNotifyService.submit(WxNotifyType.NATIVE_NOTIFY, requestId, body)) {
+                //队列已满：失败应答，等待微信重新通知
+                response.setStatus(500);
+                map.put("code", "ERROR");
+                map.put("message", "系统繁忙");
+                return gson.toJson(map);
+            }
 
             //成功应答
             response.setStatus(200);
@@ -134,7 +169,8 @@ public class WxPayController {
      * 退款结果通知接口
      * <p>
      * 微信访问该接口
-     * 进行 验证签名、处理退款单方法、解密、修改订单状态、补充 退款记录数据【t_refund_info】
+     * 进行 验证签名 后将通知放入处理队列 立即应答；
+     * 解密、修改订单状态、补充 退款记录数据【t_refund_info】 由队列的工作线程异步完成
      */
     @ApiOperation("退款结果通知")
     @PostMapping("/refunds/notify")
@@ -151,6 +187,15 @@ public class WxPayController {
             String requestId = (String) bodyMap.get("id");
             log.info("支付通知的id ===> {}", requestId);
 
+            //重复的通知：已经处理成功，直接成功应答，不再验签、解密、查询数据库
+            if (wxPayNotifyService.isProcessed(requestId)) {
+                log.info("重复的退款通知 ===> {}", requestId);
+                response.setStatus(200);
+                map.put("code", "SUCCESS");
+                map.put("message", "成功");
+                return gson.toJson(map);
+            }
+
             //签名的验证
             WechatPay2ValidatorForRequest wechatPay2ValidatorForRequest
                     = new WechatPay2ValidatorForRequest(verifier, requestId, body);
@@ -165,8 +210,14 @@ public class WxPayController {
             }
             log.info("通知验签成功");
 
-            //处理退款单
-            wxPayService.processRefund(bodyMap);
+            //放入处理队列(解密、处理退款单 由工作线程完成)
+            if (!wxPayNotifyService.submit(WxNotifyType.REFUND_NOTIFY, requestId, body)) {
+                //队列已满：失败应答，等待微信重新通知
+                response.setStatus(500);
+                map.put("code", "ERROR");
+                map.put("message", "系统繁忙");
+                return gson.toJson(map);
+            }
 
             //成功应答
             response.setStatus(200);
@@ -193,12 +244,12 @@ public class WxPayController {
      */
     @ApiOperation("查询订单：测试订单状态用")
     @GetMapping("/query/{orderNo}")
-    public R queryOrder(@PathVariable String orderNo) throws Exception {
+    public CompletableFuture<R> queryOrder(@PathVariable String orderNo) {
 
         log.info("查询订单");
 
-        String result = wxPayService.queryOrder(orderNo);
-        return R.ok().setMessage("查询成功").data("result", result);
+        return wxPayAsyncService.queryOrder(orderNo)
+                .thenApply(result -> R.ok().setMessage("查询成功").data("result", result));
 
     }
 
@@ -211,12 +262,12 @@ public class WxPayController {
      */
     @ApiOperation("查询退款：测试用")
     @GetMapping("/query-refund/{refundNo}")
-    public R queryRefund(@PathVariable String refundNo) throws Exception {
+    public CompletableFuture<R> queryRefund(@PathVariable String refundNo) {
 
         log.info("查询退款");
 
-        String result = wxPayService.queryRefund(refundNo);
-        return R.ok().setMessage("查询成功").data("result", result);
+        return wxPayAsyncService.queryRefund(refundNo)
+                .thenApply(result -> R.ok().setMessage("查询成功").data("result", result));
     }
 
 
@@ -226,17 +277,22 @@ public class WxPayController {
      * 前端访问该接口 向微信 发起查询账单请求 需要携带：
      * billDate  交易账单日期
      * type  交易账单类型
+     * 账单已经下载到本地时 返回读取本地账单文件的地址，不调用微信接口
      */
     @ApiOperation("获取账单url：测试用")
     @GetMapping("/querybill/{billDate}/{type}")
-    public R queryTradeBill(
+    public CompletableFuture<R> queryTradeBill(
             @PathVariable String billDate,
-            @PathVariable String type) throws Exception {
+            @PathVariable String type) {
 
         log.info("获取账单url");
 
-        String downloadUrl = wxPayService.queryBill(billDate, type);
-        return R.ok().setMessage("获取账单url成功").data("downloadUrl", downloadUrl);
+        if (wxBillService.isCached(billDate, type)) {
+            return CompletableFuture.completedFuture(R.ok().setMessage("获取账单url成功")
+                    .data("downloadUrl", "/api/wx-pay/billfile/" + billDate + "/" + type));
+        }
+        return wxPayAsyncService.queryBill(billDate, type)
+                .thenApply(downloadUrl -> R.ok().setMessage("获取账单url成功").data("downloadUrl", downloadUrl));
     }
 
     /**
@@ -245,17 +301,100 @@ public class WxPayController {
      * 前端访问该接口 向微信 发起查下载账单请求 需要携带：
      * billDate  交易账单日期
      * type  交易账单类型
+     * 账单下载到服务器的本地文件，返回读取账单文件的地址
+     * 大账单的下载可能超过download-timeout-millis：超时后下载在后台继续，稍后再次请求时直接返回
      */
     @ApiOperation("下载账单")
     @GetMapping("/downloadbill/{billDate}/{type}")
-    public R downloadBill(
+    public DeferredResult<R> downloadBill(
             @PathVariable String billDate,
-            @PathVariable String type) throws Exception {
+            @PathVariable String type) {
 
         log.info("下载账单");
-        String result = wxPayService.downloadBill(billDate, type);
+        DeferredResult<R> result = new DeferredResult<>(billDownloadTimeoutMillis);
+        result.onTimeout(() -> result.setResult(R.error().setMessage("账单仍在下载中，请稍后重试")));
+        wxBillService.downloadBillAsync(billDate, type)
+                .thenApply(file -> {
+                    R r = R.ok().data("url", "/api/wx-pay/billfile/" + billDate + "/" + type);
+                    try {
+                        r.data("size", Files.size(file));
+                    } catch (IOException e) {
+                        log.warn("读取账单文件大小失败 ===> {}", file);
+                    }
+                    return r;
+                })
+                .whenComplete((r, e) -> {
+                    if (e != null) {
+                        result.setErrorResult(e);
+                    } else {
+                        result.setResult(r);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * 读取已经下载的账单文件：逐块写入响应，不在内存中保存账单内容
+     * gzip=true时 返回gzip文件，否则返回解压后的csv
+     */
+    @ApiOperation("读取账单文件")
+    @GetMapping("/billfile/{billDate}/{type}")
+    public void billFile(
+            @PathVariable String billDate,
+            @PathVariable String type,
+            @RequestParam(defaultValue = "false") boolean gzip,
+            HttpServletResponse response) throws IOException {
+
+        Path file = wxBillService.getBillFile(billDate, type);
+        if (!Files.exists(file)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "账单尚未下载");
+            return;
+        }
+
+        String filename = type + "_" + billDate + (gzip ? ".csv.gz" : ".csv");
+        response.setContentType(gzip ? "application/gzip" : "text/csv;charset=UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=" + filename);
+
+        OutputStream out = response.getOutputStream();
+        if (gzip) {
+            response.setContentLengthLong(Files.size(file));
+            Files.copy(file, out);
+        } else {
+            try (InputStream in = wxBillService.openBill(billDate, type)) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 解析已经下载的账单：返回记录数、金额(分)的汇总，以及账单末尾的汇总数据
+     */
+    @ApiOperation("解析账单")
+    @GetMapping("/billsummary/{billDate}/{type}")
+    public R billSummary(@PathVariable String billDate, @PathVariable String type) throws Exception {
 
-        return R.ok().data("result", result);
+        if (!Files.exists(wxBillService.getBillFile(billDate, type))) {
+            return R.error().setMessage("账单尚未下载");
+        }
+        return R.ok().setData(wxBillService.summarizeBill(billDate, type));
+    }
+
+    /**
+     * 对账：账单需要已经下载，差异写入t_bill_discrepancy表
+     */
+    @ApiOperation("对账：测试用")
+    @PostMapping("/reconcilebill/{billDate}")
+    public R reconcileBill(@PathVariable String billDate) throws Exception {
+
+        if (!Files.exists(wxBillService.getBillFile(billDate, "tradebill"))) {
+            return R.error().setMessage("账单尚未下载");
+        }
+        return R.ok().setData(billReconcileService.reconcile(billDate));
     }
 
     /**
@@ -267,11 +406,11 @@ public class WxPayController {
      */
     @ApiOperation("用户取消订单")
     @PostMapping("/cancel/{orderNo}")
-    public R cancel(@PathVariable String orderNo) throws Exception {
+    public CompletableFuture<R> cancel(@PathVariable String orderNo) {
 
         log.info("取消订单");
 
-        wxPayService.cancelOrder(orderNo);
-        return R.ok().setMessage("订单已取消");
+        return wxPayAsyncService.cancelOrder(orderNo)
+                .thenApply(v -> R.ok().setMessage("订单已取消"));
     }
 }
@@ -2,9 +2,9 @@ package com.kai.paymentdemo.controller;
 
 import com.kai.paymentdemo.config.WxPayConfig;
 import com.kai.paymentdemo.entity.OrderInfo;
-import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.enums.wxpay.WxNotifyType;
 import com.kai.paymentdemo.service.OrderInfoService;
-import com.kai.paymentdemo.service.PaymentInfoService;
+import com.kai.paymentdemo.service.WxPayNotifyService;
 import com.kai.paymentdemo.service.WxPayService;
 import com.kai.paymentdemo.util.HttpUtils;
 import com.kai.paymentdemo.vo.R;
@@ -18,7 +18,6 @@ import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 @CrossOrigin //跨域
 @RestController
@@ -34,12 +33,10 @@ public class WxPayV2Controller {
     private WxPayConfig wxPayConfig;
 
     @Resource
-    private OrderInfoService orderInfoService;
+    private WxPayNotifyService wxPayNotifyService;
 
     @Resource
-    private PaymentInfoService paymentInfoService;
-
-    private final ReentrantLock lock = new ReentrantLock();
+    private OrderInfoService orderInfoService;
 
 
     /**
@@ -62,6 +59,7 @@ public class WxPayV2Controller {
     /**
      * 支付通知
      * 微信支付通过支付通知接口将用户支付成功消息通知给商户
+     * 验签成功后放入处理队列 立即应答
      */
     @PostMapping("/native/notify")
     public String wxNotify(HttpServletRequest request) throws Exception {
@@ -72,8 +70,20 @@ public class WxPayV2Controller {
         //处理通知参数
         String body = HttpUtils.readData(request);
 
+        //解析xml数据
+        Map<String, String> notifyMap = WXPayUtil.xmlToMap(body);
+
+        //重复的通知：同一笔支付(transaction_id)已经处理成功，直接成功应答，不再验签、查询数据库
+        String transactionId = notifyMap.get("transaction_id");
+        if (wxPayNotifyService.isProcessed(transactionId)) {
+            log.info("重复的支付通知 ===> {}", transactionId);
+            returnMap.put("return_code", "SUCCESS");
+            returnMap.put("return_msg", "OK");
+            return WXPayUtil.mapToXml(returnMap);
+        }
+
         //验签
-        if(!WXPayUtil.isSignatureValid(body, wxPayConfig.getPartnerKey())) {
+        if(!WXPayUtil.isSignatureValid(notifyMap, wxPayConfig.getPartnerKey())) {
             log.error("通知验签失败");
             //失败应答
             returnMap.put("return_code", "FAIL");
@@ -82,8 +92,6 @@ public class WxPayV2Controller {
             return returnXml;
         }
 
-        //解析xml数据
-        Map<String, String> notifyMap = WXPayUtil.xmlToMap(body);
         //判断通信和业务是否成功
         if(!"SUCCESS".equals(notifyMap.get("return_code")) || !"SUCCESS".equals(notifyMap.get("result_code"))) {
             log.error("失败");
@@ -97,9 +105,9 @@ public class WxPayV2Controller {
         //获取商户订单号
         String orderNo = notifyMap.get("out_trade_no");
         OrderInfo orderInfo = orderInfoService.getOrderByOrderNo(orderNo);
-        //并校验返回的订单金额是否与商户侧的订单金额一致
+        //应答前校验返回的订单金额是否与商户侧的订单金额一致：不一致时失败应答，不放入处理队列
         if (orderInfo != null && orderInfo.getTotalFee() != Long.parseLong(notifyMap.get("total_fee"))) {
-            log.error("金额校验失败");
+            log.error("金额校验失败 ===> {}", orderNo);
             //失败应答
             returnMap.put("return_code", "FAIL");
             returnMap.put("return_msg", "金额校验失败");
@@ -107,23 +115,13 @@ public class WxPayV2Controller {
             return returnXml;
         }
 
-        //处理订单
-        if(lock.tryLock()){
-            try {
-                //处理重复的通知
-                //接口调用的幂等性：无论接口被调用多少次，产生的结果是一致的。
-                String orderStatus = orderInfoService.getOrderStatus(orderNo);
-                if(OrderStatus.NOTPAY.getType().equals(orderStatus)){
-                    //更新订单状态
-                    orderInfoService.updateStatusByOrderNo(orderNo, OrderStatus.SUCCESS);
-
-                    //记录支付日志
-                    paymentInfoService.createPaymentInfo(body);
-                }
-            } finally {
-                //要主动释放锁
-                lock.unlock();
-            }
+        //放入处理队列：更新订单状态、记录支付日志 由工作线程完成
+        if (!wxPayNotifyService.submit(WxNotifyType.NATIVE_NOTIFY_V2, transactionId, body)) {
+            //队列已满：失败应答，等待微信重新通知
+            returnMap.put("return_code", "FAIL");
+            returnMap.put("return_msg", "系统繁忙");
+            String returnXml = WXPayUtil.mapToXml(returnMap);
+            return returnXml;
         }
 
         returnMap.put("return_code", "SUCCESS");
@@ -0,0 +1,34 @@
+package com.kai.paymentdemo.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+/**
+ * 对账差异：每次对账时 先删除该账单日期的记录 再写入
+ */
+@Data
+@TableName("t_bill_discrepancy")
+public class BillDiscrepancy extends BaseEntity {
+
+    private String billDate;//账单日期
+
+    private String discrepancyType;//差异类型
+
+    private String orderNo;//商户订单编号
+
+    private String refundNo;//商户退款单编号
+
+    private String transactionId;//微信订单号
+
+    private Long billAmount;//账单中的金额(分)
+
+    private Long localAmount;//本地的金额(分)
+
+    private String billStatus;//账单中的状态
+
+    private String localStatus;//本地的状态
+
+    private String remark;//说明
+
+    private String repairStatus;//自动修复的结果
+}
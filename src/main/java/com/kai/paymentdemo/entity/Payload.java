@@ -0,0 +1,19 @@
+package com.kai.paymentdemo.entity;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+
+/**
+ * 原始报文：只追加，不修改
+ * 支付日志、退款单中只保存报文的id，需要时通过PayloadService加载
+ */
+@Data
+@TableName("t_payload")
+public class Payload extends BaseEntity {
+
+    private String payloadType;//报文类型
+
+    private Integer rawLength;//压缩前的长度(字节)
+
+    private byte[] data;//压缩后的报文(PayloadCodec)
+}
@@ -19,5 +19,5 @@ public class PaymentInfo extends BaseEntity {
 
     private Integer payerTotal;//支付金额(分)
 
-    private String content;//通知参数
+    private String contentId;//通知参数(t_payload的id)
 }
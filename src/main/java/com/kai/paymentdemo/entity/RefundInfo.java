@@ -3,6 +3,8 @@ package com.kai.paymentdemo.entity;
 import com.baomidou.mybatisplus.annotation.TableName;
 import lombok.Data;
 
+import java.util.Date;
+
 @Data
 @TableName("t_refund_info")
 public class RefundInfo extends BaseEntity{
@@ -21,7 +23,11 @@ public class RefundInfo extends BaseEntity{
 
     private String refundStatus;//退款单状态
 
-    private String contentReturn;//申请退款返回参数
+    private String contentReturnId;//申请退款返回参数(t_payload的id)
+
+    private String contentNotifyId;//退款结果通知参数(t_payload的id)
+
+    private Integer checkAttempts;//已核实的次数
 
-    private String contentNotify;//退款结果通知参数
+    private Date nextCheckTime;//下次核实的时间
 }
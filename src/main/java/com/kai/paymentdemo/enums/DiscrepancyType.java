@@ -0,0 +1,38 @@
+package com.kai.paymentdemo.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public enum DiscrepancyType {
+    /**
+     * 账单中支付成功，本地的订单不存在、未支付或没有支付记录
+     */
+    MISSING_PAYMENT("本地未支付"),
+
+    /**
+     * 账单中的金额与本地的订单金额、支付金额、退款金额不一致
+     */
+    AMOUNT_MISMATCH("金额不一致"),
+
+    /**
+     * 本地有当天的支付记录，账单中没有
+     */
+    LOCAL_ONLY_PAYMENT("账单中没有"),
+
+    /**
+     * 账单中有退款，本地没有退款单
+     */
+    MISSING_REFUND("本地没有退款单"),
+
+    /**
+     * 账单中退款成功，本地的退款单仍未成功
+     */
+    REFUND_STUCK("退款未完成");
+
+    /**
+     * 类型
+     */
+    private final String type;
+}
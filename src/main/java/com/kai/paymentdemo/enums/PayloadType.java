@@ -0,0 +1,28 @@
+package com.kai.paymentdemo.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@AllArgsConstructor
+@Getter
+public enum PayloadType {
+    /**
+     * 支付结果(支付通知、查单结果)
+     */
+    PAYMENT("支付结果"),
+
+    /**
+     * 申请退款、查询退款的返回参数
+     */
+    REFUND_RETURN("退款返回参数"),
+
+    /**
+     * 退款结果通知参数
+     */
+    REFUND_NOTIFY("退款通知参数");
+
+    /**
+     * 类型
+     */
+    private final String type;
+}
@@ -0,0 +1,18 @@
+package com.kai.paymentdemo.event;
+
+import com.kai.paymentdemo.enums.OrderStatus;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 订单状态变更事件：创建订单、更新订单状态时发布
+ * 监听者使用@TransactionalEventListener，在事务提交后处理
+ */
+@Getter
+@AllArgsConstructor
+public class OrderStatusChangedEvent {
+
+    private final String orderNo; //订单编号
+
+    private final OrderStatus orderStatus; //变更后的订单状态
+}
@@ -0,0 +1,7 @@
+package com.kai.paymentdemo.mapper;
+
+import com.kai.paymentdemo.entity.BillDiscrepancy;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+
+public interface BillDiscrepancyMapper extends BaseMapper<BillDiscrepancy> {
+}
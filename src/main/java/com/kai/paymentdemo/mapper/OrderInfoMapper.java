@@ -2,7 +2,16 @@ package com.kai.paymentdemo.mapper;
 
 import com.kai.paymentdemo.entity.OrderInfo;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.util.Date;
 
 public interface OrderInfoMapper extends BaseMapper<OrderInfo> {
 
+    Cursor<OrderInfo> selectOrderCursor(@Param("orderStatus") String orderStatus, @Param("productId") Long productId);
+
+    Cursor<OrderInfo> selectReconcileCursor(@Param("begin") Date begin, @Param("end") Date end);
+
+    int transitionStatus(@Param("orderNo") String orderNo, @Param("expected") String expected, @Param("next") String next);
 }
@@ -0,0 +1,7 @@
+package com.kai.paymentdemo.mapper;
+
+import com.kai.paymentdemo.entity.Payload;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+
+public interface PayloadMapper extends BaseMapper<Payload> {
+}
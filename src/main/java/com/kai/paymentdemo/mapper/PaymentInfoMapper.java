@@ -2,6 +2,12 @@ package com.kai.paymentdemo.mapper;
 
 import com.kai.paymentdemo.entity.PaymentInfo;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.util.Date;
 
 public interface PaymentInfoMapper extends BaseMapper<PaymentInfo> {
+
+    Cursor<PaymentInfo> selectReconcileCursor(@Param("begin") Date begin, @Param("end") Date end);
 }
@@ -2,7 +2,12 @@ package com.kai.paymentdemo.mapper;
 
 import com.kai.paymentdemo.entity.RefundInfo;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.util.Date;
 
 public interface RefundInfoMapper extends BaseMapper<RefundInfo> {
 
+    Cursor<RefundInfo> selectReconcileCursor(@Param("begin") Date begin, @Param("end") Date end);
 }
@@ -0,0 +1,14 @@
+package com.kai.paymentdemo.mapper;
+
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+public interface TaskLeaseMapper {
+
+    int renew(@Param("nodeId") int nodeId, @Param("ttlMillis") long ttlMillis);
+
+    List<Integer> selectLiveNodeIds();
+
+    int release(@Param("nodeId") int nodeId);
+}
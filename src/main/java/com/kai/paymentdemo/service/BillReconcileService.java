@@ -0,0 +1,12 @@
+package com.kai.paymentdemo.service;
+
+import java.util.Map;
+
+public interface BillReconcileService {
+
+    Map<String, Object> reconcile(String billDate) throws Exception;
+
+    boolean isReconciled(String billDate);
+
+    Map<String, Object> getStats();
+}
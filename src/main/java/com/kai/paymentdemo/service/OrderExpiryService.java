@@ -0,0 +1,11 @@
+package com.kai.paymentdemo.service;
+
+import java.util.Date;
+import java.util.Map;
+
+public interface OrderExpiryService {
+
+    void schedule(String orderNo, Date createTime);
+
+    Map<String, Object> getStats();
+}
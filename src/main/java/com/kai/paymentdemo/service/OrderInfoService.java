@@ -2,9 +2,14 @@ package com.kai.paymentdemo.service;
 
 import com.kai.paymentdemo.entity.OrderInfo;
 import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.vo.OrderPage;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public interface OrderInfoService extends IService<OrderInfo> {
 
@@ -12,13 +17,25 @@ public interface OrderInfoService extends IService<OrderInfo> {
 
     void saveCodeUrl(String orderNo, String codeUrl);
 
-    List<OrderInfo> listOrderByCreateTimeDesc();
+    OrderPage getOrderPage(String cursor, int size, String orderStatus, Long productId);
+
+    void exportOrders(String orderStatus, Long productId, Consumer<OrderInfo> consumer);
 
     void updateStatusByOrderNo(String orderNo, OrderStatus orderStatus);
 
+    boolean transitionStatus(String orderNo, OrderStatus expected, OrderStatus next);
+
     String getOrderStatus(String orderNo);
 
+    Map<String, Object> getStatusCacheStats();
+
+    List<OrderInfo> listOrderStatusByOrderNos(Collection<String> orderNos, Collection<OrderStatus> statuses);
+
     List<OrderInfo> getNoPayOrderByDuration(int minutes);
 
+    List<OrderInfo> getNoPayOrderPage(Date createdBefore, Date afterCreateTime, String afterId, int limit);
+
+    int countNoPayOrder(Date createdBefore);
+
     OrderInfo getOrderByOrderNo(String orderNo);
 }
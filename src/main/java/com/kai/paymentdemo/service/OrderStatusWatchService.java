@@ -0,0 +1,15 @@
+package com.kai.paymentdemo.service;
+
+import com.kai.paymentdemo.vo.R;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Map;
+
+public interface OrderStatusWatchService {
+
+    DeferredResult<R> watch(String orderNo, long timeoutMillis);
+
+    R statusResult(String orderStatus);
+
+    Map<String, Object> getStats();
+}
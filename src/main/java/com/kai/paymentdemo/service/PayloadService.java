@@ -0,0 +1,13 @@
+package com.kai.paymentdemo.service;
+
+import com.kai.paymentdemo.entity.Payload;
+import com.kai.paymentdemo.enums.PayloadType;
+
+public interface PayloadService {
+
+    Payload buildPayload(PayloadType payloadType, String content);
+
+    String savePayload(PayloadType payloadType, String content);
+
+    String loadPayload(String payloadId);
+}
@@ -1,6 +1,17 @@
 package com.kai.paymentdemo.service;
 
+import com.kai.paymentdemo.entity.PaymentInfo;
+import com.kai.paymentdemo.vo.WxTransaction;
+
+import java.util.Map;
+
 public interface PaymentInfoService {
 
     void createPaymentInfo(String plainText);
+
+    PaymentInfo buildPaymentInfo(String plainText);
+
+    PaymentInfo buildPaymentInfo(WxTransaction transaction);
+
+    PaymentInfo buildPaymentInfoV2(Map<String, String> notifyMap);
 }
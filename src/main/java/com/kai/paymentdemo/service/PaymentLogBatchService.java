@@ -0,0 +1,14 @@
+package com.kai.paymentdemo.service;
+
+import com.kai.paymentdemo.entity.Payload;
+import com.kai.paymentdemo.entity.PaymentInfo;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public interface PaymentLogBatchService {
+
+    CompletableFuture<Boolean> submitPaid(String orderNo, PaymentInfo paymentInfo, Payload payload) throws InterruptedException;
+
+    Map<String, Object> getStats();
+}
@@ -2,7 +2,17 @@ package com.kai.paymentdemo.service;
 
 import com.kai.paymentdemo.entity.Product;
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.kai.paymentdemo.vo.ProductListSnapshot;
+
+import java.util.Map;
 
 public interface ProductService extends IService<Product> {
 
+    Product getCachedProduct(Long productId);
+
+    ProductListSnapshot getListSnapshot();
+
+    void invalidateCache();
+
+    Map<String, Object> getCacheStats();
 }
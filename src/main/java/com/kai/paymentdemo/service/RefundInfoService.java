@@ -1,8 +1,10 @@
 package com.kai.paymentdemo.service;
 
 import com.kai.paymentdemo.entity.RefundInfo;
+import com.kai.paymentdemo.vo.WxRefund;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Date;
 import java.util.List;
 
 public interface RefundInfoService extends IService<RefundInfo> {
@@ -11,5 +13,15 @@ public interface RefundInfoService extends IService<RefundInfo> {
 
     void updateRefund(String content);
 
+    void updateRefund(WxRefund refund);
+
     List<RefundInfo> getNoRefundOrderByDuration(int minutes);
+
+    List<RefundInfo> getDueRefundPage(Date createdBefore, Date now, String afterId, int limit);
+
+    int countNoRefundOrder(Date createdBefore);
+
+    String getRefundStatus(String refundNo);
+
+    void scheduleNextCheck(String refundNo, int checkAttempts, Date nextCheckTime);
 }
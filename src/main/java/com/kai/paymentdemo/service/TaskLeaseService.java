@@ -0,0 +1,12 @@
+package com.kai.paymentdemo.service;
+
+import java.util.Map;
+
+public interface TaskLeaseService {
+
+    boolean owns(String orderNo);
+
+    int getShardCount();
+
+    Map<String, Object> getStats();
+}
@@ -0,0 +1,36 @@
+package com.kai.paymentdemo.service;
+
+import com.kai.paymentdemo.util.BillParser;
+import com.kai.paymentdemo.util.TradeBillRecord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+public interface WxBillService {
+
+    Path downloadBill(String billDate, String type) throws Exception;
+
+    CompletableFuture<Path> downloadBillAsync(String billDate, String type);
+
+    boolean prefetchBills(String billDate);
+
+    boolean isCached(String billDate, String type);
+
+    Path getBillFile(String billDate, String type);
+
+    InputStream openBill(String billDate, String type) throws IOException;
+
+    Path unpackBill(String billDate, String type) throws IOException;
+
+    <H extends Consumer<? super TradeBillRecord>> BillParser.Result<H> parseTradeBill(String billDate, Supplier<H> handlerFactory)
+            throws IOException, InterruptedException;
+
+    Map<String, Object> summarizeBill(String billDate, String type) throws IOException, InterruptedException;
+
+    Map<String, Object> getCacheStats();
+}
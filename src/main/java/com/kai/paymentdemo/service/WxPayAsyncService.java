@@ -0,0 +1,21 @@
+package com.kai.paymentdemo.service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public interface WxPayAsyncService {
+
+    CompletableFuture<Map<String, Object>> nativePay(Long productId);
+
+    CompletableFuture<Void> cancelOrder(String orderNo);
+
+    CompletableFuture<String> queryOrder(String orderNo);
+
+    CompletableFuture<Void> refund(String orderNo, String reason);
+
+    CompletableFuture<String> queryRefund(String refundNo);
+
+    CompletableFuture<String> queryBill(String billDate, String type);
+
+    Map<String, Object> getStats();
+}
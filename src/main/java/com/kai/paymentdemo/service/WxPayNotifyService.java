@@ -0,0 +1,14 @@
+package com.kai.paymentdemo.service;
+
+import com.kai.paymentdemo.enums.wxpay.WxNotifyType;
+
+import java.util.Map;
+
+public interface WxPayNotifyService {
+
+    boolean isProcessed(String notifyId);
+
+    boolean submit(WxNotifyType notifyType, String notifyId, String body);
+
+    Map<String, Object> getStats();
+}
@@ -0,0 +1,17 @@
+package com.kai.paymentdemo.service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public interface WxPayReconcileService {
+
+    void confirmNoPayOrders();
+
+    CompletableFuture<Boolean> confirmOrder(String orderNo);
+
+    void confirmProcessingRefunds();
+
+    void acquirePermit() throws InterruptedException;
+
+    Map<String, Object> getStats();
+}
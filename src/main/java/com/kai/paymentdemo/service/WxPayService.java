@@ -2,11 +2,12 @@ package com.kai.paymentdemo.service;
 
 import java.security.GeneralSecurityException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface WxPayService {
     Map<String, Object> nativePay(Long productId) throws Exception;
 
-    void processOrder(Map<String, Object> bodyMap) throws GeneralSecurityException;
+    CompletableFuture<Boolean> processOrder(String body) throws GeneralSecurityException, InterruptedException;
 
     void cancelOrder(String orderNo) throws Exception;
 
@@ -18,13 +19,13 @@ public interface WxPayService {
 
     String queryRefund(String orderNo) throws Exception;
 
-    void checkRefundStatus(String refundNo) throws Exception;
+    String checkRefundStatus(String refundNo) throws Exception;
 
-    void processRefund(Map<String, Object> bodyMap) throws Exception;
+    void processRefund(String body) throws Exception;
 
     String queryBill(String billDate, String type) throws Exception;
 
-    String downloadBill(String billDate, String type) throws Exception;
-
     Map<String, Object> nativePayV2(Long productId, String remoteAddr) throws Exception;
+
+    CompletableFuture<Boolean> processOrderV2(String body) throws Exception;
 }
@@ -0,0 +1,669 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.kai.paymentdemo.entity.BillDiscrepancy;
+import com.kai.paymentdemo.entity.OrderInfo;
+import com.kai.paymentdemo.entity.PaymentInfo;
+import com.kai.paymentdemo.entity.RefundInfo;
+import com.kai.paymentdemo.enums.DiscrepancyType;
+import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.enums.wxpay.WxRefundStatus;
+import com.kai.paymentdemo.mapper.BillDiscrepancyMapper;
+import com.kai.paymentdemo.mapper.OrderInfoMapper;
+import com.kai.paymentdemo.mapper.PaymentInfoMapper;
+import com.kai.paymentdemo.mapper.RefundInfoMapper;
+import com.kai.paymentdemo.service.BillReconcileService;
+import com.kai.paymentdemo.service.WxBillService;
+import com.kai.paymentdemo.service.WxPayReconcileService;
+import com.kai.paymentdemo.service.WxPayService;
+import com.kai.paymentdemo.util.BillParser;
+import com.kai.paymentdemo.util.PartitionedSpill;
+import com.kai.paymentdemo.util.TradeBillRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * 对账：交易账单 与 本地的订单、支付记录、退款单 逐条核对
+ * <p>
+ * 两边都可能有数千万行，不能全部读入内存：
+ * 账单(多线程解析)和本地的数据(游标逐行读取) 都按订单号的哈希值分区写入临时文件，
+ * 再逐个分区 把本地的数据读入哈希表，用账单的记录逐条查找(分区哈希连接)，内存中最多只有一个分区的本地数据
+ * <p>
+ * 差异写入t_bill_discrepancy表；开启自动修复时，本地未支付的订单、未完成的退款单 调用查单接口核实
+ * <p>
+ * 本地数据的范围：账单日期前order-window-days天 到 账单日期后order-window-days天 创建的订单、支付记录、退款单；
+ * 账单中没有的支付 只检查账单日期当天创建的支付记录
+ */
+@Service
+@Slf4j
+public class BillReconcileServiceImpl implements BillReconcileService {
+
+    private static final String REPAIRED = "已核实";
+
+    private static final String REPAIR_FAILED = "核实失败";
+
+    //查单成功 但本地的状态没有变化：例如本地订单已经关闭，需要人工处理
+    private static final String REPAIR_UNCHANGED = "核实后未变化";
+
+    //写入差异时 每批的数量
+    private static final int INSERT_BATCH_SIZE = 500;
+
+    private static final byte BILL_TRADE = 'T';
+
+    private static final byte BILL_REFUND = 'R';
+
+    private static final byte LOCAL_ORDER = 'O';
+
+    private static final byte LOCAL_PAYMENT = 'P';
+
+    private static final byte LOCAL_REFUND = 'F';
+
+    @Resource
+    private WxBillService wxBillService;
+
+    @Resource
+    private WxPayService wxPayService;
+
+    @Resource
+    private WxPayReconcileService wxPayReconcileService;
+
+    @Resource
+    private OrderInfoMapper orderInfoMapper;
+
+    @Resource
+    private PaymentInfoMapper paymentInfoMapper;
+
+    @Resource
+    private RefundInfoMapper refundInfoMapper;
+
+    @Resource
+    private BillDiscrepancyMapper billDiscrepancyMapper;
+
+    @Resource
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    //分区数：每个分区的本地数据 需要能放入内存
+    @Value("${payment.bill-reconcile.partitions:64}")
+    private int partitions;
+
+    //读取账单日期前后多少天的本地数据
+    @Value("${payment.bill-reconcile.order-window-days:1}")
+    private int orderWindowDays;
+
+    //临时文件的目录，为空时使用系统的临时目录
+    @Value("${payment.bill-reconcile.spill-dir:}")
+    private String spillDir;
+
+    //是否自动修复：调用查单接口核实 本地未支付的订单、未完成的退款单
+    @Value("${payment.bill-reconcile.auto-repair:false}")
+    private boolean autoRepair;
+
+    //每次对账最多自动修复的数量
+    @Value("${payment.bill-reconcile.max-repairs:1000}")
+    private int maxRepairs;
+
+    private SqlSessionTemplate batchSession;
+
+    private TransactionTemplate transactionTemplate;
+
+    private TransactionTemplate readOnlyTemplate;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    //最近一次对账的统计
+    private volatile Map<String, Object> lastRun = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        batchSession = new SqlSessionTemplate(sqlSessionFactory, ExecutorType.BATCH);
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTemplate = new TransactionTemplate(transactionManager);
+        readOnlyTemplate.setReadOnly(true);
+    }
+
+    /**
+     * 对账：账单需要已经下载
+     *
+     * @param billDate 账单日期 yyyy-MM-dd
+     * @return 本次对账的统计
+     */
+    @Override
+    public Map<String, Object> reconcile(String billDate) throws Exception {
+
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("上一次对账尚未完成");
+        }
+
+        long start = System.currentTimeMillis();
+        Path dir = spillDir.isEmpty() ? Files.createTempDirectory("bill-reconcile-")
+                : Files.createTempDirectory(Files.createDirectories(Paths.get(spillDir)), "bill-reconcile-");
+        try {
+            //1. 账单分区写入临时文件：每个解析线程一组文件
+            List<PartitionedSpill> billSpills = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger threadIndex = new AtomicInteger();
+            BillParser.Result<BillSpiller> bill;
+            try {
+                bill = wxBillService.parseTradeBill(billDate, () -> {
+                    BillSpiller spiller = new BillSpiller(dir, "bill-" + threadIndex.getAndIncrement());
+                    billSpills.add(spiller.spill);
+                    return spiller;
+                });
+            } finally {
+                for (PartitionedSpill spill : billSpills) {
+                    spill.close();
+                }
+            }
+
+            //2. 本地数据分区写入临时文件
+            LocalDate date = LocalDate.parse(billDate);
+            long localRows = spillLocal(dir, date);
+
+            //3. 逐个分区关联
+            Map<String, Long> counts = new LinkedHashMap<>();
+            DiscrepancyWriter writer = new DiscrepancyWriter(billDate, counts);
+            transactionTemplate.execute(status ->
+                    billDiscrepancyMapper.delete(new QueryWrapper<BillDiscrepancy>().eq("bill_date", billDate)));
+            for (int partition = 0; partition < partitions; partition++) {
+                join(dir, partition, threadIndex.get(), writer);
+            }
+            writer.flush();
+
+            //4. 自动修复
+            int repaired = 0;
+            int repairUnchanged = 0;
+            int repairFailed = 0;
+            if (autoRepair) {
+                for (BillDiscrepancy discrepancy : writer.repairs) {
+                    String repairStatus = repair(discrepancy);
+                    if (REPAIRED.equals(repairStatus)) {
+                        repaired++;
+                    } else if (REPAIR_UNCHANGED.equals(repairStatus)) {
+                        repairUnchanged++;
+                    } else {
+                        repairFailed++;
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                }
+            }
+
+            long elapsed = System.currentTimeMillis() - start;
+            Map<String, Object> run = new HashMap<>();
+            run.put("billDate", billDate);
+            run.put("billRecords", bill.getRecords());
+            run.put("billSkipped", bill.getSkipped());
+            run.put("localRows", localRows);
+            run.put("partitions", partitions);
+            run.put("discrepancies", counts);
+            run.put("repaired", repaired);
+            run.put("repairUnchanged", repairUnchanged);
+            run.put("repairFailed", repairFailed);
+            run.put("elapsedMillis", elapsed);
+            lastRun = run;
+
+            log.info("对账完成 ===> {}，账单 {} 条，本地 {} 条，差异 {}，自动修复 {} 个，未变化 {} 个，失败 {} 个，耗时 {} ms",
+                    billDate, bill.getRecords(), localRows, counts, repaired, repairUnchanged, repairFailed, elapsed);
+            return run;
+        } finally {
+            running.set(false);
+            deleteDir(dir);
+        }
+    }
+
+    /**
+     * 当前节点是否已经完成该日期的对账
+     *
+     * @param billDate 账单日期
+     */
+    @Override
+    public boolean isReconciled(String billDate) {
+        return billDate.equals(lastRun.get("billDate"));
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("running", running.get());
+        stats.put("autoRepair", autoRepair);
+        stats.put("lastRun", lastRun);
+        return stats;
+    }
+
+    /**
+     * 游标逐行读取本地的订单、支付记录、退款单，按订单号分区写入临时文件
+     *
+     * @return 读取的行数
+     */
+    private long spillLocal(Path dir, LocalDate date) throws IOException {
+
+        Date begin = toDate(date.minusDays(orderWindowDays));
+        Date end = toDate(date.plusDays(1 + orderWindowDays));
+        long dayBegin = toDate(date).getTime();
+        long dayEnd = toDate(date.plusDays(1)).getTime();
+
+        try (PartitionedSpill spill = new PartitionedSpill(dir, "local", partitions)) {
+            readOnlyTemplate.execute(status -> {
+                try {
+                    try (Cursor<OrderInfo> cursor = orderInfoMapper.selectReconcileCursor(begin, end)) {
+                        for (OrderInfo orderInfo : cursor) {
+                            DataOutputStream out = spill.output(orderInfo.getOrderNo());
+                            out.writeByte(LOCAL_ORDER);
+                            out.writeUTF(orderInfo.getOrderNo());
+                            out.writeLong(orderInfo.getTotalFee() == null ? -1 : orderInfo.getTotalFee());
+                            out.writeUTF(nvl(orderInfo.getOrderStatus()));
+                        }
+                    }
+                    try (Cursor<PaymentInfo> cursor = paymentInfoMapper.selectReconcileCursor(begin, end)) {
+                        for (PaymentInfo paymentInfo : cursor) {
+                            long createTime = paymentInfo.getCreateTime() == null ? 0 : paymentInfo.getCreateTime().getTime();
+                            DataOutputStream out = spill.output(paymentInfo.getOrderNo());
+                            out.writeByte(LOCAL_PAYMENT);
+                            out.writeUTF(paymentInfo.getOrderNo());
+                            out.writeUTF(nvl(paymentInfo.getTransactionId()));
+                            out.writeLong(paymentInfo.getPayerTotal() == null ? -1 : paymentInfo.getPayerTotal());
+                            out.writeUTF(nvl(paymentInfo.getTradeState()));
+                            out.writeBoolean(createTime >= dayBegin && createTime < dayEnd);
+                        }
+                    }
+                    try (Cursor<RefundInfo> cursor = refundInfoMapper.selectReconcileCursor(begin, end)) {
+                        for (RefundInfo refundInfo : cursor) {
+                            DataOutputStream out = spill.output(refundInfo.getOrderNo());
+                            out.writeByte(LOCAL_REFUND);
+                            out.writeUTF(refundInfo.getOrderNo());
+                            out.writeUTF(nvl(refundInfo.getRefundNo()));
+                            out.writeLong(refundInfo.getRefund() == null ? -1 : refundInfo.getRefund());
+                            out.writeUTF(nvl(refundInfo.getRefundStatus()));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            return spill.getRecords();
+        }
+    }
+
+    /**
+     * 关联一个分区：本地数据读入哈希表，账单的记录逐条查找
+     */
+    private void join(Path dir, int partition, int billFiles, DiscrepancyWriter writer) throws IOException {
+
+        Map<String, LocalOrder> local = new HashMap<>();
+        try (DataInputStream in = PartitionedSpill.open(dir, "local", partition)) {
+            int tag;
+            while (in != null && (tag = in.read()) >= 0) {
+                LocalOrder order = local.computeIfAbsent(in.readUTF(), LocalOrder::new);
+                if (tag == LOCAL_ORDER) {
+                    order.totalFee = in.readLong();
+                    order.orderStatus = in.readUTF();
+                } else if (tag == LOCAL_PAYMENT) {
+                    order.transactionId = in.readUTF();
+                    order.payerTotal = in.readLong();
+                    order.tradeState = in.readUTF();
+                    order.paidInDay |= in.readBoolean();
+                } else {
+                    LocalRefund refund = new LocalRefund();
+                    refund.refundNo = in.readUTF();
+                    refund.refund = in.readLong();
+                    refund.refundStatus = in.readUTF();
+                    order.refunds.add(refund);
+                }
+            }
+        }
+
+        for (int i = 0; i < billFiles; i++) {
+            try (DataInputStream in = PartitionedSpill.open(dir, "bill-" + i, partition)) {
+                int tag;
+                while (in != null && (tag = in.read()) >= 0) {
+                    if (tag == BILL_TRADE) {
+                        joinTrade(in, local, writer);
+                    } else {
+                        joinRefund(in, local, writer);
+                    }
+                }
+            }
+        }
+
+        //本地当天的支付 账单中没有
+        for (LocalOrder order : local.values()) {
+            if (order.paidInDay && !order.billed) {
+                writer.add(discrepancy(DiscrepancyType.LOCAL_ONLY_PAYMENT, order.orderNo, null, order.transactionId,
+                        null, order.payerTotal, null, order.tradeState, "支付记录"));
+            }
+        }
+    }
+
+    private void joinTrade(DataInputStream in, Map<String, LocalOrder> local, DiscrepancyWriter writer) throws IOException {
+
+        String orderNo = in.readUTF();
+        String transactionId = in.readUTF();
+        String tradeState = in.readUTF();
+        long totalCents = in.readLong();
+        long settlementCents = in.readLong();
+
+        LocalOrder order = local.get(orderNo);
+        if (order == null || (order.orderStatus == null && order.transactionId == null)) {
+            writer.add(discrepancy(DiscrepancyType.MISSING_PAYMENT, orderNo, null, transactionId,
+                    totalCents, null, tradeState, null, "本地没有订单"));
+            return;
+        }
+        order.billed = true;
+
+        //订单在对账范围之前创建(本地只有支付记录)时 只核对支付记录
+        if (order.orderStatus != null) {
+            if (!isPaid(order.orderStatus) || order.transactionId == null) {
+                writer.add(discrepancy(DiscrepancyType.MISSING_PAYMENT, orderNo, null, transactionId,
+                        totalCents, order.totalFee, tradeState, order.orderStatus,
+                        order.transactionId == null ? "本地没有支付记录" : "订单状态"));
+            }
+            if (order.totalFee != totalCents) {
+                writer.add(discrepancy(DiscrepancyType.AMOUNT_MISMATCH, orderNo, null, transactionId,
+                        totalCents, order.totalFee, tradeState, order.orderStatus, "订单金额"));
+            }
+        }
+        //支付记录的金额为用户实际支付的金额，对应账单中的应结订单金额
+        if (order.transactionId != null && order.payerTotal != settlementCents) {
+            writer.add(discrepancy(DiscrepancyType.AMOUNT_MISMATCH, orderNo, null, transactionId,
+                    settlementCents, order.payerTotal, tradeState, order.tradeState, "支付金额"));
+        }
+    }
+
+    private void joinRefund(DataInputStream in, Map<String, LocalOrder> local, DiscrepancyWriter writer) throws IOException {
+
+        String orderNo = in.readUTF();
+        String refundNo = in.readUTF();
+        String transactionId = in.readUTF();
+        String refundStatus = in.readUTF();
+        long refundCents = in.readLong();
+
+        LocalOrder order = local.get(orderNo);
+        LocalRefund refund = order == null ? null : order.findRefund(refundNo);
+        if (refund == null) {
+            writer.add(discrepancy(DiscrepancyType.MISSING_REFUND, orderNo, refundNo, transactionId,
+                    refundCents, null, refundStatus, null, "本地没有退款单"));
+            return;
+        }
+
+        if (refund.refund != refundCents) {
+            writer.add(discrepancy(DiscrepancyType.AMOUNT_MISMATCH, orderNo, refundNo, transactionId,
+                    refundCents, refund.refund, refundStatus, refund.refundStatus, "退款金额"));
+        }
+        if (WxRefundStatus.SUCCESS.getType().equals(refundStatus)
+                && (!WxRefundStatus.SUCCESS.getType().equals(refund.refundStatus)
+                || OrderStatus.REFUND_PROCESSING.getType().equals(order.orderStatus))) {
+            writer.add(discrepancy(DiscrepancyType.REFUND_STUCK, orderNo, refundNo, transactionId,
+                    refundCents, refund.refund, refundStatus, refund.refundStatus, order.orderStatus));
+        }
+    }
+
+    /**
+     * 调用查单接口核实：更新本地的订单、退款单状态
+     * 与定时查单共用限流器；核实后重新读取本地的状态，状态确实已更新 才记为已核实
+     *
+     * @return 修复的结果
+     */
+    private String repair(BillDiscrepancy discrepancy) {
+        String repairStatus;
+        try {
+            wxPayReconcileService.acquirePermit();
+            if (DiscrepancyType.REFUND_STUCK.getType().equals(discrepancy.getDiscrepancyType())) {
+                wxPayService.checkRefundStatus(discrepancy.getRefundNo());
+                RefundInfo refundInfo = refundInfoMapper.selectOne(
+                        new QueryWrapper<RefundInfo>().eq("refund_no", discrepancy.getRefundNo()));
+                repairStatus = refundInfo != null && refundInfo.getRefundStatus() != null
+                        && !WxRefundStatus.PROCESSING.getType().equals(refundInfo.getRefundStatus())
+                        ? REPAIRED : REPAIR_UNCHANGED;
+            } else {
+                wxPayService.checkOrderStatus(discrepancy.getOrderNo());
+                OrderInfo orderInfo = orderInfoMapper.selectOne(
+                        new QueryWrapper<OrderInfo>().select("order_status").eq("order_no", discrepancy.getOrderNo()));
+                repairStatus = orderInfo != null && isPaid(orderInfo.getOrderStatus()) ? REPAIRED : REPAIR_UNCHANGED;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            repairStatus = REPAIR_FAILED;
+        } catch (Exception e) {
+            log.error("对账自动修复失败 ===> {}", discrepancy.getOrderNo(), e);
+            repairStatus = REPAIR_FAILED;
+        }
+        if (REPAIR_UNCHANGED.equals(repairStatus)) {
+            log.warn("对账自动修复后 本地状态未变化，需要人工处理 ===> {}，{}", discrepancy.getOrderNo(), discrepancy.getDiscrepancyType());
+        }
+
+        BillDiscrepancy update = new BillDiscrepancy();
+        update.setId(discrepancy.getId());
+        update.setRepairStatus(repairStatus);
+        billDiscrepancyMapper.updateById(update);
+        return repairStatus;
+    }
+
+    private static boolean isPaid(String orderStatus) {
+        return OrderStatus.SUCCESS.getType().equals(orderStatus)
+                || OrderStatus.REFUND_PROCESSING.getType().equals(orderStatus)
+                || OrderStatus.REFUND_SUCCESS.getType().equals(orderStatus)
+                || OrderStatus.REFUND_ABNORMAL.getType().equals(orderStatus);
+    }
+
+    private static BillDiscrepancy discrepancy(DiscrepancyType type, String orderNo, String refundNo, String transactionId,
+                                               Long billAmount, Long localAmount, String billStatus, String localStatus,
+                                               String remark) {
+        BillDiscrepancy discrepancy = new BillDiscrepancy();
+        discrepancy.setDiscrepancyType(type.getType());
+        discrepancy.setOrderNo(orderNo);
+        discrepancy.setRefundNo(refundNo);
+        discrepancy.setTransactionId(emptyToNull(transactionId));
+        discrepancy.setBillAmount(billAmount);
+        discrepancy.setLocalAmount(localAmount == null || localAmount < 0 ? null : localAmount);
+        discrepancy.setBillStatus(emptyToNull(billStatus));
+        discrepancy.setLocalStatus(emptyToNull(localStatus));
+        discrepancy.setRemark(remark);
+        return discrepancy;
+    }
+
+    private static String nvl(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static Date toDate(LocalDate date) {
+        return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    private static void deleteDir(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    log.warn("删除对账临时文件失败 ===> {}", file);
+                }
+            });
+        } catch (IOException e) {
+            log.warn("删除对账临时文件失败 ===> {}", dir);
+        }
+    }
+
+    /**
+     * 账单解析线程的处理器：记录按订单号分区写入临时文件
+     */
+    private class BillSpiller implements Consumer<TradeBillRecord> {
+
+        private final PartitionedSpill spill;
+
+        BillSpiller(Path dir, String prefix) {
+            try {
+                spill = new PartitionedSpill(dir, prefix, partitions);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void accept(TradeBillRecord record) {
+            String orderNo = record.getOrderNo();
+            try {
+                DataOutputStream out = spill.output(orderNo);
+                if (record.isRefund()) {
+                    out.writeByte(BILL_REFUND);
+                    out.writeUTF(orderNo);
+                    out.writeUTF(nvl(record.getRefundNo()));
+                    out.writeUTF(nvl(record.getTransactionId()));
+                    out.writeUTF(nvl(record.getRefundStatus()));
+                    out.writeLong(record.getRefundCents());
+                } else {
+                    out.writeByte(BILL_TRADE);
+                    out.writeUTF(orderNo);
+                    out.writeUTF(nvl(record.getTransactionId()));
+                    out.writeUTF(nvl(record.getTradeState()));
+                    out.writeLong(record.getTotalCents());
+                    out.writeLong(record.getSettlementTotalCents());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 差异分批写入数据库，并记录需要自动修复的差异
+     */
+    private class DiscrepancyWriter {
+
+        private final String billDate;
+
+        //差异类型 -> 数量
+        private final Map<String, Long> counts;
+
+        private final List<BillDiscrepancy> batch = new ArrayList<>();
+
+        private final List<BillDiscrepancy> repairs = new ArrayList<>();
+
+        DiscrepancyWriter(String billDate, Map<String, Long> counts) {
+            this.billDate = billDate;
+            this.counts = counts;
+        }
+
+        void add(BillDiscrepancy discrepancy) {
+            discrepancy.setBillDate(billDate);
+            counts.merge(discrepancy.getDiscrepancyType(), 1L, Long::sum);
+            batch.add(discrepancy);
+            if (autoRepair && repairs.size() < maxRepairs && isRepairable(discrepancy)) {
+                repairs.add(discrepancy);
+            }
+            if (batch.size() >= INSERT_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            transactionTemplate.execute(status -> {
+                BillDiscrepancyMapper mapper = batchSession.getMapper(BillDiscrepancyMapper.class);
+                for (BillDiscrepancy discrepancy : batch) {
+                    mapper.insert(discrepancy);
+                }
+                batchSession.flushStatements();
+                return null;
+            });
+            batch.clear();
+        }
+
+        private boolean isRepairable(BillDiscrepancy discrepancy) {
+            //本地没有订单的 无法通过查单修复
+            return DiscrepancyType.REFUND_STUCK.getType().equals(discrepancy.getDiscrepancyType())
+                    || (DiscrepancyType.MISSING_PAYMENT.getType().equals(discrepancy.getDiscrepancyType())
+                    && discrepancy.getLocalStatus() != null);
+        }
+    }
+
+    /**
+     * 一个订单的本地数据
+     */
+    private static class LocalOrder {
+
+        private final String orderNo;
+
+        private String orderStatus;
+
+        private long totalFee = -1;
+
+        private String transactionId;
+
+        private long payerTotal = -1;
+
+        private String tradeState;
+
+        private boolean paidInDay;
+
+        //账单中是否有该订单的支付
+        private boolean billed;
+
+        private final List<LocalRefund> refunds = new ArrayList<>(0);
+
+        LocalOrder(String orderNo) {
+            this.orderNo = orderNo;
+        }
+
+        LocalRefund findRefund(String refundNo) {
+            for (LocalRefund refund : refunds) {
+                if (refund.refundNo.equals(refundNo)) {
+                    return refund;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 一个退款单的本地数据
+     */
+    private static class LocalRefund {
+
+        private String refundNo;
+
+        private long refund;
+
+        private String refundStatus;
+    }
+}
@@ -0,0 +1,188 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.kai.paymentdemo.entity.OrderInfo;
+import com.kai.paymentdemo.service.OrderExpiryService;
+import com.kai.paymentdemo.service.OrderInfoService;
+import com.kai.paymentdemo.service.TaskLeaseService;
+import com.kai.paymentdemo.service.WxPayReconcileService;
+import com.kai.paymentdemo.util.TimingWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 订单超时核实
+ * <p>
+ * 创建订单时 把订单的超时时间放入时间轮；到期时 由定时查单的线程池 核实订单状态(已支付则更新，未支付则关单)
+ * 启动时 按(create_time, id)游标分批读取未支付的订单 重建时间轮(只包含分片给当前节点的订单)；
+ * 新创建的订单 由创建它的节点负责到期核实，不受分片的限制
+ * 定时查单的数据库扫描 只作为低频的兜底
+ */
+@Service
+@Slf4j
+public class OrderExpiryServiceImpl implements OrderExpiryService {
+
+    @Resource
+    private OrderInfoService orderInfoService;
+
+    @Resource
+    private WxPayReconcileService wxPayReconcileService;
+
+    @Resource
+    private TaskLeaseService taskLeaseService;
+
+    //订单创建后 超过minutes分钟未支付 进行核实
+    @Value("${payment.reconcile.order-timeout-minutes:1}")
+    private int orderTimeoutMinutes;
+
+    //时间轮每个格子的时间跨度(毫秒)：到期时间的精度
+    @Value("${payment.order-expiry.tick-millis:100}")
+    private long tickMillis;
+
+    //时间轮每层的格子数
+    @Value("${payment.order-expiry.wheel-size:512}")
+    private int wheelSize;
+
+    //核实未完成时 第一次重新核实的等待时间(毫秒)，之后每次翻倍
+    @Value("${payment.order-expiry.retry-backoff-millis:1000}")
+    private long retryBackoffMillis;
+
+    //两次重新核实之间的最长等待时间(毫秒)
+    @Value("${payment.order-expiry.max-retry-backoff-millis:60000}")
+    private long maxRetryBackoffMillis;
+
+    //最多重新核实的次数：之后由定时查单的兜底扫描核实
+    @Value("${payment.order-expiry.max-retries:10}")
+    private int maxRetries;
+
+    //启动时重建 每批读取的订单数
+    @Value("${payment.reconcile.batch-size:200}")
+    private int batchSize;
+
+    private TimingWheel<String> timingWheel;
+
+    private final LongAdder scheduled = new LongAdder();
+
+    private final LongAdder expired = new LongAdder();
+
+    private final LongAdder retried = new LongAdder();
+
+    private final LongAdder givenUp = new LongAdder();
+
+    //订单号 -> 已经重新核实的次数
+    private final Map<String, Integer> retries = new ConcurrentHashMap<>();
+
+    private volatile long rebuiltOrders;
+
+    private volatile long rebuildMillis;
+
+    @PostConstruct
+    public void init() {
+        //3层：tickMillis=100、wheelSize=512时 覆盖约155天，更远的任务放入溢出列表
+        timingWheel = new TimingWheel<>("order-expiry", tickMillis, wheelSize, 3, this::onExpired);
+        timingWheel.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        timingWheel.stop();
+    }
+
+    /**
+     * 启动时重建：为所有未支付的订单 重新安排超时核实
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+
+        long start = System.nanoTime();
+        Date createdBefore = new Date();
+        long count = 0;
+
+        Date afterCreateTime = null;
+        String afterId = null;
+        while (true) {
+            List<OrderInfo> batch = orderInfoService.getNoPayOrderPage(createdBefore, afterCreateTime, afterId, batchSize);
+            for (OrderInfo orderInfo : batch) {
+                //其他节点创建、并由其他节点核实的订单：不放入当前节点的时间轮
+                if (taskLeaseService.owns(orderInfo.getOrderNo())) {
+                    schedule(orderInfo.getOrderNo(), orderInfo.getCreateTime());
+                    count++;
+                }
+            }
+            if (batch.size() < batchSize) {
+                break;
+            }
+            OrderInfo last = batch.get(batch.size() - 1);
+            afterCreateTime = last.getCreateTime();
+            afterId = last.getId();
+        }
+
+        rebuiltOrders = count;
+        rebuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("重建订单超时时间轮：{} 个当前节点负责的未支付订单，耗时 {} ms", count, rebuildMillis);
+    }
+
+    /**
+     * 安排订单的超时核实
+     *
+     * @param orderNo
+     * @param createTime 订单的创建时间
+     */
+    @Override
+    public void schedule(String orderNo, Date createTime) {
+        long created = createTime == null ? System.currentTimeMillis() : createTime.getTime();
+        timingWheel.schedule(orderNo, created + TimeUnit.MINUTES.toMillis(orderTimeoutMinutes));
+        scheduled.increment();
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pending", timingWheel.size());
+        stats.put("scheduled", scheduled.sum());
+        stats.put("expired", expired.sum());
+        stats.put("retrying", retries.size());
+        stats.put("retried", retried.sum());
+        stats.put("givenUp", givenUp.sum());
+        stats.put("rebuiltOrders", rebuiltOrders);
+        stats.put("rebuildMillis", rebuildMillis);
+        return stats;
+    }
+
+    /**
+     * 订单到期：交给定时查单的线程池核实，不阻塞时间轮的线程
+     * 核实未完成(线程池已满、核实失败、微信端仍是支付中)时 退避后重新放入时间轮
+     */
+    private void onExpired(String orderNo) {
+        expired.increment();
+        wxPayReconcileService.confirmOrder(orderNo).whenComplete((settled, e) -> {
+            if (e == null && settled) {
+                retries.remove(orderNo);
+                return;
+            }
+            int attempts = retries.merge(orderNo, 1, Integer::sum);
+            if (attempts > maxRetries) {
+                retries.remove(orderNo);
+                givenUp.increment();
+                log.warn("订单超时核实 重试 {} 次仍未完成，由兜底扫描核实 ===> {}", maxRetries, orderNo);
+                return;
+            }
+            long backoff = Math.min(maxRetryBackoffMillis, retryBackoffMillis << Math.min(attempts - 1, 20));
+            timingWheel.schedule(orderNo, System.currentTimeMillis() + backoff);
+            retried.increment();
+        });
+    }
+}
@@ -1,28 +1,86 @@
 package com.kai.paymentdemo.service.impl;
 
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.kai.paymentdemo.entity.OrderInfo;
 import com.kai.paymentdemo.entity.Product;
 import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.event.OrderStatusChangedEvent;
 import com.kai.paymentdemo.mapper.OrderInfoMapper;
-import com.kai.paymentdemo.mapper.ProductMapper;
+import com.kai.paymentdemo.service.OrderExpiryService;
 import com.kai.paymentdemo.service.OrderInfoService;
+import com.kai.paymentdemo.service.ProductService;
+import com.kai.paymentdemo.util.ExpiringLruCache;
 import com.kai.paymentdemo.util.OrderNoUtils;
+import com.kai.paymentdemo.vo.OrderPage;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.apache.ibatis.cursor.Cursor;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo> implements OrderInfoService {
 
+    //不会再变化的订单状态：可以长时间缓存；支付成功的订单 可能由其他节点发起退款
+    private static final Set<String> TERMINAL_STATUSES = new HashSet<>(Arrays.asList(
+            OrderStatus.CLOSED.getType(), OrderStatus.CANCEL.getType(), OrderStatus.REFUND_SUCCESS.getType()));
+
+    @Resource
+    private ProductService productService;
+
     @Resource
-    private ProductMapper productMapper;
+    private OrderExpiryService orderExpiryService;
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    //订单状态缓存的最大数量
+    @Value("${payment.order-status-cache.max-size:100000}")
+    private int statusCacheMaxSize;
+
+    //还会变化的状态(未支付、支付成功、退款中、退款异常)的缓存时间(毫秒)：其他节点更新订单状态时 最多延迟这么久
+    @Value("${payment.order-status-cache.active-ttl-millis:2000}")
+    private long activeTtlMillis;
+
+    //最终状态(已关闭、已取消、已退款)的缓存时间(分钟)
+    @Value("${payment.order-status-cache.final-ttl-minutes:120}")
+    private long finalTtlMinutes;
+
+    //订单列表每页的最大数量
+    @Value("${payment.order-list.max-page-size:100}")
+    private int maxPageSize;
+
+    //订单状态缓存：前端支付页面轮询订单状态时 直接从内存中返回
+    private ExpiringLruCache<String, String> orderStatusCache;
+
+    @PostConstruct
+    public void init() {
+        orderStatusCache = new ExpiringLruCache<>(statusCacheMaxSize, TimeUnit.MINUTES.toMillis(finalTtlMinutes));
+    }
 
     /*@Resource
     private OrderInfoMapper orderInfoMapper;*/
@@ -40,8 +98,8 @@ public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo
             return orderInfo;
         }
 
-        //获取商品信息
-        Product product = productMapper.selectById(productId);
+        //获取商品信息(缓存)
+        Product product = productService.getCachedProduct(productId);
 
         //生成订单
         orderInfo = new OrderInfo();
@@ -51,6 +109,10 @@ public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo
         orderInfo.setTotalFee(product.getPrice()); //分
         orderInfo.setOrderStatus(OrderStatus.NOTPAY.getType());
         baseMapper.insert(orderInfo);
+        eventPublisher.publishEvent(new OrderStatusChangedEvent(orderInfo.getOrderNo(), OrderStatus.NOTPAY));
+
+        //安排订单的超时核实
+        orderExpiryService.schedule(orderInfo.getOrderNo(), new Date());
 
         return orderInfo;
     }
@@ -76,15 +138,71 @@ public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo
     }
 
     /**
-     * 查询订单列表，并倒序查询
+     * 查询订单列表，按创建时间倒序分页
+     * 游标分页：游标为上一页最后一个订单的 创建时间_id，下一页从它之后开始查询(create_time, id) < 游标，
+     * 不使用OFFSET，翻到多少页都只扫描一页的索引行
      *
+     * @param cursor      上一页返回的游标，查询第一页时为null
+     * @param size        每页的数量
+     * @param orderStatus 订单状态，null表示不限
+     * @param productId   商品id，null表示不限
      * @return
      */
     @Override
-    public List<OrderInfo> listOrderByCreateTimeDesc() {
+    public OrderPage getOrderPage(String cursor, int size, String orderStatus, Long productId) {
 
-        QueryWrapper<OrderInfo> queryWrapper = new QueryWrapper<OrderInfo>().orderByDesc("create_time");
-        return baseMapper.selectList(queryWrapper);
+        size = Math.max(1, Math.min(size, maxPageSize));
+
+        QueryWrapper<OrderInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.eq(orderStatus != null, "order_status", orderStatus);
+        queryWrapper.eq(productId != null, "product_id", productId);
+        if (cursor != null) {
+            int separator = cursor.indexOf('_');
+            if (separator < 0) {
+                throw new IllegalArgumentException("无效的游标：" + cursor);
+            }
+            Date createTime;
+            long id;
+            try {
+                createTime = new Date(Long.parseLong(cursor.substring(0, separator)));
+                id = Long.parseLong(cursor.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("无效的游标：" + cursor);
+            }
+            //(create_time, id) < (createTime, id)
+            queryWrapper.and(w -> w.lt("create_time", createTime)
+                    .or(o -> o.eq("create_time", createTime).lt("id", id)));
+        }
+        queryWrapper.orderByDesc("create_time", "id");
+
+        //多查询一条：判断是否还有下一页；不查询总数
+        List<OrderInfo> list = baseMapper.selectPage(new Page<>(1, size + 1, false), queryWrapper).getRecords();
+        String nextCursor = null;
+        if (list.size() > size) {
+            list = list.subList(0, size);
+            OrderInfo last = list.get(size - 1);
+            nextCursor = last.getCreateTime().getTime() + "_" + last.getId();
+        }
+        return new OrderPage(list, nextCursor);
+    }
+
+    /**
+     * 导出订单：按创建时间倒序 逐行读取，交给consumer处理(写入响应)
+     * 内存占用与订单数量无关；读取期间一直占用一个数据库连接
+     *
+     * @param orderStatus 订单状态，null表示不限
+     * @param productId   商品id，null表示不限
+     * @param consumer
+     */
+    @Override
+    @Transactional(readOnly = true) //游标只能在打开它的SqlSession中读取
+    public void exportOrders(String orderStatus, Long productId, Consumer<OrderInfo> consumer) {
+
+        try (Cursor<OrderInfo> cursor = baseMapper.selectOrderCursor(orderStatus, productId)) {
+            cursor.forEach(consumer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -107,10 +225,41 @@ public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo
         orderInfo.setOrderStatus(orderStatus.getType());
 
         baseMapper.update(orderInfo, queryWrapper);
+
+        eventPublisher.publishEvent(new OrderStatusChangedEvent(orderNo, orderStatus));
+    }
+
+    /**
+     * 根据订单号 有条件地更新订单状态(CAS)
+     * 只有当前状态为expected时才会更新为next，一条UPDATE语句完成 检查+更新
+     * 多个通知/多个节点 同时处理同一订单时，只有一个能更新成功
+     *
+     * @param orderNo
+     * @param expected 期望的当前状态
+     * @param next     要更新成的状态
+     * @return 是否由本次调用完成了状态的变更
+     */
+    @Override
+    public boolean transitionStatus(String orderNo, OrderStatus expected, OrderStatus next) {
+
+        //UPDATE t_order_info SET order_status = next WHERE order_no = ? AND order_status = expected
+        QueryWrapper<OrderInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.eq("order_no", orderNo);
+        queryWrapper.eq("order_status", expected.getType());
+
+        OrderInfo orderInfo = new OrderInfo();
+        orderInfo.setOrderStatus(next.getType());
+
+        boolean updated = baseMapper.update(orderInfo, queryWrapper) > 0;
+        if (updated) {
+            log.info("更新订单状态 ===> {} -> {}", expected.getType(), next.getType());
+            eventPublisher.publishEvent(new OrderStatusChangedEvent(orderNo, next));
+        }
+        return updated;
     }
 
     /**
-     * 根据订单号获取订单状态
+     * 根据订单号获取订单状态：先查缓存，缓存中没有再查数据库
      *
      * @param orderNo
      * @return
@@ -118,6 +267,11 @@ public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo
     @Override
     public String getOrderStatus(String orderNo) {
 
+        String orderStatus = orderStatusCache.get(orderNo);
+        if (orderStatus != null) {
+            return orderStatus;
+        }
+
         QueryWrapper<OrderInfo> queryWrapper = new QueryWrapper<>();
         queryWrapper.eq("order_no", orderNo);
         OrderInfo orderInfo = baseMapper.selectOne(queryWrapper);
@@ -125,9 +279,57 @@ public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo
         if (orderInfo == null) {
             return null;
         }
+        cacheOrderStatus(orderNo, orderInfo.getOrderStatus());
         return orderInfo.getOrderStatus();
     }
 
+    /**
+     * 订单状态变更的事务提交后 更新缓存
+     * 没有事务时(fallbackExecution) 立即更新
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onOrderStatusChanged(OrderStatusChangedEvent event) {
+        cacheOrderStatus(event.getOrderNo(), event.getOrderStatus().getType());
+    }
+
+    @Override
+    public Map<String, Object> getStatusCacheStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("size", orderStatusCache.size());
+        stats.put("hits", orderStatusCache.getHitCount());
+        stats.put("misses", orderStatusCache.getMissCount());
+        stats.put("hitRate", orderStatusCache.getHitRate());
+        return stats;
+    }
+
+    /**
+     * 批量查询订单的状态：只返回状态在statuses中的订单，只查询订单号和订单状态
+     *
+     * @param orderNos
+     * @param statuses
+     * @return
+     */
+    @Override
+    public List<OrderInfo> listOrderStatusByOrderNos(Collection<String> orderNos, Collection<OrderStatus> statuses) {
+
+        QueryWrapper<OrderInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.select("order_no", "order_status");
+        queryWrapper.in("order_no", orderNos);
+        queryWrapper.in("order_status", statuses.stream().map(OrderStatus::getType).collect(Collectors.toList()));
+        return baseMapper.selectList(queryWrapper);
+    }
+
+    /**
+     * 还会变化的状态 可能被其他节点更新(支付通知、定时查单、发起退款、退款通知)，只缓存很短的时间；
+     * 最终状态(已关闭、已取消、已退款)不会再变化，缓存final-ttl-minutes分钟
+     */
+    private void cacheOrderStatus(String orderNo, String orderStatus) {
+        long ttlMillis = TERMINAL_STATUSES.contains(orderStatus)
+                ? TimeUnit.MINUTES.toMillis(finalTtlMinutes)
+                : activeTtlMillis;
+        orderStatusCache.put(orderNo, orderStatus, ttlMillis);
+    }
+
     /**
      * 查询创建超过minutes分钟并且未支付的订单
      *
@@ -148,6 +350,49 @@ public class OrderInfoServiceImpl extends ServiceImpl<OrderInfoMapper, OrderInfo
         return orderInfoList;
     }
 
+    /**
+     * 分批查询 createdBefore之前创建并且未支付的订单
+     * 按(create_time, id)排序，从上一批的最后一条记录之后开始查询(游标)，不使用OFFSET
+     *
+     * @param createdBefore   只查询在此时间之前创建的订单
+     * @param afterCreateTime 上一批最后一条记录的创建时间，第一批传null
+     * @param afterId         上一批最后一条记录的id
+     * @param limit           每批的数量
+     * @return
+     */
+    @Override
+    public List<OrderInfo> getNoPayOrderPage(Date createdBefore, Date afterCreateTime, String afterId, int limit) {
+
+        QueryWrapper<OrderInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.eq("order_status", OrderStatus.NOTPAY.getType());
+        queryWrapper.le("create_time", createdBefore);
+        if (afterCreateTime != null) {
+            //(create_time, id) > (afterCreateTime, afterId)
+            queryWrapper.and(w -> w.gt("create_time", afterCreateTime)
+                    .or(o -> o.eq("create_time", afterCreateTime).gt("id", afterId)));
+        }
+        queryWrapper.orderByAsc("create_time", "id");
+        queryWrapper.last("LIMIT " + limit);
+
+        return baseMapper.selectList(queryWrapper);
+    }
+
+    /**
+     * 统计createdBefore之前创建并且未支付的订单数量
+     *
+     * @param createdBefore
+     * @return
+     */
+    @Override
+    public int countNoPayOrder(Date createdBefore) {
+
+        QueryWrapper<OrderInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.eq("order_status", OrderStatus.NOTPAY.getType());
+        queryWrapper.le("create_time", createdBefore);
+
+        return baseMapper.selectCount(queryWrapper);
+    }
+
     /**
      * 根据订单号获取订单
      *
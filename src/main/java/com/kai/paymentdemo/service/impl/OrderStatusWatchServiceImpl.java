@@ -0,0 +1,231 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.kai.paymentdemo.entity.OrderInfo;
+import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.event.OrderStatusChangedEvent;
+import com.kai.paymentdemo.service.OrderInfoService;
+import com.kai.paymentdemo.service.OrderStatusWatchService;
+import com.kai.paymentdemo.util.ExpiringLruCache;
+import com.kai.paymentdemo.vo.R;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 等待订单支付完成(长轮询)
+ * <p>
+ * 前端的请求以DeferredResult的形式 按订单号登记，不占用servlet线程；
+ * 订单变为 支付成功/已关闭/已取消 的事务提交后 立即完成该订单的所有请求，超时则返回当前的状态
+ * 其他节点更新的订单状态 由定时的批量查询发现(每次一条SQL 查询所有等待中的订单)
+ * <p>
+ * 登记和移除请求 都在订单号的compute中逐个进行：通知时不会整体移除集合，不会丢失同时登记的请求；
+ * 通知前先记录事件中的最终状态，登记后检查该状态：不依赖订单状态缓存是否已经更新
+ */
+@Service
+@Slf4j
+public class OrderStatusWatchServiceImpl implements OrderStatusWatchService {
+
+    //前端等待的最终状态
+    private static final Set<OrderStatus> FINAL_STATUSES = EnumSet.of(OrderStatus.SUCCESS, OrderStatus.CLOSED, OrderStatus.CANCEL);
+
+    //批量查询时 每条SQL的订单数
+    private static final int SWEEP_BATCH_SIZE = 500;
+
+    @Resource
+    private OrderInfoService orderInfoService;
+
+    //同时等待的最大请求数：每个等待的请求占用一个连接，实际上限还受server.tomcat.max-connections限制
+    @Value("${payment.order-watch.max-waiters:50000}")
+    private int maxWaiters;
+
+    //每个请求的最长等待时间(毫秒)：应小于前端、网关的请求超时时间
+    @Value("${payment.order-watch.max-timeout-millis:30000}")
+    private long maxTimeoutMillis;
+
+    //批量查询其他节点更新的订单状态 的间隔(毫秒)
+    @Value("${payment.order-watch.sweep-interval-millis:3000}")
+    private long sweepIntervalMillis;
+
+    //订单号 -> 等待该订单的请求
+    private final Map<String, Set<DeferredResult<R>>> waiters = new ConcurrentHashMap<>();
+
+    private final AtomicInteger waiterCount = new AtomicInteger();
+
+    //最近变为最终状态的订单：订单号 -> 订单状态，覆盖登记请求与通知同时发生的时间窗口
+    private ExpiringLruCache<String, String> finishedStatuses;
+
+    private final LongAdder notified = new LongAdder();
+
+    private final LongAdder timedOut = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void init() {
+        finishedStatuses = new ExpiringLruCache<>(maxWaiters, sweepIntervalMillis);
+        sweeper = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("order-watch-"));
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        sweeper.shutdownNow();
+    }
+
+    /**
+     * 等待订单变为最终状态
+     *
+     * @param orderNo
+     * @param timeoutMillis 最长等待时间(不超过max-timeout-millis)，超时返回当前的状态
+     * @return
+     */
+    @Override
+    public DeferredResult<R> watch(String orderNo, long timeoutMillis) {
+
+        DeferredResult<R> result = new DeferredResult<>(Math.max(1L, Math.min(timeoutMillis, maxTimeoutMillis)));
+
+        //等待的请求过多：直接返回当前的状态，由前端继续轮询
+        if (waiterCount.incrementAndGet() > maxWaiters) {
+            waiterCount.decrementAndGet();
+            rejected.increment();
+            result.setResult(statusResult(orderInfoService.getOrderStatus(orderNo)));
+            return result;
+        }
+
+        result.onTimeout(() -> {
+            timedOut.increment();
+            result.setResult(statusResult(orderInfoService.getOrderStatus(orderNo)));
+        });
+        result.onCompletion(() -> unregister(orderNo, result));
+
+        //先登记再检查当前状态：检查之后发生的状态变更 一定会通知到这个请求
+        waiters.compute(orderNo, (k, results) -> {
+            if (results == null) {
+                results = ConcurrentHashMap.newKeySet();
+            }
+            results.add(result);
+            return results;
+        });
+        //登记前已经通知过的状态变更：事件中的状态先于缓存可见
+        String orderStatus = finishedStatuses.get(orderNo);
+        if (orderStatus == null) {
+            orderStatus = orderInfoService.getOrderStatus(orderNo);
+        }
+        if (isFinal(orderStatus)) {
+            result.setResult(statusResult(orderStatus));
+        }
+        return result;
+    }
+
+    /**
+     * 订单状态的响应：与查询本地订单状态接口一致
+     * 支付成功 code=0；已关闭、已取消 code=102；其他 code=101
+     */
+    @Override
+    public R statusResult(String orderStatus) {
+        if (OrderStatus.SUCCESS.getType().equals(orderStatus)) {
+            return R.ok().setMessage("支付成功").data("orderStatus", orderStatus);
+        }
+        if (isFinal(orderStatus)) {
+            return R.ok().setCode(102).setMessage(orderStatus).data("orderStatus", orderStatus);
+        }
+        return R.ok().setCode(101).setMessage("支付中......").data("orderStatus", orderStatus);
+    }
+
+    /**
+     * 订单状态变更的事务提交后 通知等待该订单的请求
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onOrderStatusChanged(OrderStatusChangedEvent event) {
+        if (FINAL_STATUSES.contains(event.getOrderStatus())) {
+            complete(event.getOrderNo(), event.getOrderStatus().getType());
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("waiters", waiterCount.get());
+        stats.put("orders", waiters.size());
+        stats.put("maxWaiters", maxWaiters);
+        stats.put("notified", notified.sum());
+        stats.put("timedOut", timedOut.sum());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    private void complete(String orderNo, String orderStatus) {
+        //先记录状态再通知：之后登记的请求 检查时一定能看到这个状态
+        finishedStatuses.put(orderNo, orderStatus);
+        Set<DeferredResult<R>> results = waiters.get(orderNo);
+        if (results == null) {
+            return;
+        }
+        R r = statusResult(orderStatus);
+        for (DeferredResult<R> result : results) {
+            if (result.setResult(r)) {
+                notified.increment();
+            }
+            remove(orderNo, result);
+        }
+    }
+
+    private void unregister(String orderNo, DeferredResult<R> result) {
+        waiterCount.decrementAndGet();
+        remove(orderNo, result);
+    }
+
+    /**
+     * 逐个移除请求：集合为空时才移除订单号
+     */
+    private void remove(String orderNo, DeferredResult<R> result) {
+        waiters.computeIfPresent(orderNo, (k, results) -> {
+            results.remove(result);
+            return results.isEmpty() ? null : results;
+        });
+    }
+
+    /**
+     * 批量查询等待中的订单：发现其他节点更新的最终状态
+     */
+    private void sweep() {
+        try {
+            List<String> orderNos = new ArrayList<>(waiters.keySet());
+            for (int from = 0; from < orderNos.size(); from += SWEEP_BATCH_SIZE) {
+                List<String> batch = orderNos.subList(from, Math.min(from + SWEEP_BATCH_SIZE, orderNos.size()));
+                List<OrderInfo> finished = orderInfoService.listOrderStatusByOrderNos(batch, FINAL_STATUSES);
+                for (OrderInfo orderInfo : finished) {
+                    complete(orderInfo.getOrderNo(), orderInfo.getOrderStatus());
+                }
+            }
+        } catch (Exception e) {
+            log.error("批量查询等待中的订单状态失败", e);
+        }
+    }
+
+    private boolean isFinal(String orderStatus) {
+        return FINAL_STATUSES.stream().anyMatch(s -> s.getType().equals(orderStatus));
+    }
+}
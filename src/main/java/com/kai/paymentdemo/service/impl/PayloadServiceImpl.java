@@ -0,0 +1,69 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.kai.paymentdemo.entity.Payload;
+import com.kai.paymentdemo.enums.PayloadType;
+import com.kai.paymentdemo.mapper.PayloadMapper;
+import com.kai.paymentdemo.service.PayloadService;
+import com.kai.paymentdemo.util.PayloadCodec;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 原始报文的存储
+ * <p>
+ * 微信的通知、响应报文 压缩后保存在t_payload表中，支付日志、退款单中只保存报文的id：
+ * 查询支付日志、退款单时 不会读取报文，热点表的行更小，缓冲池能缓存更多的行
+ */
+@Service
+public class PayloadServiceImpl extends ServiceImpl<PayloadMapper, Payload> implements PayloadService {
+
+    /**
+     * 压缩报文，不插入数据库(由批量写入插入)
+     *
+     * @param payloadType
+     * @param content
+     * @return
+     */
+    @Override
+    public Payload buildPayload(PayloadType payloadType, String content) {
+
+        Payload payload = new Payload();
+        payload.setPayloadType(payloadType.getType());
+        payload.setRawLength(content.getBytes(StandardCharsets.UTF_8).length);
+        payload.setData(PayloadCodec.compress(content));
+        return payload;
+    }
+
+    /**
+     * 压缩并保存报文
+     *
+     * @param payloadType
+     * @param content
+     * @return 报文的id
+     */
+    @Override
+    public String savePayload(PayloadType payloadType, String content) {
+
+        Payload payload = buildPayload(payloadType, content);
+        baseMapper.insert(payload);
+        return payload.getId();
+    }
+
+    /**
+     * 加载报文
+     *
+     * @param payloadId 报文的id
+     * @return 解压后的报文，id为null或报文不存在时返回null
+     */
+    @Override
+    public String loadPayload(String payloadId) {
+
+        if (payloadId == null) {
+            return null;
+        }
+        Payload payload = baseMapper.selectById(payloadId);
+        return payload == null ? null : PayloadCodec.decompress(payload.getData());
+    }
+}
@@ -4,50 +4,86 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.google.gson.Gson;
 import com.kai.paymentdemo.entity.PaymentInfo;
 import com.kai.paymentdemo.enums.PayType;
+import com.kai.paymentdemo.enums.PayloadType;
 import com.kai.paymentdemo.mapper.PaymentInfoMapper;
 import com.kai.paymentdemo.service.PaymentInfoService;
+import com.kai.paymentdemo.service.PayloadService;
+import com.kai.paymentdemo.vo.WxTransaction;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
+import javax.annotation.Resource;
+
 import java.util.Map;
 
 @Service
 @Slf4j
 public class PaymentInfoServiceImpl extends ServiceImpl<PaymentInfoMapper, PaymentInfo> implements PaymentInfoService {
 
+    @Resource
+    private PayloadService payloadService;
+
     /**
-     * @param plainText：：存储在t_payment_info表中的content字段： 记录支付通知的结果
+     * @param plainText：：压缩后存储在t_payload表中，t_payment_info表中记录它的id： 记录支付通知的结果
      */
     @Override
     public void createPaymentInfo(String plainText) {
 
         log.info("记录支付日志");
 
-        Gson gson = new Gson();
-        HashMap plainTextMap = gson.fromJson(plainText, HashMap.class);
-        //从plainText 支付日志 字段 获取到字段信息 进行插入数据表
-        //订单号
-        String orderNo = (String) plainTextMap.get("out_trade_no");
-        //业务编号
-        String transactionId = (String) plainTextMap.get("transaction_id");
-        //支付类型
-        String tradeType = (String) plainTextMap.get("trade_type");
-        //交易状态
-        String tradeState = (String) plainTextMap.get("trade_state");
-        //用户实际支付金额
-        Map<String, Object> amount = (Map) plainTextMap.get("amount");
-        Integer payerTotal = ((Double) amount.get("payer_total")).intValue();
+        PaymentInfo paymentInfo = buildPaymentInfo(plainText);
+        paymentInfo.setContentId(payloadService.savePayload(PayloadType.PAYMENT, plainText));
+        baseMapper.insert(paymentInfo);
+    }
+
+    /**
+     * 根据APIv3的支付结果(通知解密后的明文、查单结果) 生成支付日志，不插入数据库，不包含报文
+     *
+     * @param plainText
+     * @return
+     */
+    @Override
+    public PaymentInfo buildPaymentInfo(String plainText) {
+
+        return buildPaymentInfo(new Gson().fromJson(plainText, WxTransaction.class));
+    }
+
+    /**
+     * 根据解析后的APIv3支付结果 生成支付日志，不插入数据库，不包含报文
+     *
+     * @param transaction
+     * @return
+     */
+    @Override
+    public PaymentInfo buildPaymentInfo(WxTransaction transaction) {
 
         PaymentInfo paymentInfo = new PaymentInfo();
-        paymentInfo.setOrderNo(orderNo);
+        paymentInfo.setOrderNo(transaction.getOutTradeNo());//订单号
         paymentInfo.setPaymentType(PayType.WXPAY.getType());
-        paymentInfo.setTransactionId(transactionId);
-        paymentInfo.setTradeType(tradeType);
-        paymentInfo.setTradeState(tradeState);
-        paymentInfo.setPayerTotal(payerTotal);
-        paymentInfo.setContent(plainText);
+        paymentInfo.setTransactionId(transaction.getTransactionId());//业务编号
+        paymentInfo.setTradeType(transaction.getTradeType());//支付类型
+        paymentInfo.setTradeState(transaction.getTradeState());//交易状态
+        paymentInfo.setPayerTotal(transaction.getAmount().getPayerTotal());//用户实际支付金额
+        return paymentInfo;
+    }
 
-        baseMapper.insert(paymentInfo);
+    /**
+     * 根据APIv2的支付通知 生成支付日志，不插入数据库，不包含报文
+     *
+     * @param notifyMap 解析后的通知
+     * @return
+     */
+    @Override
+    public PaymentInfo buildPaymentInfoV2(Map<String, String> notifyMap) {
+
+        PaymentInfo paymentInfo = new PaymentInfo();
+        paymentInfo.setOrderNo(notifyMap.get("out_trade_no"));
+        paymentInfo.setPaymentType(PayType.WXPAY.getType());
+        paymentInfo.setTransactionId(notifyMap.get("transaction_id"));
+        paymentInfo.setTradeType(notifyMap.get("trade_type"));
+        paymentInfo.setTradeState(notifyMap.get("result_code"));
+        //用户实际支付的现金金额
+        paymentInfo.setPayerTotal(Integer.parseInt(notifyMap.get("cash_fee")));
+        return paymentInfo;
     }
 }
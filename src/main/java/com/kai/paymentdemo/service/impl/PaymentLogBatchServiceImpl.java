@@ -0,0 +1,291 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.kai.paymentdemo.entity.Payload;
+import com.kai.paymentdemo.entity.PaymentInfo;
+import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.event.OrderStatusChangedEvent;
+import com.kai.paymentdemo.mapper.OrderInfoMapper;
+import com.kai.paymentdemo.mapper.PayloadMapper;
+import com.kai.paymentdemo.mapper.PaymentInfoMapper;
+import com.kai.paymentdemo.service.PaymentLogBatchService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 支付成功的批量写入
+ * <p>
+ * 支付通知 不再在各自的事务中 更新订单状态、插入支付日志，而是放入队列，
+ * 由一个写入线程 攒够batch-size条或等待max-delay-millis后，在一个事务中批量执行：
+ * 所有订单的 未支付 -> 支付成功(CAS)，以及更新成功的订单的原始报文、支付日志
+ * 订单状态和支付日志在同一个事务中提交：不会出现 支付成功但没有支付日志 的订单
+ * <p>
+ * 提交后才完成调用方的Future：通知处理完成(推进通知日志的位点)之前 数据一定已经写入数据库，
+ * 进程崩溃时 未写入的通知由通知日志重放
+ */
+@Service
+@Slf4j
+public class PaymentLogBatchServiceImpl implements PaymentLogBatchService {
+
+    @Resource
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    //每批的最大数量
+    @Value("${payment.payment-log.batch-size:200}")
+    private int batchSize;
+
+    //第一条数据最多等待多久写入(毫秒)
+    @Value("${payment.payment-log.max-delay-millis:20}")
+    private long maxDelayMillis;
+
+    //等待写入的最大数量：队列已满时 提交的线程阻塞等待
+    @Value("${payment.payment-log.queue-capacity:10000}")
+    private int queueCapacity;
+
+    //批量执行的SqlSession：在Spring的事务中使用，事务提交时执行剩余的语句
+    private SqlSessionTemplate batchSession;
+
+    private BlockingQueue<PendingPayment> queue;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    private final LongAdder submitted = new LongAdder();
+
+    private final LongAdder paid = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder batchedRows = new LongAdder();
+
+    private final AtomicLong lastBatchSize = new AtomicLong();
+
+    private final AtomicLong lastFlushMillis = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        batchSession = new SqlSessionTemplate(sqlSessionFactory, ExecutorType.BATCH);
+        queue = new LinkedBlockingQueue<>(queueCapacity);
+        running = true;
+        writer = new Thread(this::run, "payment-log-writer");
+        writer.start();
+    }
+
+    /**
+     * 停止时写入队列中剩余的数据
+     */
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        writer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * 提交支付成功的订单
+     *
+     * @param orderNo     订单号
+     * @param paymentInfo 支付日志
+     * @param payload     压缩后的原始报文
+     * @return 写入数据库后完成：true表示订单由本次更新为支付成功，false表示订单已经不是未支付状态(重复的通知)
+     */
+    @Override
+    public CompletableFuture<Boolean> submitPaid(String orderNo, PaymentInfo paymentInfo, Payload payload) throws InterruptedException {
+
+        PendingPayment pending = new PendingPayment(orderNo, paymentInfo, payload);
+        queue.put(pending);
+        submitted.increment();
+        return pending.future;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        long batchCount = batches.sum();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("queueDepth", queue.size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("submitted", submitted.sum());
+        stats.put("paid", paid.sum());
+        stats.put("failed", failed.sum());
+        stats.put("batches", batchCount);
+        stats.put("avgBatchSize", batchCount == 0 ? 0 : batchedRows.sum() / batchCount);
+        stats.put("lastBatchSize", lastBatchSize.get());
+        stats.put("lastFlushMillis", lastFlushMillis.get());
+        return stats;
+    }
+
+    private void run() {
+        List<PendingPayment> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingPayment first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                //攒批：达到batch-size，或第一条数据已经等待了max-delay-millis
+                long deadline = System.currentTimeMillis() + maxDelayMillis;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    PendingPayment next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                flushOrSplit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable e) {
+                log.error("批量写入支付日志失败", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 写入一批数据；整批失败时 逐条重新写入，一条错误的数据不影响同批的其他数据
+     */
+    private void flushOrSplit(List<PendingPayment> batch) {
+        try {
+            flush(batch);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+            log.warn("批量写入支付日志失败，逐条写入 ===> {} 条", batch.size(), e);
+            for (PendingPayment pending : batch) {
+                try {
+                    flush(Collections.singletonList(pending));
+                } catch (Exception ex) {
+                    fail(pending, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在一个事务中：批量执行订单状态的CAS，再批量插入更新成功的订单的原始报文、支付日志
+     */
+    private void flush(List<PendingPayment> batch) {
+
+        long start = System.currentTimeMillis();
+        boolean[] updated = new boolean[batch.size()];
+        List<PendingPayment> winners = new ArrayList<>();
+
+        transactionTemplate.execute(status -> {
+            OrderInfoMapper orderInfoMapper = batchSession.getMapper(OrderInfoMapper.class);
+            PaymentInfoMapper paymentInfoMapper = batchSession.getMapper(PaymentInfoMapper.class);
+            PayloadMapper payloadMapper = batchSession.getMapper(PayloadMapper.class);
+
+            for (PendingPayment pending : batch) {
+                orderInfoMapper.transitionStatus(pending.orderNo, OrderStatus.NOTPAY.getType(), OrderStatus.SUCCESS.getType());
+            }
+            //同一批中的语句按提交的顺序执行：同一订单的重复通知 只有第一条能更新成功
+            int i = 0;
+            for (BatchResult result : batchSession.flushStatements()) {
+                for (int count : result.getUpdateCounts()) {
+                    updated[i++] = count > 0;
+                }
+            }
+
+            for (int j = 0; j < batch.size(); j++) {
+                if (updated[j]) {
+                    winners.add(batch.get(j));
+                    payloadMapper.insert(batch.get(j).payload);
+                }
+            }
+            //执行后 才能得到报文的自增id
+            batchSession.flushStatements();
+
+            for (PendingPayment pending : winners) {
+                pending.paymentInfo.setContentId(pending.payload.getId());
+                paymentInfoMapper.insert(pending.paymentInfo);
+            }
+            batchSession.flushStatements();
+            return null;
+        });
+
+        long elapsed = System.currentTimeMillis() - start;
+        batches.increment();
+        batchedRows.add(batch.size());
+        lastBatchSize.set(batch.size());
+        lastFlushMillis.set(elapsed);
+        log.info("批量写入支付日志 ===> {} 条，支付成功 {} 条，耗时 {} ms", batch.size(), winners.size(), elapsed);
+
+        //提交后：通知订单状态缓存、等待支付完成的前端
+        for (PendingPayment pending : winners) {
+            paid.increment();
+            eventPublisher.publishEvent(new OrderStatusChangedEvent(pending.orderNo, OrderStatus.SUCCESS));
+        }
+        for (int j = 0; j < batch.size(); j++) {
+            batch.get(j).future.complete(updated[j]);
+        }
+    }
+
+    private void fail(PendingPayment pending, Exception e) {
+        failed.increment();
+        log.error("写入支付日志失败 ===> {}", pending.orderNo, e);
+        pending.future.completeExceptionally(e);
+    }
+
+    /**
+     * 等待写入的支付成功的订单
+     */
+    private static class PendingPayment {
+
+        private final String orderNo;
+
+        private final PaymentInfo paymentInfo;
+
+        private final Payload payload;
+
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingPayment(String orderNo, PaymentInfo paymentInfo, Payload payload) {
+            this.orderNo = orderNo;
+            this.paymentInfo = paymentInfo;
+            this.payload = payload;
+        }
+    }
+}
@@ -1,12 +1,200 @@
 package com.kai.paymentdemo.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kai.paymentdemo.entity.Product;
 import com.kai.paymentdemo.mapper.ProductMapper;
 import com.kai.paymentdemo.service.ProductService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.kai.paymentdemo.util.ExpiringLruCache;
+import com.kai.paymentdemo.vo.ProductListSnapshot;
+import com.kai.paymentdemo.vo.R;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 商品
+ * <p>
+ * 商品数据很少变化：按id缓存商品(读穿透)，商品列表接口使用已经序列化的响应快照；
+ * 通过本类修改商品时 清除缓存，其他情况(直接修改数据库、其他节点修改)由过期时间兜底
+ */
 @Service
+@Slf4j
 public class ProductServiceImpl extends ServiceImpl<ProductMapper, Product> implements ProductService {
 
+    @Resource
+    private ObjectMapper objectMapper;
+
+    //商品缓存的最大数量
+    @Value("${payment.product-cache.max-size:1000}")
+    private int maxSize;
+
+    //商品缓存、商品列表快照的过期时间(秒)
+    @Value("${payment.product-cache.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    private ExpiringLruCache<Long, Product> productCache;
+
+    private volatile ProductListSnapshot listSnapshot;
+
+    @PostConstruct
+    public void init() {
+        productCache = new ExpiringLruCache<>(maxSize, TimeUnit.SECONDS.toMillis(ttlSeconds));
+    }
+
+    /**
+     * 根据id获取商品：先查缓存，缓存中没有再查数据库
+     *
+     * @param productId
+     * @return
+     */
+    @Override
+    public Product getCachedProduct(Long productId) {
+
+        Product product = productCache.get(productId);
+        if (product == null) {
+            product = baseMapper.selectById(productId);
+            if (product != null) {
+                productCache.put(productId, product);
+            }
+        }
+        return product;
+    }
+
+    /**
+     * 商品列表接口的响应快照：过期或被清除后 重新查询并序列化
+     *
+     * @return
+     */
+    @Override
+    public ProductListSnapshot getListSnapshot() {
+
+        ProductListSnapshot snapshot = listSnapshot;
+        if (snapshot != null && snapshot.getExpireAt() > System.currentTimeMillis()) {
+            return snapshot;
+        }
+
+        synchronized (this) {
+            snapshot = listSnapshot;
+            if (snapshot != null && snapshot.getExpireAt() > System.currentTimeMillis()) {
+                return snapshot;
+            }
+
+            List<Product> list = list();
+            byte[] body;
+            try {
+                //与控制器直接返回R的序列化方式一致(日期格式等)
+                body = objectMapper.writeValueAsBytes(R.ok().data("productList", list));
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("商品列表序列化失败", e);
+            }
+            String etag = "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+            snapshot = new ProductListSnapshot(body, etag, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds));
+            listSnapshot = snapshot;
+            log.info("生成商品列表快照 ===> {} 个商品，ETag {}", list.size(), etag);
+            return snapshot;
+        }
+    }
+
+    /**
+     * 清除商品缓存和商品列表快照
+     */
+    @Override
+    public void invalidateCache() {
+        productCache.clear();
+        listSnapshot = null;
+        log.info("清除商品缓存");
+    }
+
+    @Override
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("size", productCache.size());
+        stats.put("hits", productCache.getHitCount());
+        stats.put("misses", productCache.getMissCount());
+        stats.put("hitRate", productCache.getHitRate());
+        ProductListSnapshot snapshot = listSnapshot;
+        stats.put("listEtag", snapshot == null ? null : snapshot.getEtag());
+        stats.put("listBytes", snapshot == null ? 0 : snapshot.getBody().length);
+        return stats;
+    }
+
+    //以下为修改商品的方法：修改后清除缓存
+
+    @Override
+    public boolean save(Product entity) {
+        return invalidateAfter(super.save(entity));
+    }
+
+    @Override
+    public boolean saveBatch(Collection<Product> entityList, int batchSize) {
+        return invalidateAfter(super.saveBatch(entityList, batchSize));
+    }
+
+    @Override
+    public boolean saveOrUpdate(Product entity) {
+        return invalidateAfter(super.saveOrUpdate(entity));
+    }
+
+    @Override
+    public boolean saveOrUpdate(Product entity, Wrapper<Product> updateWrapper) {
+        return invalidateAfter(super.saveOrUpdate(entity, updateWrapper));
+    }
+
+    @Override
+    public boolean saveOrUpdateBatch(Collection<Product> entityList, int batchSize) {
+        return invalidateAfter(super.saveOrUpdateBatch(entityList, batchSize));
+    }
+
+    @Override
+    public boolean updateById(Product entity) {
+        return invalidateAfter(super.updateById(entity));
+    }
+
+    @Override
+    public boolean update(Product entity, Wrapper<Product> updateWrapper) {
+        return invalidateAfter(super.update(entity, updateWrapper));
+    }
+
+    @Override
+    public boolean updateBatchById(Collection<Product> entityList, int batchSize) {
+        return invalidateAfter(super.updateBatchById(entityList, batchSize));
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        return invalidateAfter(super.removeById(id));
+    }
+
+    @Override
+    public boolean removeByMap(Map<String, Object> columnMap) {
+        return invalidateAfter(super.removeByMap(columnMap));
+    }
+
+    @Override
+    public boolean remove(Wrapper<Product> queryWrapper) {
+        return invalidateAfter(super.remove(queryWrapper));
+    }
+
+    @Override
+    public boolean removeByIds(Collection<? extends Serializable> idList) {
+        return invalidateAfter(super.removeByIds(idList));
+    }
+
+    private boolean invalidateAfter(boolean result) {
+        invalidateCache();
+        return result;
+    }
 }
@@ -2,11 +2,14 @@ package com.kai.paymentdemo.service.impl;
 
 import com.kai.paymentdemo.entity.OrderInfo;
 import com.kai.paymentdemo.entity.RefundInfo;
+import com.kai.paymentdemo.enums.PayloadType;
 import com.kai.paymentdemo.enums.wxpay.WxRefundStatus;
 import com.kai.paymentdemo.mapper.RefundInfoMapper;
 import com.kai.paymentdemo.service.OrderInfoService;
+import com.kai.paymentdemo.service.PayloadService;
 import com.kai.paymentdemo.service.RefundInfoService;
 import com.kai.paymentdemo.util.OrderNoUtils;
+import com.kai.paymentdemo.vo.WxRefund;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.google.gson.Gson;
@@ -15,9 +18,8 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 @Service
 public class RefundInfoServiceImpl extends ServiceImpl<RefundInfoMapper, RefundInfo> implements RefundInfoService {
@@ -25,6 +27,9 @@ public class RefundInfoServiceImpl extends ServiceImpl<RefundInfoMapper, RefundI
     @Resource
     private OrderInfoService orderInfoService;
 
+    @Resource
+    private PayloadService payloadService;
+
     /**
      * 根据订单号创建退款订单
      * @param orderNo
@@ -57,28 +62,40 @@ public class RefundInfoServiceImpl extends ServiceImpl<RefundInfoMapper, RefundI
     @Override
     public void updateRefund(String content) {
 
-        //将json字符串转换成Map
-        Gson gson = new Gson();
-        Map<String, String> resultMap = gson.fromJson(content, HashMap.class);
+        //将json字符串转换成退款结果
+        WxRefund refund = new Gson().fromJson(content, WxRefund.class);
+        refund.setPlainText(content);
+        updateRefund(refund);
+    }
+
+    /**
+     * 根据解析后的退款结果 更新退款单
+     *
+     * @param refund 需要包含原始的json(plainText)
+     */
+    @Override
+    public void updateRefund(WxRefund refund) {
+
+        String content = refund.getPlainText();
 
         //根据退款单编号修改退款单
         QueryWrapper<RefundInfo> queryWrapper = new QueryWrapper<>();
-        queryWrapper.eq("refund_no", resultMap.get("out_refund_no"));
+        queryWrapper.eq("refund_no", refund.getOutRefundNo());
 
         //设置要修改的字段
         RefundInfo refundInfo = new RefundInfo();
 
-        refundInfo.setRefundId(resultMap.get("refund_id"));//微信支付退款单号
+        refundInfo.setRefundId(refund.getRefundId());//微信支付退款单号
 
         //查询退款和申请退款中的返回参数
-        if(resultMap.get("status") != null){
-            refundInfo.setRefundStatus(resultMap.get("status"));//退款状态
-            refundInfo.setContentReturn(content);//将全部响应结果存入数据库的content字段
+        if(refund.getStatus() != null){
+            refundInfo.setRefundStatus(refund.getStatus());//退款状态
+            refundInfo.setContentReturnId(payloadService.savePayload(PayloadType.REFUND_RETURN, content));//将全部响应结果压缩后存入t_payload表
         }
         //退款回调中的回调参数
-        if(resultMap.get("refund_status") != null){
-            refundInfo.setRefundStatus(resultMap.get("refund_status"));//退款状态
-            refundInfo.setContentNotify(content);//将全部响应结果存入数据库的content字段
+        if(refund.getRefundStatus() != null){
+            refundInfo.setRefundStatus(refund.getRefundStatus());//退款状态
+            refundInfo.setContentNotifyId(payloadService.savePayload(PayloadType.REFUND_NOTIFY, content));//将全部响应结果压缩后存入t_payload表
         }
 
         //更新退款单
@@ -102,4 +119,76 @@ public class RefundInfoServiceImpl extends ServiceImpl<RefundInfoMapper, RefundI
         List<RefundInfo> refundInfoList = baseMapper.selectList(queryWrapper);
         return refundInfoList;
     }
+
+    /**
+     * 分批查询 到期需要核实的退款单：createdBefore之前申请、未成功、下次核实的时间已到(或从未核实)
+     * 按id排序，从上一批的最后一条记录之后开始查询(游标)
+     * @param createdBefore
+     * @param now
+     * @param afterId 上一批最后一条记录的id，第一批传null
+     * @param limit
+     * @return
+     */
+    @Override
+    public List<RefundInfo> getDueRefundPage(Date createdBefore, Date now, String afterId, int limit) {
+
+        QueryWrapper<RefundInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.eq("refund_status", WxRefundStatus.PROCESSING.getType());
+        queryWrapper.le("create_time", createdBefore);
+        queryWrapper.and(w -> w.isNull("next_check_time").or().le("next_check_time", now));
+        if (afterId != null) {
+            queryWrapper.gt("id", afterId);
+        }
+        queryWrapper.orderByAsc("id");
+        queryWrapper.last("LIMIT " + limit);
+        return baseMapper.selectList(queryWrapper);
+    }
+
+    /**
+     * 统计createdBefore之前申请并且未成功的退款单数量
+     * @param createdBefore
+     * @return
+     */
+    @Override
+    public int countNoRefundOrder(Date createdBefore) {
+
+        QueryWrapper<RefundInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.eq("refund_status", WxRefundStatus.PROCESSING.getType());
+        queryWrapper.le("create_time", createdBefore);
+        return baseMapper.selectCount(queryWrapper);
+    }
+
+    /**
+     * 查询本地退款单的状态
+     * @param refundNo
+     * @return 退款单不存在时返回null
+     */
+    @Override
+    public String getRefundStatus(String refundNo) {
+
+        QueryWrapper<RefundInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.select("refund_status");
+        queryWrapper.eq("refund_no", refundNo);
+        RefundInfo refundInfo = baseMapper.selectOne(queryWrapper);
+        return refundInfo == null ? null : refundInfo.getRefundStatus();
+    }
+
+    /**
+     * 记录退款单的核实次数和下次核实的时间
+     * @param refundNo
+     * @param checkAttempts
+     * @param nextCheckTime
+     */
+    @Override
+    public void scheduleNextCheck(String refundNo, int checkAttempts, Date nextCheckTime) {
+
+        QueryWrapper<RefundInfo> queryWrapper = new QueryWrapper<>();
+        queryWrapper.eq("refund_no", refundNo);
+
+        RefundInfo refundInfo = new RefundInfo();
+        refundInfo.setCheckAttempts(checkAttempts);
+        refundInfo.setNextCheckTime(nextCheckTime);
+
+        baseMapper.update(refundInfo, queryWrapper);
+    }
 }
@@ -0,0 +1,178 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.kai.paymentdemo.mapper.TaskLeaseMapper;
+import com.kai.paymentdemo.service.TaskLeaseService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * 多节点的定时任务分片
+ * <p>
+ * 每个节点定期在t_task_lease表中续约；租约未过期的节点按节点号排序，
+ * 订单号的哈希值(CRC32) 对节点数取模 等于当前节点的序号时，由当前节点核实该订单/退款单
+ * 节点停止或租约过期后，其余节点在下一次续约时重新分片，接管它的订单
+ * <p>
+ * 续约使用独立的线程，不受耗时的定时任务影响；
+ * 续约失败超过租约时间时 当前节点不再认领任何订单，避免与其他节点重复处理
+ */
+@Service
+@Slf4j
+public class TaskLeaseServiceImpl implements TaskLeaseService {
+
+    @Resource
+    private TaskLeaseMapper taskLeaseMapper;
+
+    @Value("${payment.node-id:0}")
+    private int nodeId;
+
+    //是否启用分片：单节点部署时可以关闭，当前节点核实所有的订单
+    @Value("${payment.lease.enabled:true}")
+    private boolean enabled;
+
+    //租约时间(毫秒)
+    @Value("${payment.lease.ttl-millis:15000}")
+    private long ttlMillis;
+
+    //续约的间隔(毫秒)：应小于租约时间的1/3
+    @Value("${payment.lease.renew-interval-millis:5000}")
+    private long renewIntervalMillis;
+
+    private ScheduledExecutorService scheduler;
+
+    //当前的分片
+    private volatile Shard shard = new Shard(Collections.emptyList(), -1, 0);
+
+    private final LongAdder rebalances = new LongAdder();
+
+    private final LongAdder renewFailures = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("未启用定时任务分片：当前节点核实所有的订单");
+            return;
+        }
+        //启动时先续约一次：重建订单超时时间轮时 需要知道当前节点负责的订单
+        renew();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("task-lease-"));
+        scheduler.scheduleWithFixedDelay(this::renew, renewIntervalMillis, renewIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止时释放租约：其他节点在下一次续约时立即接管
+     */
+    @PreDestroy
+    public void destroy() {
+        if (!enabled) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            taskLeaseMapper.release(nodeId);
+        } catch (Exception e) {
+            log.warn("释放租约失败：等待租约过期 ===> {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 订单(及其退款单)是否由当前节点核实
+     *
+     * @param orderNo 订单号
+     */
+    @Override
+    public boolean owns(String orderNo) {
+        if (!enabled) {
+            return true;
+        }
+        Shard current = shard;
+        if (current.index < 0 || System.currentTimeMillis() > current.validUntil) {
+            return false;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(orderNo.getBytes(StandardCharsets.UTF_8));
+        return crc32.getValue() % current.nodeIds.size() == current.index;
+    }
+
+    /**
+     * 租约未过期的节点数
+     */
+    @Override
+    public int getShardCount() {
+        return enabled ? shard.nodeIds.size() : 1;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Shard current = shard;
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("nodeId", nodeId);
+        stats.put("liveNodes", current.nodeIds);
+        stats.put("shardIndex", current.index);
+        stats.put("shardCount", current.nodeIds.size());
+        stats.put("leaseValid", current.index >= 0 && System.currentTimeMillis() <= current.validUntil);
+        stats.put("validUntil", new Date(current.validUntil));
+        stats.put("rebalances", rebalances.sum());
+        stats.put("renewFailures", renewFailures.sum());
+        return stats;
+    }
+
+    /**
+     * 续约，并根据租约未过期的节点 重新计算分片
+     */
+    private void renew() {
+        long start = System.currentTimeMillis();
+        try {
+            taskLeaseMapper.renew(nodeId, ttlMillis);
+            List<Integer> nodeIds = taskLeaseMapper.selectLiveNodeIds();
+            int index = nodeIds.indexOf(nodeId);
+
+            //本地的有效期从续约开始计算，比数据库中的过期时间略早
+            Shard next = new Shard(nodeIds, index, start + ttlMillis);
+            if (!nodeIds.equals(shard.nodeIds)) {
+                rebalances.increment();
+                log.info("重新分片：节点 {}，当前节点 {} 的序号 {}", nodeIds, nodeId, index);
+            }
+            shard = next;
+
+        } catch (Exception e) {
+            renewFailures.increment();
+            log.error("续约失败", e);
+        }
+    }
+
+    /**
+     * 分片：租约未过期的节点、当前节点的序号、本地的有效期
+     */
+    private static class Shard {
+
+        private final List<Integer> nodeIds;
+
+        private final int index;
+
+        private final long validUntil;
+
+        Shard(List<Integer> nodeIds, int index, long validUntil) {
+            this.nodeIds = nodeIds;
+            this.index = index;
+            this.validUntil = validUntil;
+        }
+    }
+}
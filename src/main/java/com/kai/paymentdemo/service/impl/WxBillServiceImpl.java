@@ -0,0 +1,586 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.google.gson.Gson;
+import com.kai.paymentdemo.config.WxPayConfig;
+import com.kai.paymentdemo.enums.wxpay.WxApiType;
+import com.kai.paymentdemo.service.WxBillService;
+import com.kai.paymentdemo.util.BillParser;
+import com.kai.paymentdemo.util.FundFlowBillRecord;
+import com.kai.paymentdemo.util.TradeBillRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 账单文件
+ * <p>
+ * 以gzip格式(tar_type=GZIP)申请并下载账单，响应体直接写入本地文件，不在内存中保存账单内容：
+ * 内存占用与账单大小无关，传输的数据量也只有原始账单的几分之一
+ * 本地文件保持gzip格式，读取时再解压；解析时解压为csv文件，以内存映射的方式多线程解析
+ * <p>
+ * 已经下载的账单不会再变化，本地文件即缓存：再次下载同一天的账单 不调用微信接口
+ * 下载后按申请账单返回的摘要(hash_value，解压后的账单的SHA1) 校验通过才放入缓存；
+ * 缓存的总大小超过max-cache-mb时 删除最久未访问的账单
+ */
+@Service
+@Slf4j
+public class WxBillServiceImpl implements WxBillService {
+
+    @Resource
+    private WxPayConfig wxPayConfig;
+
+    @Resource
+    private CloseableHttpClient wxPayClient;
+
+    @Resource
+    private CloseableHttpClient wxPayNoSignClient; //账单文件的下载地址 无需应答签名
+
+    //账单文件的目录
+    @Value("${payment.bill.dir:bills}")
+    private String billDir;
+
+    //解析账单的线程数：0表示CPU核数
+    @Value("${payment.bill.parse-threads:0}")
+    private int parseThreads;
+
+    //本地账单文件的最大总大小(MB)
+    @Value("${payment.bill.max-cache-mb:2048}")
+    private long maxCacheMb;
+
+    private Path billPath;
+
+    //缓存的账单(类型_日期) -> 本地文件的总字节数(gzip + 解压后的csv)，按访问顺序排列
+    private final LinkedHashMap<String, Long> cacheIndex = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long cachedBytes;
+
+    //同一个账单同时只下载一次
+    private final Map<String, Object> downloadLocks = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder downloads = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder checksumFailures = new LongAdder();
+
+    //下载账单的线程数：前端请求的下载、预先下载 共用，不占用定时任务和访问微信接口的线程
+    @Value("${payment.bill.download-threads:2}")
+    private int downloadThreads;
+
+    //下载账单的线程：下载大账单耗时较长，不会被请求的超时中断
+    private ExecutorService downloader;
+
+    private final AtomicBoolean prefetching = new AtomicBoolean();
+
+    /**
+     * 加载已有的账单文件：按修改时间 从旧到新加入缓存
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        billPath = Files.createDirectories(Paths.get(billDir));
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(billPath)) {
+            files = stream.collect(Collectors.toList());
+        }
+        List<Path> bills = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".tmp")) {
+                //上次停止时未完成的下载、解压
+                Files.deleteIfExists(file);
+            } else if (name.endsWith(".csv.gz")) {
+                bills.add(file);
+            }
+        }
+        bills.sort(Comparator.comparing(file -> file.toFile().lastModified()));
+        for (Path file : bills) {
+            String name = file.getFileName().toString();
+            cache(name.substring(0, name.length() - ".csv.gz".length()));
+        }
+        log.info("本地账单缓存 ===> {} 个，{} 字节", cacheIndex.size(), cachedBytes);
+
+        downloader = Executors.newFixedThreadPool(downloadThreads, new CustomizableThreadFactory("bill-download-"));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        downloader.shutdownNow();
+    }
+
+    /**
+     * 在下载账单的线程中下载：请求超时后 下载继续完成并加入缓存，再次请求时直接返回
+     */
+    @Override
+    public CompletableFuture<Path> downloadBillAsync(String billDate, String type) {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        downloader.execute(() -> {
+            try {
+                future.complete(downloadBill(billDate, type));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 在后台下载交易账单、资金账单：已经下载的账单不会重复下载
+     *
+     * @param billDate 账单日期 yyyy-MM-dd
+     * @return false表示上一次预先下载尚未完成，本次跳过
+     */
+    @Override
+    public boolean prefetchBills(String billDate) {
+        if (!prefetching.compareAndSet(false, true)) {
+            return false;
+        }
+        downloader.execute(() -> {
+            try {
+                for (String type : new String[]{"tradebill", "fundflowbill"}) {
+                    try {
+                        downloadBill(billDate, type);
+                    } catch (Exception e) {
+                        log.warn("预先下载账单失败 ===> {}，{}：{}", billDate, type, e.getMessage());
+                    }
+                }
+            } finally {
+                prefetching.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 下载账单到本地文件：已经下载过的账单直接返回
+     *
+     * @param billDate 账单日期 yyyy-MM-dd
+     * @param type     账单类型 tradebill、fundflowbill
+     * @return 账单文件(gzip)
+     */
+    @Override
+    public Path downloadBill(String billDate, String type) throws Exception {
+
+        Path file = getBillFile(billDate, type);
+        String key = cacheKey(billDate, type);
+        if (Files.exists(file)) {
+            hits.increment();
+            touch(key);
+            return file;
+        }
+
+        synchronized (downloadLocks.computeIfAbsent(key, k -> new Object())) {
+            //等待期间 其他线程已经下载完成
+            if (Files.exists(file)) {
+                hits.increment();
+                touch(key);
+                return file;
+            }
+
+            log.warn("下载账单接口调用 {}, {}", billDate, type);
+            long start = System.currentTimeMillis();
+
+            BillUrl billUrl = queryDownloadUrl(billDate, type);
+            HttpGet httpGet = new HttpGet(billUrl.downloadUrl);
+
+            //先写入临时文件，校验通过后再改名：不会读到下载了一半、或内容错误的账单
+            Path tmp = Files.createTempFile(billPath, file.getFileName().toString(), ".tmp");
+            try (CloseableHttpResponse response = wxPayNoSignClient.execute(httpGet)) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                if (statusCode != 200 || entity == null) {
+                    //错误响应是很短的json
+                    throw new RuntimeException("下载账单异常, 响应码 = " + statusCode
+                            + ", 下载账单返回结果 = " + (entity == null ? "" : EntityUtils.toString(entity)));
+                }
+                try (InputStream in = entity.getContent()) {
+                    Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                }
+                verify(tmp, billUrl);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+
+            downloads.increment();
+            cache(key);
+            log.info("下载账单成功 ===> {}，{} 字节，耗时 {} ms", file, Files.size(file), System.currentTimeMillis() - start);
+            return file;
+        }
+    }
+
+    /**
+     * 账单是否已经下载到本地
+     */
+    @Override
+    public boolean isCached(String billDate, String type) {
+        return Files.exists(getBillFile(billDate, type));
+    }
+
+    /**
+     * 账单的本地文件(不一定已经下载)
+     */
+    @Override
+    public Path getBillFile(String billDate, String type) {
+        checkBill(billDate, type);
+        return billPath.resolve(type + "_" + billDate + ".csv.gz");
+    }
+
+    /**
+     * 读取已经下载的账单：解压后的内容
+     */
+    @Override
+    public InputStream openBill(String billDate, String type) throws IOException {
+        Path file = getBillFile(billDate, type);
+        if (!Files.exists(file)) {
+            throw new FileNotFoundException("账单尚未下载：" + file);
+        }
+        touch(cacheKey(billDate, type));
+        return new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file)), 64 * 1024);
+    }
+
+    /**
+     * 解压已经下载的账单：已经解压过的直接返回
+     *
+     * @return 解压后的csv文件
+     */
+    @Override
+    public Path unpackBill(String billDate, String type) throws IOException {
+
+        Path file = getBillFile(billDate, type);
+        Path csv = billPath.resolve(type + "_" + billDate + ".csv");
+        if (Files.exists(csv) && Files.getLastModifiedTime(csv).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+            return csv;
+        }
+
+        Path tmp = Files.createTempFile(billPath, csv.getFileName().toString(), ".tmp");
+        try (InputStream in = openBill(billDate, type)) {
+            Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, csv, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        //解压后的文件也计入缓存的大小
+        cache(cacheKey(billDate, type));
+        return csv;
+    }
+
+    /**
+     * 多线程解析已经下载的交易账单
+     *
+     * @param handlerFactory 每个线程创建一个处理器
+     */
+    @Override
+    public <H extends Consumer<? super TradeBillRecord>> BillParser.Result<H> parseTradeBill(String billDate, Supplier<H> handlerFactory)
+            throws IOException, InterruptedException {
+        return BillParser.parseTradeBill(unpackBill(billDate, "tradebill"), parseThreads(), handlerFactory);
+    }
+
+    /**
+     * 解析已经下载的账单，汇总记录数和金额(分)：与账单末尾的汇总数据对照
+     */
+    @Override
+    public Map<String, Object> summarizeBill(String billDate, String type) throws IOException, InterruptedException {
+
+        Path csv = unpackBill(billDate, type);
+        int threads = parseThreads();
+        long start = System.currentTimeMillis();
+
+        Map<String, Object> totals = new HashMap<>();
+        BillParser.Result<?> result;
+        if ("tradebill".equals(type)) {
+            BillParser.Result<TradeBillTotals> trade = BillParser.parseTradeBill(csv, threads, TradeBillTotals::new);
+            TradeBillTotals sum = new TradeBillTotals();
+            trade.getHandlers().forEach(sum::merge);
+            totals.put("tradeCount", sum.tradeCount);
+            totals.put("settlementTotalCents", sum.settlementTotalCents);
+            totals.put("refundCount", sum.refundCount);
+            totals.put("refundCents", sum.refundCents);
+            totals.put("feeCents", sum.feeCents);
+            result = trade;
+        } else {
+            BillParser.Result<FundFlowTotals> fundFlow = BillParser.parseFundFlowBill(csv, threads, FundFlowTotals::new);
+            FundFlowTotals sum = new FundFlowTotals();
+            fundFlow.getHandlers().forEach(sum::merge);
+            totals.put("incomeCount", sum.incomeCount);
+            totals.put("incomeCents", sum.incomeCents);
+            totals.put("expenseCount", sum.expenseCount);
+            totals.put("expenseCents", sum.expenseCents);
+            result = fundFlow;
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        log.info("解析账单 ===> {}，{} 条记录，{} 个线程，耗时 {} ms", csv, result.getRecords(), threads, elapsed);
+
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("records", result.getRecords());
+        summary.put("skipped", result.getSkipped());
+        summary.put("totals", totals);
+        summary.put("billSummary", result.getSummary());
+        summary.put("elapsedMillis", elapsed);
+        return summary;
+    }
+
+    private int parseThreads() {
+        return parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new HashMap<>();
+        synchronized (cacheIndex) {
+            stats.put("bills", cacheIndex.size());
+            stats.put("cachedBytes", cachedBytes);
+        }
+        stats.put("maxBytes", maxCacheMb * 1024 * 1024);
+        stats.put("hits", hits.sum());
+        stats.put("downloads", downloads.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("checksumFailures", checksumFailures.sum());
+        return stats;
+    }
+
+    /**
+     * 申请gzip格式的账单，获取下载地址和摘要
+     */
+    private BillUrl queryDownloadUrl(String billDate, String type) throws Exception {
+
+        String url = "tradebill".equals(type) ? WxApiType.TRADE_BILLS.getType() : WxApiType.FUND_FLOW_BILLS.getType();
+        url = wxPayConfig.getDomain().concat(url).concat("?bill_date=").concat(billDate).concat("&tar_type=GZIP");
+
+        HttpGet httpGet = new HttpGet(url);
+        httpGet.addHeader("Accept", "application/json");
+
+        try (CloseableHttpResponse response = wxPayClient.execute(httpGet)) {
+            String bodyAsString = EntityUtils.toString(response.getEntity());
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                throw new RuntimeException("申请账单异常, 响应码 = " + statusCode + ", 申请账单返回结果 = " + bodyAsString);
+            }
+            Map<String, String> resultMap = new Gson().fromJson(bodyAsString, HashMap.class);
+            return new BillUrl(resultMap.get("download_url"), resultMap.get("hash_type"), resultMap.get("hash_value"));
+        }
+    }
+
+    /**
+     * 校验下载的账单：摘要是解压后的账单的摘要
+     */
+    private void verify(Path gzipFile, BillUrl billUrl) throws Exception {
+
+        if (billUrl.hashValue == null || billUrl.hashValue.isEmpty()) {
+            log.warn("申请账单未返回摘要，不校验账单 ===> {}", gzipFile);
+            return;
+        }
+        //微信支付返回的摘要算法为SHA1
+        MessageDigest digest = MessageDigest.getInstance("SHA1".equalsIgnoreCase(billUrl.hashType) ? "SHA-1" : billUrl.hashType);
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(gzipFile)), 64 * 1024)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        if (!hex.toString().equalsIgnoreCase(billUrl.hashValue)) {
+            checksumFailures.increment();
+            throw new RuntimeException("账单校验失败 ===> " + gzipFile + "，摘要 = " + hex + "，应为 " + billUrl.hashValue);
+        }
+    }
+
+    private static String cacheKey(String billDate, String type) {
+        return type + "_" + billDate;
+    }
+
+    /**
+     * 更新账单的访问顺序
+     */
+    private void touch(String key) {
+        synchronized (cacheIndex) {
+            cacheIndex.get(key);
+        }
+    }
+
+    /**
+     * 账单加入缓存(或更新本地文件的大小)，超过缓存的大小时 删除最久未访问的其他账单
+     */
+    private void cache(String key) {
+        long bytes = fileSize(billPath.resolve(key + ".csv.gz")) + fileSize(billPath.resolve(key + ".csv"));
+        synchronized (cacheIndex) {
+            Long previous = cacheIndex.put(key, bytes);
+            cachedBytes += bytes - (previous == null ? 0 : previous);
+
+            long maxBytes = maxCacheMb * 1024 * 1024;
+            Iterator<Map.Entry<String, Long>> iterator = cacheIndex.entrySet().iterator();
+            while (cachedBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                try {
+                    Files.deleteIfExists(billPath.resolve(eldest.getKey() + ".csv.gz"));
+                    Files.deleteIfExists(billPath.resolve(eldest.getKey() + ".csv"));
+                } catch (IOException e) {
+                    log.warn("删除账单缓存失败 ===> {}", eldest.getKey(), e);
+                    continue;
+                }
+                cachedBytes -= eldest.getValue();
+                iterator.remove();
+                evictions.increment();
+                log.info("删除最久未访问的账单 ===> {}", eldest.getKey());
+            }
+        }
+    }
+
+    private static long fileSize(Path file) {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 申请账单的结果
+     */
+    private static class BillUrl {
+
+        private final String downloadUrl;
+
+        private final String hashType;
+
+        private final String hashValue;
+
+        BillUrl(String downloadUrl, String hashType, String hashValue) {
+            this.downloadUrl = downloadUrl;
+            this.hashType = hashType;
+            this.hashValue = hashValue;
+        }
+    }
+
+    /**
+     * 校验账单日期和类型：二者会拼接到文件名中
+     */
+    private void checkBill(String billDate, String type) {
+        if (!"tradebill".equals(type) && !"fundflowbill".equals(type)) {
+            throw new IllegalArgumentException("不支持的账单类型");
+        }
+        try {
+            LocalDate.parse(billDate);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("账单日期的格式应为 yyyy-MM-dd：" + billDate);
+        }
+    }
+
+    /**
+     * 交易账单的汇总：每个解析线程一个
+     */
+    private static class TradeBillTotals implements Consumer<TradeBillRecord> {
+
+        private long tradeCount;
+
+        private long settlementTotalCents;
+
+        private long refundCount;
+
+        private long refundCents;
+
+        private long feeCents;
+
+        @Override
+        public void accept(TradeBillRecord record) {
+            if (record.isRefund()) {
+                refundCount++;
+                refundCents += record.getRefundCents();
+            } else {
+                tradeCount++;
+                settlementTotalCents += record.getSettlementTotalCents();
+            }
+            feeCents += record.getFeeCents();
+        }
+
+        void merge(TradeBillTotals other) {
+            tradeCount += other.tradeCount;
+            settlementTotalCents += other.settlementTotalCents;
+            refundCount += other.refundCount;
+            refundCents += other.refundCents;
+            feeCents += other.feeCents;
+        }
+    }
+
+    /**
+     * 资金账单的汇总：每个解析线程一个
+     */
+    private static class FundFlowTotals implements Consumer<FundFlowBillRecord> {
+
+        private long incomeCount;
+
+        private long incomeCents;
+
+        private long expenseCount;
+
+        private long expenseCents;
+
+        @Override
+        public void accept(FundFlowBillRecord record) {
+            if (record.isIncome()) {
+                incomeCount++;
+                incomeCents += record.getAmountCents();
+            } else {
+                expenseCount++;
+                expenseCents += record.getAmountCents();
+            }
+        }
+
+        void merge(FundFlowTotals other) {
+            incomeCount += other.incomeCount;
+            incomeCents += other.incomeCents;
+            expenseCount += other.expenseCount;
+            expenseCents += other.expenseCents;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.kai.paymentdemo.service.WxPayAsyncService;
+import com.kai.paymentdemo.service.WxPayService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步调用微信支付接口
+ * <p>
+ * 控制器返回CompletableFuture，servlet线程立即释放；
+ * 访问微信接口 由独立的有界线程池完成，仍然使用原有的wxPayClient(请求签名、应答验签)
+ * 线程池和等待队列已满时 直接失败，不会无限堆积请求
+ * <p>
+ * 注意：这只是把阻塞的调用从servlet线程 转移到这个线程池，不是非阻塞的http客户端：
+ * 每个正在进行的调用仍占用一个线程，同时进行的调用数 不超过threads，最多再排队queue-capacity个
+ * <p>
+ * 超过请求的超时时间(与spring.mvc.async.request-timeout一致)后：结果以TimeoutException结束，尚未开始的调用不再执行；
+ * 正在执行的调用不中断：阻塞的socket读取不响应中断，中断只会让调用中的事务(数据库连接)失败，
+ * 而微信端可能已经受理(退款、关单)，造成本地与微信端不一致
+ * 下载账单耗时较长 不在这个线程池中执行：见WxBillService.downloadBillAsync
+ */
+@Service
+@Slf4j
+public class WxPayAsyncServiceImpl implements WxPayAsyncService {
+
+    @Resource
+    private WxPayService wxPayService;
+
+    //访问微信接口的线程数：不超过http连接池每个路由的最大连接数
+    @Value("${payment.gateway.threads:50}")
+    private int threads;
+
+    //等待执行的请求的最大数量
+    @Value("${payment.gateway.queue-capacity:1000}")
+    private int queueCapacity;
+
+    //调用的超时时间(毫秒)：与异步请求的超时时间一致，前端已经收到超时响应的调用 不再继续占用线程
+    @Value("${spring.mvc.async.request-timeout:30000}")
+    private long timeoutMillis;
+
+    private ThreadPoolExecutor executor;
+
+    //调用超时的计时器
+    private ScheduledExecutorService timer;
+
+    //正在执行和等待执行的请求数
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder completed = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder timedOut = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("wx-gateway-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        timer = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("wx-gateway-timeout-"));
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        timer.shutdownNow();
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("仍有未完成的微信接口调用 ===> {}", executor.getQueue().size());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> nativePay(Long productId) {
+        return supply(() -> wxPayService.nativePay(productId));
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelOrder(String orderNo) {
+        return supply(() -> {
+            wxPayService.cancelOrder(orderNo);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> queryOrder(String orderNo) {
+        return supply(() -> wxPayService.queryOrder(orderNo));
+    }
+
+    @Override
+    public CompletableFuture<Void> refund(String orderNo, String reason) {
+        return supply(() -> {
+            wxPayService.refund(orderNo, reason);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> queryRefund(String refundNo) {
+        return supply(() -> wxPayService.queryRefund(refundNo));
+    }
+
+    @Override
+    public CompletableFuture<String> queryBill(String billDate, String type) {
+        return supply(() -> wxPayService.queryBill(billDate, type));
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("threads", threads);
+        stats.put("activeThreads", executor.getActiveCount());
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("inFlight", inFlight.get());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("timedOut", timedOut.sum());
+        stats.put("timeoutMillis", timeoutMillis);
+        return stats;
+    }
+
+    /**
+     * 在线程池中执行调用，结果(或异常)通过CompletableFuture返回
+     * 超时时：尚未开始的调用不再执行；正在执行的调用继续执行完成，结果被丢弃
+     */
+    private <T> CompletableFuture<T> supply(Callable<T> call) {
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        inFlight.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    //等待期间已经超时：不再调用微信接口
+                    if (future.isDone()) {
+                        return;
+                    }
+                    T result = call.call();
+                    completed.increment();
+                    future.complete(result);
+                } catch (Throwable e) {
+                    failed.increment();
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            log.warn("微信接口调用队列已满，拒绝请求");
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        Future<?> timeout = timer.schedule(() -> {
+            if (future.completeExceptionally(new TimeoutException("调用微信接口超时"))) {
+                timedOut.increment();
+                log.warn("调用微信接口超时 ===> {} ms", timeoutMillis);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, e) -> timeout.cancel(false));
+        return future;
+    }
+}
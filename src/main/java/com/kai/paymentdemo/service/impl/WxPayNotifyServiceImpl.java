@@ -0,0 +1,351 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.kai.paymentdemo.enums.wxpay.WxNotifyType;
+import com.kai.paymentdemo.service.WxPayNotifyService;
+import com.kai.paymentdemo.service.WxPayService;
+import com.kai.paymentdemo.util.ExpiringLruCache;
+import com.kai.paymentdemo.util.NotifyJournal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 微信通知的异步处理
+ * <p>
+ * 控制器 验签成功后 将原始通知写入本地的通知日志(刷盘)并放入有界队列 立即应答微信；
+ * 由固定数量的工作线程 从队列中取出通知 进行解密、更新订单状态、记录日志
+ * 支付通知的订单状态和支付日志 由批量写入完成，写入数据库后 才推进通知日志的位点
+ * 队列已满时拒绝通知，应答失败，由微信稍后重新发送
+ * 进程崩溃时 已应答但未处理完成的通知 在下次启动时从通知日志中重放
+ * 处理成功的通知id 放入去重缓存，微信重复发送的通知 不再验签、解密、查询数据库；
+ * 处理失败(放弃处理)的通知 不放入去重缓存，微信重新发送时 仍会再次处理
+ */
+@Service
+@Slf4j
+public class WxPayNotifyServiceImpl implements WxPayNotifyService {
+
+    @Resource
+    private WxPayService wxPayService;
+
+    //处理通知的工作线程数
+    @Value("${payment.notify.worker-threads:4}")
+    private int workerThreads;
+
+    //等待处理的通知的最大数量
+    @Value("${payment.notify.queue-capacity:10000}")
+    private int queueCapacity;
+
+    //通知日志的目录
+    @Value("${payment.notify.journal-dir:journal/notify}")
+    private String journalDir;
+
+    //通知日志每个段文件的大小(字节)
+    @Value("${payment.notify.journal-segment-size:67108864}")
+    private int journalSegmentSize;
+
+    //处理失败时的最大尝试次数
+    @Value("${payment.notify.max-attempts:3}")
+    private int maxAttempts;
+
+    //去重缓存的最大数量
+    @Value("${payment.notify.dedup-max-size:100000}")
+    private int dedupMaxSize;
+
+    //去重缓存的过期时间：微信的重复通知 持续约24小时
+    @Value("${payment.notify.dedup-ttl-minutes:1500}")
+    private long dedupTtlMinutes;
+
+    /**
+     * 去重缓存中每条数据占用内存的估算值(字节)：
+     * 36个字符的通知id(String 约 40 + 36 * 2)、LinkedHashMap的Entry(约 48)、过期时间的包装对象(约 24)
+     */
+    private static final int DEDUP_ENTRY_BYTES = 40 + 36 * 2 + 48 + 24;
+
+    private ThreadPoolExecutor executor;
+
+    private NotifyJournal journal;
+
+    //已经处理成功的通知id：APIv3为通知的id，APIv2为微信支付订单号transaction_id
+    private ExpiringLruCache<String, Boolean> processedIds;
+
+    private final LongAdder accepted = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder processed = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    //处理延迟：从收到通知到处理完成的时间(毫秒)
+    private final LongAdder totalLagMillis = new LongAdder();
+
+    private final AtomicLong lastLagMillis = new AtomicLong();
+
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    @PostConstruct
+    public void init() throws IOException {
+        journal = new NotifyJournal(Paths.get(journalDir), journalSegmentSize);
+        processedIds = new ExpiringLruCache<>(dedupMaxSize, TimeUnit.MINUTES.toMillis(dedupTtlMinutes));
+        executor = new ThreadPoolExecutor(workerThreads, workerThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new CustomizableThreadFactory("wx-notify-"),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException, IOException {
+        //停止接收新的通知，处理完队列中已有的通知
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("通知队列未处理完成，剩余 ===> {}", executor.getQueue().size());
+        }
+        //未处理完成的通知 下次启动时重放
+        journal.close();
+    }
+
+    /**
+     * 应用启动完成后 重放上次未处理完成的通知
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void replay() throws IOException {
+
+        long start = System.currentTimeMillis();
+        long count = journal.replay(entry -> {
+            //通知日志中没有保存通知id：重放的通知处理成功后 不放入去重缓存
+            NotifyTask task = new NotifyTask(WxNotifyType.valueOf(entry.getType()), null,
+                    new String(entry.getPayload(), StandardCharsets.UTF_8),
+                    System.currentTimeMillis(), entry.getSeq(), 1);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                //队列已满：由启动线程直接处理
+                task.run();
+            }
+        });
+        if (count > 0) {
+            log.warn("重放未处理完成的通知 ===> {} 条，耗时 {} ms", count, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 通知是否已经处理成功
+     *
+     * @param notifyId 通知id
+     * @return true表示是重复的通知，可以直接应答成功
+     */
+    @Override
+    public boolean isProcessed(String notifyId) {
+        return notifyId != null && processedIds.get(notifyId) != null;
+    }
+
+    /**
+     * 将验签成功的通知放入处理队列
+     *
+     * @param notifyType 通知类型
+     * @param notifyId   通知id，用于识别微信重复发送的通知
+     * @param body       通知的原始报文
+     * @return 是否成功放入队列，false表示队列已满，需要应答失败
+     */
+    @Override
+    public boolean submit(WxNotifyType notifyType, String notifyId, String body) {
+
+        //写入通知日志 刷盘后才能应答微信
+        long seq;
+        try {
+            seq = journal.append(notifyType.name(), body.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            rejected.increment();
+            log.error("写入通知日志失败 ===> {}", notifyType, e);
+            return false;
+        }
+
+        try {
+            executor.execute(new NotifyTask(notifyType, notifyId, body, System.currentTimeMillis(), seq, 1));
+        } catch (RejectedExecutionException e) {
+            //应答失败 微信会重新通知，这条日志不需要再处理
+            journal.commit(seq);
+            rejected.increment();
+            log.warn("通知队列已满 ===> {}", notifyType);
+            return false;
+        }
+        //处理成功后才放入去重缓存：处理完成前 微信重复发送的通知会再次入队，订单状态的更新是幂等的
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * 通知队列的统计数据
+     */
+    @Override
+    public Map<String, Object> getStats() {
+
+        long processedCount = processed.sum();
+        long failedCount = failed.sum();
+        long finished = processedCount + failedCount;
+
+        //队首通知的等待时间
+        long oldestWaitMillis = 0;
+        Runnable head = executor.getQueue().peek();
+        if (head instanceof NotifyTask) {
+            oldestWaitMillis = System.currentTimeMillis() - ((NotifyTask) head).receivedAt;
+        }
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("activeWorkers", executor.getActiveCount());
+        stats.put("accepted", accepted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("processed", processedCount);
+        stats.put("failed", failedCount);
+        stats.put("oldestWaitMillis", oldestWaitMillis);
+        stats.put("lastLagMillis", lastLagMillis.get());
+        stats.put("maxLagMillis", maxLagMillis.get());
+        stats.put("avgLagMillis", finished == 0 ? 0 : totalLagMillis.sum() / finished);
+        stats.put("journalLastSeq", journal.getLastSeq());
+        stats.put("journalCheckpoint", journal.getCheckpoint());
+        stats.put("journalSegments", journal.getSegmentCount());
+        stats.put("dedupHits", processedIds.getHitCount());
+        stats.put("dedupMisses", processedIds.getMissCount());
+        stats.put("dedupHitRate", processedIds.getHitRate());
+        stats.put("dedupSize", processedIds.size());
+        stats.put("dedupEstimatedBytes", (long) processedIds.size() * DEDUP_ENTRY_BYTES);
+        return stats;
+    }
+
+    /**
+     * 根据通知类型 调用对应的处理方法
+     *
+     * @return 处理完成(数据已经写入数据库)时完成
+     */
+    private CompletableFuture<?> dispatch(WxNotifyType notifyType, String body) throws Exception {
+
+        switch (notifyType) {
+            case NATIVE_NOTIFY:
+                return wxPayService.processOrder(body);
+            case REFUND_NOTIFY:
+                wxPayService.processRefund(body);
+                return CompletableFuture.completedFuture(null);
+            case NATIVE_NOTIFY_V2:
+                return wxPayService.processOrderV2(body);
+            default:
+                throw new IllegalArgumentException("不支持的通知类型 " + notifyType);
+        }
+    }
+
+    private void recordLag(long lag) {
+        totalLagMillis.add(lag);
+        lastLagMillis.set(lag);
+        maxLagMillis.accumulateAndGet(lag, Math::max);
+    }
+
+    /**
+     * 队列中的一条通知
+     */
+    private class NotifyTask implements Runnable {
+
+        private final WxNotifyType notifyType;
+
+        //通知id，重放的通知为null
+        private final String notifyId;
+
+        private final String body;
+
+        private final long receivedAt;
+
+        //通知日志中的序号
+        private final long seq;
+
+        //第几次处理
+        private final int attempt;
+
+        NotifyTask(WxNotifyType notifyType, String notifyId, String body, long receivedAt, long seq, int attempt) {
+            this.notifyType = notifyType;
+            this.notifyId = notifyId;
+            this.body = body;
+            this.receivedAt = receivedAt;
+            this.seq = seq;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            CompletableFuture<?> future;
+            try {
+                if (attempt > 1) {
+                    TimeUnit.MILLISECONDS.sleep(200L * (attempt - 1));
+                }
+                future = dispatch(notifyType, body);
+            } catch (InterruptedException e) {
+                //停机时中断：不推进位点，下次启动重放
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                onFailure(e);
+                return;
+            }
+
+            //不等待批量写入：工作线程继续处理下一条通知，写入数据库后再推进位点
+            future.whenComplete((result, e) -> {
+                if (e == null) {
+                    processed.increment();
+                    if (notifyId != null) {
+                        processedIds.put(notifyId, Boolean.TRUE);
+                    }
+                    finish();
+                } else {
+                    onFailure(e);
+                }
+            });
+        }
+
+        /**
+         * 处理完成(或放弃处理) 推进通知日志的位点
+         */
+        private void finish() {
+            journal.commit(seq);
+            recordLag(System.currentTimeMillis() - receivedAt);
+        }
+
+        private void onFailure(Throwable e) {
+            if (attempt < maxAttempts) {
+                log.warn("处理通知失败，第{}次重试 ===> {}, seq = {}", attempt, notifyType, seq);
+                try {
+                    executor.execute(new NotifyTask(notifyType, notifyId, body, receivedAt, seq, attempt + 1));
+                    return;
+                } catch (RejectedExecutionException ex) {
+                    if (executor.isShutdown()) {
+                        //停机：不推进位点，下次启动重放
+                        return;
+                    }
+                    log.warn("通知队列已满，放弃重试 ===> {}, seq = {}", notifyType, seq);
+                }
+            }
+            //放弃处理：由定时查单/查退款任务 向微信核实状态
+            failed.increment();
+            log.error("处理通知失败 ===> {}, seq = {}", notifyType, seq, e);
+            finish();
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.kai.paymentdemo.entity.OrderInfo;
+import com.kai.paymentdemo.entity.RefundInfo;
+import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.enums.wxpay.WxRefundStatus;
+import com.kai.paymentdemo.service.OrderInfoService;
+import com.kai.paymentdemo.service.RefundInfoService;
+import com.kai.paymentdemo.service.TaskLeaseService;
+import com.kai.paymentdemo.service.WxPayReconcileService;
+import com.kai.paymentdemo.service.WxPayService;
+import com.kai.paymentdemo.util.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 定时查单：核实超时未支付的订单
+ * <p>
+ * 按(create_time, id)游标 分批读取未支付的订单，每批的订单 由固定数量的线程并行核实；
+ * 所有调用微信接口的线程共用一个限流器，总的QPS不超过配置的值
+ * 正在核实的订单不会被重复提交；上一次执行未完成时 本次执行直接跳过
+ * 订单超时的时间轮 到期时也通过这里核实单个订单
+ * <p>
+ * 超时未成功的退款单 按指数退避核实：每次核实后 下次核实的时间加倍(有上限)，
+ * 核实次数和下次核实的时间保存在数据库中，重启后不会重置
+ * <p>
+ * 部署多个节点时 按订单号的哈希值分片，每个节点只核实分配给自己的订单和退款单
+ */
+@Service
+@Slf4j
+public class WxPayReconcileServiceImpl implements WxPayReconcileService {
+
+    @Resource
+    private OrderInfoService orderInfoService;
+
+    @Resource
+    private WxPayService wxPayService;
+
+    @Resource
+    private RefundInfoService refundInfoService;
+
+    @Resource
+    private TaskLeaseService taskLeaseService;
+
+    //调用微信查单接口的最大QPS
+    @Value("${payment.reconcile.qps:20}")
+    private double qps;
+
+    //同时核实的订单数
+    @Value("${payment.reconcile.parallelism:8}")
+    private int parallelism;
+
+    //每批从数据库读取的订单数
+    @Value("${payment.reconcile.batch-size:200}")
+    private int batchSize;
+
+    //只核实创建超过minutes分钟的订单
+    @Value("${payment.reconcile.order-timeout-minutes:1}")
+    private int orderTimeoutMinutes;
+
+    //只核实申请超过minutes分钟的退款单
+    @Value("${payment.reconcile.refund-timeout-minutes:1}")
+    private int refundTimeoutMinutes;
+
+    //退款单第一次核实后的等待时间(秒)，之后每次翻倍
+    @Value("${payment.reconcile.refund-initial-backoff-seconds:60}")
+    private long refundInitialBackoffSeconds;
+
+    //退款单两次核实之间的最长等待时间(分钟)
+    @Value("${payment.reconcile.refund-max-backoff-minutes:360}")
+    private long refundMaxBackoffMinutes;
+
+    private RateLimiter rateLimiter;
+
+    private ExecutorService executor;
+
+    //是否正在执行
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    //正在核实的订单号
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder totalChecked = new LongAdder();
+
+    private final LongAdder totalFailed = new LongAdder();
+
+    private final LongAdder skippedRuns = new LongAdder();
+
+    //最近一次执行的统计
+    private volatile Map<String, Object> lastRun = new HashMap<>();
+
+    //退款单核实是否正在执行
+    private final AtomicBoolean refundRunning = new AtomicBoolean();
+
+    //正在核实的退款单号
+    private final Set<String> refundsInFlight = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder refundChecksIssued = new LongAdder();
+
+    //因为退避 没有调用微信接口的次数(与每次都核实所有退款单相比)
+    private final LongAdder refundChecksSaved = new LongAdder();
+
+    private final LongAdder refundsResolved = new LongAdder();
+
+    //最近一次退款单核实的统计
+    private volatile Map<String, Object> lastRefundRun = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        rateLimiter = new RateLimiter(qps);
+        executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("wx-reconcile-"));
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 核实超时未支付的订单
+     */
+    @Override
+    public void confirmNoPayOrders() {
+
+        if (!running.compareAndSet(false, true)) {
+            skippedRuns.increment();
+            log.warn("上一次查单尚未完成，本次跳过");
+            return;
+        }
+
+        long start = System.nanoTime();
+        Date createdBefore = Date.from(Instant.now().minus(Duration.ofMinutes(orderTimeoutMinutes)));
+        int backlog = 0;
+        long checked = 0;
+        long failed = 0;
+        long skipped = 0;
+
+        try {
+            //本次执行开始时 积压的订单数
+            backlog = orderInfoService.countNoPayOrder(createdBefore);
+
+            Date afterCreateTime = null;
+            String afterId = null;
+            while (!Thread.currentThread().isInterrupted()) {
+
+                List<OrderInfo> batch = orderInfoService.getNoPayOrderPage(createdBefore, afterCreateTime, afterId, batchSize);
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                List<Future<Boolean>> futures = new ArrayList<>(batch.size());
+                for (OrderInfo orderInfo : batch) {
+                    String orderNo = orderInfo.getOrderNo();
+                    //由其他节点核实
+                    if (!taskLeaseService.owns(orderNo)) {
+                        continue;
+                    }
+                    //正在核实中(例如上一批的调用仍未返回)：跳过
+                    if (!inFlight.add(orderNo)) {
+                        skipped++;
+                        continue;
+                    }
+                    futures.add(executor.submit(() -> check(orderNo)));
+                }
+
+                //等待这一批完成后再读取下一批，内存中最多只有一批订单
+                for (Future<Boolean> future : futures) {
+                    if (future.get()) {
+                        checked++;
+                    } else {
+                        failed++;
+                    }
+                }
+
+                OrderInfo last = batch.get(batch.size() - 1);
+                afterCreateTime = last.getCreateTime();
+                afterId = last.getId();
+                if (batch.size() < batchSize) {
+                    break;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("查单失败", e);
+        } finally {
+            running.set(false);
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            double throughput = elapsedMillis == 0 ? 0 : checked * 1000.0 / elapsedMillis;
+            totalChecked.add(checked);
+            totalFailed.add(failed);
+
+            Map<String, Object> run = new HashMap<>();
+            run.put("startedAt", new Date(System.currentTimeMillis() - elapsedMillis));
+            run.put("elapsedMillis", elapsedMillis);
+            run.put("backlog", backlog);
+            run.put("checked", checked);
+            run.put("failed", failed);
+            run.put("skipped", skipped);
+            run.put("throughput", throughput);
+            lastRun = run;
+
+            log.info("查单完成：积压 {} 个，核实 {} 个，失败 {} 个，跳过 {} 个，耗时 {} ms，{} 个/秒",
+                    backlog, checked, failed, skipped, elapsedMillis, String.format("%.1f", throughput));
+        }
+    }
+
+    /**
+     * 异步核实一个订单：订单已经支付或关闭时 不再调用微信接口
+     * 由订单超时的时间轮调用
+     *
+     * @return true表示本地订单已经不是未支付；false表示需要稍后再次核实：
+     * 线程池已满、正在由定时查单核实、查询或核实失败、微信端仍是未支付/支付中
+     */
+    @Override
+    public CompletableFuture<Boolean> confirmOrder(String orderNo) {
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (!inFlight.add(orderNo)) {
+            result.complete(false);
+            return result;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    String orderStatus = orderInfoService.getOrderStatus(orderNo);
+                    if (!OrderStatus.NOTPAY.getType().equals(orderStatus)) {
+                        inFlight.remove(orderNo);
+                        result.complete(true);
+                        return;
+                    }
+                    if (check(orderNo)) {
+                        totalChecked.increment();
+                    } else {
+                        totalFailed.increment();
+                        result.complete(false);
+                        return;
+                    }
+                    //核实后本地订单的状态：已支付、已关闭则完成
+                    result.complete(!OrderStatus.NOTPAY.getType().equals(orderInfoService.getOrderStatus(orderNo)));
+                } catch (Exception e) {
+                    log.error("查询订单状态失败 ===> {}", orderNo, e);
+                    inFlight.remove(orderNo);
+                    result.complete(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(orderNo);
+            result.complete(false);
+        }
+        return result;
+    }
+
+    /**
+     * 核实超时未成功的退款单
+     * 每个退款单按指数退避安排下次核实的时间(保存在数据库中)，只核实已经到期的退款单
+     */
+    @Override
+    public void confirmProcessingRefunds() {
+
+        if (!refundRunning.compareAndSet(false, true)) {
+            skippedRuns.increment();
+            log.warn("上一次退款单核实尚未完成，本次跳过");
+            return;
+        }
+
+        long start = System.nanoTime();
+        Date now = new Date();
+        Date createdBefore = Date.from(now.toInstant().minus(Duration.ofMinutes(refundTimeoutMinutes)));
+        int processing = 0;
+        long issued = 0;
+        long resolved = 0;
+        long failed = 0;
+
+        try {
+            //本次执行开始时 未成功的退款单数：不使用退避时 每次都要全部核实
+            processing = refundInfoService.countNoRefundOrder(createdBefore);
+
+            String afterId = null;
+            while (!Thread.currentThread().isInterrupted()) {
+
+                List<RefundInfo> batch = refundInfoService.getDueRefundPage(createdBefore, now, afterId, batchSize);
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                List<Future<String>> futures = new ArrayList<>(batch.size());
+                for (RefundInfo refundInfo : batch) {
+                    //按订单号分片：由其他节点核实
+                    if (!taskLeaseService.owns(refundInfo.getOrderNo())) {
+                        continue;
+                    }
+                    if (!refundsInFlight.add(refundInfo.getRefundNo())) {
+                        continue;
+                    }
+                    futures.add(executor.submit(() -> checkRefund(refundInfo)));
+                }
+
+                for (Future<String> future : futures) {
+                    String status = future.get();
+                    issued++;
+                    if (status == null) {
+                        failed++;
+                    } else if (!WxRefundStatus.PROCESSING.getType().equals(status)) {
+                        resolved++;
+                    }
+                }
+
+                afterId = batch.get(batch.size() - 1).getId();
+                if (batch.size() < batchSize) {
+                    break;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("核实退款单失败", e);
+        } finally {
+            refundRunning.set(false);
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            //当前节点负责的退款单数 按节点数平均估算
+            long saved = Math.max(0, processing / Math.max(1, taskLeaseService.getShardCount()) - issued);
+            refundChecksIssued.add(issued);
+            refundChecksSaved.add(saved);
+            refundsResolved.add(resolved);
+
+            Map<String, Object> run = new HashMap<>();
+            run.put("startedAt", now);
+            run.put("elapsedMillis", elapsedMillis);
+            run.put("processing", processing);
+            run.put("issued", issued);
+            run.put("saved", saved);
+            run.put("resolved", resolved);
+            run.put("failed", failed);
+            lastRefundRun = run;
+
+            log.info("退款单核实完成：未成功 {} 个，核实 {} 个，退避跳过 {} 个，已完成 {} 个，失败 {} 个，耗时 {} ms",
+                    processing, issued, saved, resolved, failed, elapsedMillis);
+        }
+    }
+
+    /**
+     * 调用微信查单、查询退款接口前获取令牌：其他服务(对账的自动修复)与定时查单共用一个限流器
+     */
+    @Override
+    public void acquirePermit() throws InterruptedException {
+        rateLimiter.acquire();
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("running", running.get());
+        stats.put("inFlight", inFlight.size());
+        stats.put("qps", qps);
+        stats.put("parallelism", parallelism);
+        stats.put("totalChecked", totalChecked.sum());
+        stats.put("totalFailed", totalFailed.sum());
+        stats.put("skippedRuns", skippedRuns.sum());
+        stats.put("lastRun", lastRun);
+        stats.put("refundRunning", refundRunning.get());
+        stats.put("refundChecksIssued", refundChecksIssued.sum());
+        stats.put("refundChecksSaved", refundChecksSaved.sum());
+        stats.put("refundsResolved", refundsResolved.sum());
+        stats.put("lastRefundRun", lastRefundRun);
+        return stats;
+    }
+
+    /**
+     * 核实一个订单的状态
+     *
+     * @return 是否核实成功
+     */
+    private boolean check(String orderNo) {
+        try {
+            rateLimiter.acquire();
+            log.warn("超时订单 ===> {}", orderNo);
+            wxPayService.checkOrderStatus(orderNo);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            log.error("核实订单状态失败 ===> {}", orderNo, e);
+            return false;
+        } finally {
+            inFlight.remove(orderNo);
+        }
+    }
+
+    /**
+     * 核实一个退款单的状态，并安排下次核实的时间
+     * 按核实后本地退款单的状态决定：本地仍是 退款中 就安排下次核实，不依赖微信返回的状态
+     *
+     * @return 核实后本地退款单的状态，核实失败时返回null
+     */
+    private String checkRefund(RefundInfo refundInfo) {
+
+        String refundNo = refundInfo.getRefundNo();
+        int attempts = refundInfo.getCheckAttempts() == null ? 0 : refundInfo.getCheckAttempts();
+        String status = null;
+        try {
+            rateLimiter.acquire();
+            log.warn("超时未退款的退款单号 ===> {}，第 {} 次核实", refundNo, attempts + 1);
+            status = wxPayService.checkRefundStatus(refundNo);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            refundsInFlight.remove(refundNo);
+            return null;
+        } catch (Exception e) {
+            log.error("核实退款单状态失败 ===> {}", refundNo, e);
+        }
+
+        String localStatus = null;
+        try {
+            if (status != null) {
+                localStatus = refundInfoService.getRefundStatus(refundNo);
+            }
+            //本地仍未完成(或核实失败)：安排下次核实
+            if (localStatus == null || WxRefundStatus.PROCESSING.getType().equals(localStatus)) {
+                Date nextCheckTime = new Date(System.currentTimeMillis() + refundBackoffMillis(attempts));
+                refundInfoService.scheduleNextCheck(refundNo, attempts + 1, nextCheckTime);
+            }
+        } catch (Exception e) {
+            log.error("保存退款单下次核实时间失败 ===> {}", refundNo, e);
+        } finally {
+            refundsInFlight.remove(refundNo);
+        }
+        return localStatus;
+    }
+
+    /**
+     * 第attempts次核实之后的等待时间：initial * 2^attempts，不超过上限
+     */
+    private long refundBackoffMillis(int attempts) {
+        long maxMillis = TimeUnit.MINUTES.toMillis(refundMaxBackoffMinutes);
+        long backoff = TimeUnit.SECONDS.toMillis(refundInitialBackoffSeconds) << Math.min(attempts, 30);
+        return backoff <= 0 ? maxMillis : Math.min(backoff, maxMillis);
+    }
+}
@@ -4,18 +4,25 @@ import com.github.wxpay.sdk.WXPayUtil;
 import com.google.gson.Gson;
 import com.kai.paymentdemo.config.WxPayConfig;
 import com.kai.paymentdemo.entity.OrderInfo;
+import com.kai.paymentdemo.entity.PaymentInfo;
 import com.kai.paymentdemo.entity.RefundInfo;
 import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.enums.PayloadType;
 import com.kai.paymentdemo.enums.wxpay.WxApiType;
 import com.kai.paymentdemo.enums.wxpay.WxNotifyType;
 import com.kai.paymentdemo.enums.wxpay.WxRefundStatus;
 import com.kai.paymentdemo.enums.wxpay.WxTradeState;
 import com.kai.paymentdemo.service.OrderInfoService;
 import com.kai.paymentdemo.service.PaymentInfoService;
+import com.kai.paymentdemo.service.PaymentLogBatchService;
+import com.kai.paymentdemo.service.PayloadService;
 import com.kai.paymentdemo.service.RefundInfoService;
 import com.kai.paymentdemo.service.WxPayService;
 import com.kai.paymentdemo.util.HttpClientUtils;
-import com.wechat.pay.contrib.apache.httpclient.util.AesUtil;
+import com.kai.paymentdemo.util.NotificationDecryptor;
+import com.kai.paymentdemo.vo.WxNotification;
+import com.kai.paymentdemo.vo.WxRefund;
+import com.kai.paymentdemo.vo.WxTransaction;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
@@ -29,12 +36,10 @@ import org.springframework.util.StringUtils;
 
 import javax.annotation.Resource;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
@@ -52,14 +57,23 @@ public class WxPayServiceImpl implements WxPayService {
     @Resource
     private PaymentInfoService paymentInfoService;
 
+    @Resource
+    private PaymentLogBatchService paymentLogBatchService;
+
+    @Resource
+    private PayloadService payloadService;
+
     @Resource
     private RefundInfoService refundsInfoService;
 
     @Resource
     private CloseableHttpClient wxPayNoSignClient; //无需应答签名
 
+    @Resource
+    private CloseableHttpClient wxPayV2Client; //APIv2使用的连接池
 
-    private final ReentrantLock lock = new ReentrantLock();
+    @Resource
+    private NotificationDecryptor notificationDecryptor; //解密通知：复用密钥和Cipher
 
 
     /**
@@ -172,54 +186,24 @@ public class WxPayServiceImpl implements WxPayService {
      * 对 微信 返回的支付结果通知
      * 进行处理：此前已经验证签名成功
      * 此方向  进行：解密数据 、更新订单状态(未支付 改为 已支付)、记录支付日志
+     * 更新订单状态、记录支付日志 由批量写入在同一个事务中完成，返回的Future在写入数据库后完成
      */
-    @Transactional(rollbackFor = Exception.class)
     @Override
-    public void processOrder(Map<String, Object> bodyMap) throws GeneralSecurityException {
+    public CompletableFuture<Boolean> processOrder(String body) throws GeneralSecurityException, InterruptedException {
         log.info("处理订单");
 
         //解密报文
-        String plainText = decryptFromResource(bodyMap);
+        String plainText = decryptFromResource(body);
+        WxTransaction transaction = new Gson().fromJson(plainText, WxTransaction.class);
 
-        //将明文转换成map
-        Gson gson = new Gson();
-        HashMap plainTextMap = gson.fromJson(plainText, HashMap.class);
-        String orderNo = (String) plainTextMap.get("out_trade_no");
-
-
-        /*在对业务数据进行状态检查和处理之前，
-        要采用数据锁进行并发控制，
-        以避免函数重入造成的数据混乱*/
-        //尝试获取锁：
-        // 成功获取则立即返回true，获取失败则立即返回false。不必一直等待锁的释放
-        if (lock.tryLock()) {
-            try {
-
-                //查看订单信息表中的字段order_status状态
-                String orderStatus = orderInfoService.getOrderStatus(orderNo);
-                if (!OrderStatus.NOTPAY.getType().equals(orderStatus)) {
-                    return;
-                }
-
-                //未支付再开始处理订单
-
-                //延迟 返回给 微信 的响应 ：模拟通知并发
-                try {
-                    TimeUnit.SECONDS.sleep(5);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-
-                //1、更新订单状态
-                orderInfoService.updateStatusByOrderNo(orderNo, OrderStatus.SUCCESS);
-
-                //2、记录支付日志
-                paymentInfoService.createPaymentInfo(plainText);
-            } finally {
-                //要主动释放锁
-                lock.unlock();
-            }
-        }
+        //生成支付日志
+        PaymentInfo paymentInfo = paymentInfoService.buildPaymentInfo(transaction);
+
+        /*接口调用的幂等性：无论接口被调用多少次，产生的结果是一致的。
+        由数据库的条件更新保证：只有 未支付 的订单才会被更新为 支付成功，
+        重复的通知(包括其他节点收到的通知)更新不到数据，也不会记录支付日志*/
+        return paymentLogBatchService.submitPaid(paymentInfo.getOrderNo(), paymentInfo,
+                payloadService.buildPayload(PayloadType.PAYMENT, plainText));
     }
 
     /**
@@ -311,9 +295,11 @@ public class WxPayServiceImpl implements WxPayService {
             log.warn("核实订单已支付 ===> {}", orderNo);
 
             //如果确认订单已支付则更新本地订单状态为：已支付
-            orderInfoService.updateStatusByOrderNo(orderNo, OrderStatus.SUCCESS);
-            //记录支付日志
-            paymentInfoService.createPaymentInfo(result);
+            //支付通知已经处理过该订单时 不再重复记录支付日志
+            if (orderInfoService.transitionStatus(orderNo, OrderStatus.NOTPAY, OrderStatus.SUCCESS)) {
+                //记录支付日志
+                paymentInfoService.createPaymentInfo(result);
+            }
         }
 
         if (WxTradeState.NOTPAY.getType().equals(tradeState)) {
@@ -322,8 +308,8 @@ public class WxPayServiceImpl implements WxPayService {
             //如果订单未支付，则调用关单接口
             this.closeOrder(orderNo);
 
-            //更新本地订单状态
-            orderInfoService.updateStatusByOrderNo(orderNo, OrderStatus.CLOSED);
+            //更新本地订单状态：只关闭仍然未支付的订单
+            orderInfoService.transitionStatus(orderNo, OrderStatus.NOTPAY, OrderStatus.CLOSED);
         }
 
     }
@@ -443,11 +429,11 @@ public class WxPayServiceImpl implements WxPayService {
      * 根据退款单号核实退款单状态
      *
      * @param refundNo
-     * @return
+     * @return 微信支付端的退款状态
      */
     @Transactional(rollbackFor = Exception.class)
     @Override
-    public void checkRefundStatus(String refundNo) throws Exception {
+    public String checkRefundStatus(String refundNo) throws Exception {
 
         log.warn("根据退款单号核实退款单状态 ===> {}", refundNo);
 
@@ -467,10 +453,9 @@ public class WxPayServiceImpl implements WxPayService {
 
             log.warn("核实订单已退款成功 ===> {}", refundNo);
 
-            //如果确认退款成功，则更新订单状态
-            orderInfoService.updateStatusByOrderNo(orderNo, OrderStatus.REFUND_SUCCESS);
-
-            //更新退款单
+            //如果确认退款成功，则更新订单状态：订单已经不是 退款中(例如同一订单的另一个退款单) 时不更新
+            orderInfoService.transitionStatus(orderNo, OrderStatus.REFUND_PROCESSING, OrderStatus.REFUND_SUCCESS);
+            //退款单的状态以微信的结果为准：无论订单是否更新，都结束这个退款单，不再核实
             refundsInfoService.updateRefund(result);
         }
 
@@ -479,11 +464,12 @@ public class WxPayServiceImpl implements WxPayService {
             log.warn("核实订单退款异常  ===> {}", refundNo);
 
             //如果确认未退款成功，则更新订单状态
-            orderInfoService.updateStatusByOrderNo(orderNo, OrderStatus.REFUND_ABNORMAL);
-
+            orderInfoService.transitionStatus(orderNo, OrderStatus.REFUND_PROCESSING, OrderStatus.REFUND_ABNORMAL);
             //更新退款单
             refundsInfoService.updateRefund(result);
         }
+
+        return status;
     }
 
     /**
@@ -491,42 +477,26 @@ public class WxPayServiceImpl implements WxPayService {
      */
     @Transactional(rollbackFor = Exception.class)
     @Override
-    public void processRefund(Map<String, Object> bodyMap) throws Exception {
+    public void processRefund(String body) throws Exception {
 
         log.info("退款单");
 
         //解密报文
-        String plainText = decryptFromResource(bodyMap);
+        String plainText = decryptFromResource(body);
 
-        //将明文转换成map
-        Gson gson = new Gson();
-        HashMap plainTextMap = gson.fromJson(plainText, HashMap.class);
-        String orderNo = (String) plainTextMap.get("out_trade_no");
-
-        /*在对业务数据进行状态检查和处理之前，
-        要采用数据锁进行并发控制，
-        以避免函数重入造成的数据混乱*/
-        //尝试获取锁：
-        // 成功获取则立即返回true，获取失败则立即返回false。不必一直等待锁的释放
-        if (lock.tryLock()) {
-            try {
-
-                String orderStatus = orderInfoService.getOrderStatus(orderNo);
-                if (!OrderStatus.REFUND_PROCESSING.getType().equals(orderStatus)) {
-                    return;
-                }
-
-                //更新订单状态
-                orderInfoService.updateStatusByOrderNo(orderNo, OrderStatus.REFUND_SUCCESS);
-
-                //更新退款单
-                refundsInfoService.updateRefund(plainText);
-
-            } finally {
-                //要主动释放锁
-                lock.unlock();
-            }
+        //将明文转换成退款结果
+        WxRefund refund = new Gson().fromJson(plainText, WxRefund.class);
+        refund.setPlainText(plainText);
+        String orderNo = refund.getOutTradeNo();
+
+        //只有 退款中 的订单才会被更新为 已退款，重复的通知更新不到数据，直接返回
+        //更新订单状态
+        if (!orderInfoService.transitionStatus(orderNo, OrderStatus.REFUND_PROCESSING, OrderStatus.REFUND_SUCCESS)) {
+            return;
         }
+
+        //更新退款单
+        refundsInfoService.updateRefund(refund);
     }
 
     /**
@@ -582,47 +552,6 @@ public class WxPayServiceImpl implements WxPayService {
         }
     }
 
-    /**
-     * 下载账单
-     *
-     * @param billDate
-     * @param type
-     * @return
-     * @throws Exception
-     */
-    @Override
-    public String downloadBill(String billDate, String type) throws Exception {
-        log.warn("下载账单接口调用 {}, {}", billDate, type);
-
-        //获取账单url地址
-        String downloadUrl = this.queryBill(billDate, type);
-        //创建远程Get 请求对象
-        HttpGet httpGet = new HttpGet(downloadUrl);
-        httpGet.addHeader("Accept", "application/json");
-
-        //使用wxPayClient发送请求得到响应
-        CloseableHttpResponse response = wxPayNoSignClient.execute(httpGet);
-
-        try {
-
-            String bodyAsString = EntityUtils.toString(response.getEntity());
-
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode == 200) {
-                log.info("成功, 下载账单返回结果 = " + bodyAsString);
-            } else if (statusCode == 204) {
-                log.info("成功");
-            } else {
-                throw new RuntimeException("下载账单异常, 响应码 = " + statusCode + ", 下载账单返回结果 = " + bodyAsString);
-            }
-
-            return bodyAsString;
-
-        } finally {
-            response.close();
-        }
-    }
-
     @Override
     public Map<String, Object> nativePayV2(Long productId, String remoteAddr) throws Exception {
 
@@ -642,7 +571,7 @@ public class WxPayServiceImpl implements WxPayService {
 
         log.info("调用统一下单API");
 
-        HttpClientUtils client = new HttpClientUtils(wxPayConfig.getDomain().concat(WxApiType.NATIVE_PAY_V2.getType()));
+        HttpClientUtils client = new HttpClientUtils(wxPayConfig.getDomain().concat(WxApiType.NATIVE_PAY_V2.getType()), wxPayV2Client);
 
         //组装接口参数
         Map<String, String> params = new HashMap<>();
@@ -665,8 +594,7 @@ public class WxPayServiceImpl implements WxPayService {
         log.info("\n xmlParams：\n" + xmlParams);
 
         client.setXmlParam(xmlParams);//将参数放入请求对象的方法体
-        client.setHttps(true);//使用https形式发送
-        client.post();//发送请求
+        client.post();//发送请求：使用共享连接池中的https连接
         String resultXml = client.getContent();//得到响应结果
         log.info("\n resultXml：\n" + resultXml);
         //将xml响应结果转成map对象
@@ -693,6 +621,36 @@ public class WxPayServiceImpl implements WxPayService {
         return map;
     }
 
+    /**
+     * 处理APIv2的支付通知：此前已经验证签名成功
+     * 校验订单金额、更新订单状态(未支付 改为 已支付)、记录支付日志
+     *
+     * @param body 通知的原始xml报文
+     */
+    @Override
+    public CompletableFuture<Boolean> processOrderV2(String body) throws Exception {
+        log.info("处理订单 v2");
+
+        //解析xml数据
+        Map<String, String> notifyMap = WXPayUtil.xmlToMap(body);
+
+        //获取商户订单号
+        String orderNo = notifyMap.get("out_trade_no");
+        OrderInfo orderInfo = orderInfoService.getOrderByOrderNo(orderNo);
+        //控制器应答前已经校验过金额，重放的通知在这里再次校验：不一致时按处理失败统计，不更新订单
+        if (orderInfo != null && orderInfo.getTotalFee() != Long.parseLong(notifyMap.get("total_fee"))) {
+            log.error("金额校验失败 ===> {}", orderNo);
+            CompletableFuture<Boolean> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("金额校验失败 " + orderNo));
+            return future;
+        }
+
+        //接口调用的幂等性：无论接口被调用多少次，产生的结果是一致的。
+        //只有 未支付 的订单才会被更新为 支付成功，重复的通知更新不到数据
+        return paymentLogBatchService.submitPaid(orderNo, paymentInfoService.buildPaymentInfoV2(notifyMap),
+                payloadService.buildPayload(PayloadType.PAYMENT, body));
+    }
+
     /**
      * 调用 微信的关单接口
      * <p>
@@ -747,30 +705,23 @@ public class WxPayServiceImpl implements WxPayService {
 
     /**
      * 利用对称算法的密钥 进行解密 返回明文
+     * 明文含有用户标识、金额等信息：只在DEBUG级别输出
      *
-     * @param bodyMap
+     * @param body 通知的请求体
      * @return
      */
-    private String decryptFromResource(Map<String, Object> bodyMap) throws GeneralSecurityException {
-
-        log.info("密文解密");
+    private String decryptFromResource(String body) throws GeneralSecurityException {
 
         //获取返回的通知数据
-        Map<String, String> resourceMap = (Map) bodyMap.get("resource");
-        //获取通知的数据密文
-        String ciphertext = resourceMap.get("ciphertext");
-        //获取通知的随机串
-        String nonce = resourceMap.get("nonce");
-        //获取通知的附加数据
-        String associatedData = resourceMap.get("associated_data");
-
-        log.info("密文 ===> {}", ciphertext);
-        AesUtil aesUtil = new AesUtil(wxPayConfig.getApiV3Key().getBytes(StandardCharsets.UTF_8));
-        String plainText = aesUtil.decryptToString(associatedData.getBytes(StandardCharsets.UTF_8),
-                nonce.getBytes(StandardCharsets.UTF_8),
-                ciphertext);
-
-        log.info("明文 ===> {}", plainText);
+        WxNotification notification = new Gson().fromJson(body, WxNotification.class);
+        WxNotification.Resource resource = notification.getResource();
+        log.info("密文解密 ===> 通知 {}，{}", notification.getId(), notification.getEventType());
+
+        String plainText = notificationDecryptor.decryptToString(resource.getAssociatedData(),
+                resource.getNonce(),
+                resource.getCiphertext());
+
+        log.debug("明文 ===> {}", plainText);
 
         return plainText;
     }
@@ -1,33 +1,36 @@
 package com.kai.paymentdemo.task;
 
-import com.kai.paymentdemo.entity.OrderInfo;
-import com.kai.paymentdemo.entity.RefundInfo;
-import com.kai.paymentdemo.service.OrderInfoService;
-import com.kai.paymentdemo.service.RefundInfoService;
-import com.kai.paymentdemo.service.WxPayService;
+import com.kai.paymentdemo.service.BillReconcileService;
+import com.kai.paymentdemo.service.TaskLeaseService;
+import com.kai.paymentdemo.service.WxBillService;
+import com.kai.paymentdemo.service.WxPayReconcileService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.util.List;
+import java.time.LocalDate;
 
 /*
 解决 商户 迟迟 未接收到 微信 返回的 支付通知
 设置定时任务 进行 订单状态查询
+定时任务的线程池大小：spring.task.scheduling.pool.size，每个任务有自己的线程，耗时的对账不会阻塞查单
  */
 @Slf4j
 @Component
 public class WxPayTask {
 
     @Resource
-    private OrderInfoService orderInfoService;
+    private WxPayReconcileService wxPayReconcileService;
 
     @Resource
-    private WxPayService wxPayService;
+    private BillReconcileService billReconcileService;
 
     @Resource
-    private RefundInfoService refundInfoService;
+    private WxBillService wxBillService;
+
+    @Resource
+    private TaskLeaseService taskLeaseService;
 
     /**
      * 秒 分 时 日 月 周
@@ -46,42 +49,69 @@ public class WxPayTask {
     }
 
     /**
-     * 定时进行查单
-     * 从第0秒开始每隔30秒执行1次，查询创建超过5分钟，并且未支付的订单
+     * 定时进行查单：兜底
+     * 订单的超时核实 由时间轮在创建订单1分钟后触发；这里低频(默认每10分钟)扫描 遗漏的未支付订单
+     * 分批、并行、限流地核实订单状态；上一次执行未完成时 本次跳过
      */
-    @Scheduled(cron = "0/30 * * * * ?")
-    public void orderConfirm() throws Exception {
+    @Scheduled(cron = "${payment.reconcile.safety-net-cron:0 0/10 * * * ?}")
+    public void orderConfirm() {
         log.info("orderConfirm 被执行......");
 
-        List<OrderInfo> orderInfoList = orderInfoService.getNoPayOrderByDuration(1);
-
-        for (OrderInfo orderInfo : orderInfoList) {
-            String orderNo = orderInfo.getOrderNo();
-            log.warn("超时订单 ===> {}", orderNo);
-
-            //核实订单状态：调用微信支付查单接口
-            //可能存在 订单已经支付 但 微信 没有返回 支付结果通知：需要：修改订单状态、调用微信关单接口
-            wxPayService.checkOrderStatus(orderNo);
-        }
+        //核实订单状态：调用微信支付查单接口
+        //可能存在 订单已经支付 但 微信 没有返回 支付结果通知：需要：修改订单状态、调用微信关单接口
+        wxPayReconcileService.confirmNoPayOrders();
     }
 
 
     /**
-     * 从第0秒开始每隔30秒执行1次，查询创建超过5分钟，并且未成功的退款单
+     * 从第0秒开始每隔30秒执行1次，查询申请超过1分钟，并且未成功的退款单
+     * 只核实 下次核实时间已到 的退款单(指数退避)，并行、限流
      */
     @Scheduled(cron = "0/30 * * * * ?")
-    public void refundConfirm() throws Exception {
+    public void refundConfirm() {
         log.info("refundConfirm 被执行......");
 
-        //找出申请退款超过5分钟并且未成功的退款单
-        List<RefundInfo> refundInfoList = refundInfoService.getNoRefundOrderByDuration(1);
+        //核实退款单状态：调用微信支付查询退款接口
+        wxPayReconcileService.confirmProcessingRefunds();
+    }
 
-        for (RefundInfo refundInfo : refundInfoList) {
-            String refundNo = refundInfo.getRefundNo();
-            log.warn("超时未退款的退款单号 ===> {}", refundNo);
+    /**
+     * 预先下载前一天的交易账单、资金账单：运营人员查看账单时 直接读取本地文件
+     * 微信支付次日10点后提供前一天的账单，尚未生成时下载失败，下一个小时重试；已经下载的账单不会重复下载
+     * 下载在账单服务自己的线程中执行：不延迟对账、退款单核实
+     */
+    @Scheduled(cron = "${payment.bill.prefetch-cron:0 5 10-12 * * ?}")
+    public void billPrefetch() {
+        String billDate = LocalDate.now().minusDays(1).toString();
+        log.info("billPrefetch 被执行 ===> {}", billDate);
+
+        if (!wxBillService.prefetchBills(billDate)) {
+            log.info("上一次预先下载账单尚未完成，本次跳过");
+        }
+    }
+
+    /**
+     * 每天对账：下载前一天的交易账单，与本地的订单、支付记录、退款单核对
+     * 微信支付次日10点后提供前一天的账单；部署多个节点时 只由一个节点执行
+     * 与预先下载账单相同 每小时执行一次：账单尚未生成、对账失败时 下一个小时重试，已经完成对账的日期 不再执行
+     */
+    @Scheduled(cron = "${payment.bill-reconcile.cron:0 30 10-12 * * ?}")
+    public void billReconcile() {
+        String billDate = LocalDate.now().minusDays(1).toString();
+        if (!taskLeaseService.owns("bill-reconcile-" + billDate)) {
+            return;
+        }
+        if (billReconcileService.isReconciled(billDate)) {
+            log.info("已经完成对账，本次跳过 ===> {}", billDate);
+            return;
+        }
+        log.info("billReconcile 被执行 ===> {}", billDate);
 
-            //核实订单状态：调用微信支付查询退款接口
-            wxPayService.checkRefundStatus(refundNo);
+        try {
+            wxBillService.downloadBill(billDate, "tradebill");
+            billReconcileService.reconcile(billDate);
+        } catch (Exception e) {
+            log.error("对账失败 ===> {}", billDate, e);
         }
     }
 
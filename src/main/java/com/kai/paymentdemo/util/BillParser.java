@@ -0,0 +1,362 @@
+package com.kai.paymentdemo.util;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 账单文件(解压后的csv)的解析
+ * <p>
+ * 账单的格式：第一行是表头，之后每行一条记录(字段以 ` 开头)，最后两行是汇总的表头和汇总数据
+ * 文件以内存映射的方式读取，按行的边界分成多段 由多个线程同时解析：
+ * 每个线程复用一个记录对象，字段只记录位置，金额直接从字节解析为 分(long)
+ * <p>
+ * 字段中不能包含逗号和换行(微信支付的账单不含引号转义)
+ */
+public class BillParser {
+
+    //读取表头、汇总数据时 最多读取的字节数
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    //每段最多映射的字节数(MappedByteBuffer的上限为2GB)
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private BillParser() {
+    }
+
+    /**
+     * 解析交易账单
+     *
+     * @param file           解压后的账单文件
+     * @param threads        解析的线程数
+     * @param handlerFactory 每个线程创建一个处理器：处理器只在一个线程中使用
+     * @return 解析结果，包含所有的处理器(由调用方合并各线程的结果)
+     */
+    public static <H extends Consumer<? super TradeBillRecord>> Result<H> parseTradeBill(
+            Path file, int threads, Supplier<H> handlerFactory) throws IOException, InterruptedException {
+        return parse(file, threads, TradeBillRecord::new, handlerFactory);
+    }
+
+    /**
+     * 解析资金账单
+     */
+    public static <H extends Consumer<? super FundFlowBillRecord>> Result<H> parseFundFlowBill(
+            Path file, int threads, Supplier<H> handlerFactory) throws IOException, InterruptedException {
+        return parse(file, threads, FundFlowBillRecord::new, handlerFactory);
+    }
+
+    public static <R extends BillRecord, H extends Consumer<? super R>> Result<H> parse(
+            Path file, int threads, Function<Map<String, Integer>, R> recordFactory, Supplier<H> handlerFactory)
+            throws IOException, InterruptedException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long size = channel.size();
+            Result<H> result = new Result<>();
+
+            //表头
+            String headerLine = readHeaderLine(channel, size);
+            long dataStart = Math.min(size, headerLine.getBytes(StandardCharsets.UTF_8).length + 1L);
+            Map<String, Integer> header = new LinkedHashMap<>();
+            for (String name : stripBom(headerLine).trim().split(",")) {
+                header.put(name.trim(), header.size());
+            }
+            result.header = Collections.unmodifiableList(new ArrayList<>(header.keySet()));
+
+            //汇总数据：在末尾的两行，不属于记录
+            long dataEnd = readSummary(channel, dataStart, size, result.summary);
+
+            //按行的边界分段
+            int segmentCount = (int) Math.max(Math.max(1, threads), (dataEnd - dataStart + MAX_SEGMENT_BYTES - 1) / MAX_SEGMENT_BYTES);
+            List<long[]> segments = split(channel, dataStart, dataEnd, segmentCount);
+
+            List<Callable<Segment<H>>> tasks = new ArrayList<>();
+            for (long[] segment : segments) {
+                tasks.add(() -> parseSegment(channel, segment[0], segment[1], recordFactory.apply(header), handlerFactory.get()));
+            }
+
+            List<Segment<H>> parsed = new ArrayList<>();
+            if (tasks.size() == 1) {
+                parsed.add(call(tasks.get(0)));
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(Math.min(Math.max(1, threads), tasks.size()),
+                        new CustomizableThreadFactory("bill-parser-"));
+                try {
+                    for (Future<Segment<H>> future : executor.invokeAll(tasks)) {
+                        parsed.add(get(future));
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            for (Segment<H> segment : parsed) {
+                result.records += segment.records;
+                result.skipped += segment.skipped;
+                result.handlers.add(segment.handler);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 解析一段：[start, end) 从行首开始、在行尾结束
+     */
+    private static <R extends BillRecord, H extends Consumer<? super R>> Segment<H> parseSegment(
+            FileChannel channel, long start, long end, R record, H handler) throws IOException {
+
+        Segment<H> segment = new Segment<>(handler);
+        if (end <= start) {
+            return segment;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int columns = record.getColumnCount();
+        int limit = buffer.limit();
+        int pos = 0;
+        while (pos < limit) {
+            int eol = pos;
+            while (eol < limit && buffer.get(eol) != '\n') {
+                eol++;
+            }
+            //跳过空行
+            if (eol - pos > 1 || (eol - pos == 1 && buffer.get(pos) != '\r')) {
+                if (record.parse(buffer, pos, eol) == columns) {
+                    handler.accept(record);
+                    segment.records++;
+                } else {
+                    segment.skipped++;
+                }
+            }
+            pos = eol + 1;
+        }
+        return segment;
+    }
+
+    /**
+     * 把 [start, end) 分成count段，每段的开头调整到下一行的行首
+     */
+    static List<long[]> split(FileChannel channel, long start, long end, int count) throws IOException {
+
+        List<long[]> segments = new ArrayList<>();
+        long segmentStart = start;
+        for (int i = 1; i <= count && segmentStart < end; i++) {
+            long segmentEnd = i == count ? end : Math.max(segmentStart, nextLine(channel, start + (end - start) * i / count, end));
+            if (segmentEnd > segmentStart) {
+                segments.add(new long[]{segmentStart, segmentEnd});
+            }
+            segmentStart = segmentEnd;
+        }
+        return segments;
+    }
+
+    /**
+     * position之后(含)第一个换行符的下一个位置
+     */
+    private static long nextLine(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < end) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n && position + i < end; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return end;
+    }
+
+    /**
+     * 读取第一行(表头)：不含行尾的换行符
+     */
+    private static String readHeaderLine(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, MAX_HEADER_BYTES));
+        channel.read(buffer, 0);
+        byte[] bytes = buffer.array();
+        for (int i = 0; i < buffer.position(); i++) {
+            if (bytes[i] == '\n') {
+                return new String(bytes, 0, i, StandardCharsets.UTF_8);
+            }
+        }
+        if (buffer.position() == size) {
+            return new String(bytes, 0, buffer.position(), StandardCharsets.UTF_8);
+        }
+        throw new IllegalArgumentException("账单的表头过长");
+    }
+
+    /**
+     * 读取末尾的汇总表头和汇总数据
+     *
+     * @return 记录的结束位置：汇总表头的行首，没有汇总数据时为文件末尾
+     */
+    private static long readSummary(FileChannel channel, long dataStart, long size, Map<String, String> summary) throws IOException {
+
+        int length = (int) Math.min(size - dataStart, MAX_HEADER_BYTES);
+        if (length <= 0) {
+            return size;
+        }
+        long tailStart = size - length;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.read(buffer, tailStart);
+        byte[] bytes = buffer.array();
+
+        //最后两个非空行的起止位置
+        int[] lineStarts = new int[2];
+        int[] lineEnds = new int[2];
+        int found = 0;
+        int end = buffer.position();
+        while (found < 2 && end > 0) {
+            while (end > 0 && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r')) {
+                end--;
+            }
+            if (end == 0) {
+                break;
+            }
+            int start = end;
+            while (start > 0 && bytes[start - 1] != '\n') {
+                start--;
+            }
+            if (start == 0 && tailStart > dataStart) {
+                //行不完整
+                break;
+            }
+            lineStarts[found] = start;
+            lineEnds[found] = end;
+            found++;
+            end = start;
+        }
+
+        //汇总表头不以 ` 开头，记录和汇总数据以 ` 开头
+        if (found < 2 || bytes[lineStarts[1]] == '`' || bytes[lineStarts[0]] != '`') {
+            return size;
+        }
+        String[] names = new String(bytes, lineStarts[1], lineEnds[1] - lineStarts[1], StandardCharsets.UTF_8).split(",");
+        String[] values = new String(bytes, lineStarts[0], lineEnds[0] - lineStarts[0], StandardCharsets.UTF_8).split(",");
+        for (int i = 0; i < names.length && i < values.length; i++) {
+            summary.put(names[i].trim(), values[i].startsWith("`") ? values[i].substring(1) : values[i]);
+        }
+        return tailStart + lineStarts[1];
+    }
+
+    private static String stripBom(String line) {
+        return line.startsWith("\uFEFF") ? line.substring(1) : line;
+    }
+
+    private static <T> T call(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 一段的解析结果
+     */
+    private static class Segment<H> {
+
+        private final H handler;
+
+        private long records;
+
+        private long skipped;
+
+        Segment(H handler) {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * 账单的解析结果
+     */
+    public static class Result<H> {
+
+        private List<String> header;
+
+        private final Map<String, String> summary = new LinkedHashMap<>();
+
+        private long records;
+
+        private long skipped;
+
+        private final List<H> handlers = new ArrayList<>();
+
+        /**
+         * 表头的列名
+         */
+        public List<String> getHeader() {
+            return header;
+        }
+
+        /**
+         * 汇总数据：汇总表头的列名 -> 值(已去掉 `)；没有汇总数据时为空
+         */
+        public Map<String, String> getSummary() {
+            return summary;
+        }
+
+        /**
+         * 记录数
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * 字段数与表头不一致 而跳过的行数
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * 每个线程的处理器
+         */
+        public List<H> getHandlers() {
+            return handlers;
+        }
+    }
+}
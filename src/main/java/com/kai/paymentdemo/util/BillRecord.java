@@ -0,0 +1,186 @@
+package com.kai.paymentdemo.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 账单中的一行：只记录每个字段在缓冲区中的位置，读取字段时才解析
+ * <p>
+ * 解析时同一个线程复用同一个对象：处理方法中不能保存记录对象本身，需要保存的字段应读取出来
+ * 金额直接从字节解析为 分(long)，比较字段可以用fieldEquals，都不会创建对象
+ */
+public abstract class BillRecord {
+
+    private ByteBuffer buffer;
+
+    private int[] starts;
+
+    private int[] ends;
+
+    private int fieldCount;
+
+    //解码字符串时使用的缓冲区
+    private byte[] scratch = new byte[64];
+
+    protected BillRecord(int columnCount) {
+        this.starts = new int[columnCount];
+        this.ends = new int[columnCount];
+    }
+
+    /**
+     * 解析一行：字段以逗号分隔，去掉字段开头的 ` 和行尾的 \r
+     *
+     * @return 字段数，超过表头列数时返回 列数 + 1
+     */
+    int parse(ByteBuffer buffer, int lineStart, int lineEnd) {
+        this.buffer = buffer;
+        int count = 0;
+        int fieldStart = lineStart;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || buffer.get(i) == ',') {
+                if (count == starts.length) {
+                    return fieldCount = count + 1;
+                }
+                int start = fieldStart;
+                int end = i;
+                if (start < end && buffer.get(start) == '`') {
+                    start++;
+                }
+                if (i == lineEnd && start < end && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+                fieldStart = i + 1;
+            }
+        }
+        return fieldCount = count;
+    }
+
+    /**
+     * 表头的列数
+     */
+    public int getColumnCount() {
+        return starts.length;
+    }
+
+    /**
+     * 本行的字段数
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * 字段的字符串值；列不存在时返回null
+     */
+    public String getString(int column) {
+        if (column < 0) {
+            return null;
+        }
+        int length = ends[column] - starts[column];
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(starts[column] + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 字段是否等于value(只支持ASCII)
+     */
+    public boolean fieldEquals(int column, String value) {
+        if (column < 0) {
+            return false;
+        }
+        int length = ends[column] - starts[column];
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(starts[column] + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 字段是否等于value(UTF-8编码)
+     */
+    public boolean fieldEquals(int column, byte[] value) {
+        if (column < 0 || ends[column] - starts[column] != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(starts[column] + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 金额(元，最多两位小数) 转为 分；空字段、列不存在时返回0
+     */
+    public long getCents(int column) {
+        if (column < 0) {
+            return 0;
+        }
+        int i = starts[column];
+        int end = ends[column];
+        boolean negative = false;
+        if (i < end && buffer.get(i) == '-') {
+            negative = true;
+            i++;
+        }
+        long yuan = 0;
+        for (; i < end && buffer.get(i) != '.'; i++) {
+            yuan = yuan * 10 + digit(buffer.get(i), column);
+        }
+        long cents = 0;
+        int decimals = 0;
+        if (i < end) {
+            for (i++; i < end; i++, decimals++) {
+                if (decimals == 2) {
+                    throw new IllegalArgumentException("金额的小数超过两位：" + getString(column));
+                }
+                cents = cents * 10 + digit(buffer.get(i), column);
+            }
+        }
+        for (; decimals < 2; decimals++) {
+            cents *= 10;
+        }
+        long value = yuan * 100 + cents;
+        return negative ? -value : value;
+    }
+
+    private int digit(byte b, int column) {
+        if (b < '0' || b > '9') {
+            throw new IllegalArgumentException("无效的金额：" + getString(column));
+        }
+        return b - '0';
+    }
+
+    /**
+     * 表头中列的位置：先按名称完全匹配，再按前缀匹配(例如 收支金额（元）)
+     *
+     * @return 列不存在时返回-1
+     */
+    protected static int column(Map<String, Integer> header, String name) {
+        Integer index = header.get(name);
+        if (index != null) {
+            return index;
+        }
+        for (Map.Entry<String, Integer> entry : header.entrySet()) {
+            if (entry.getKey().startsWith(name)) {
+                return entry.getValue();
+            }
+        }
+        return -1;
+    }
+}
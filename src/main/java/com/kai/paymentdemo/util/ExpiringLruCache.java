@@ -0,0 +1,110 @@
+package com.kai.paymentdemo.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 有界、带过期时间的LRU缓存
+ * <p>
+ * 超过最大数量时淘汰最久未访问的数据；过期的数据在访问时清除
+ */
+public class ExpiringLruCache<K, V> {
+
+    private final long defaultTtlMillis;
+
+    private final LinkedHashMap<K, Holder<V>> map;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxSize          最大数量
+     * @param defaultTtlMillis 默认的过期时间(毫秒)
+     */
+    public ExpiringLruCache(int maxSize, long defaultTtlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.defaultTtlMillis = defaultTtlMillis;
+        //accessOrder = true：按访问顺序排列，最久未访问的在最前面
+        this.map = new LinkedHashMap<K, Holder<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Holder<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * 获取缓存的数据，不存在或已过期时返回null
+     */
+    public synchronized V get(K key) {
+        Holder<V> holder = map.get(key);
+        if (holder == null) {
+            misses.increment();
+            return null;
+        }
+        if (holder.expireAt <= System.currentTimeMillis()) {
+            map.remove(key);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return holder.value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, defaultTtlMillis);
+    }
+
+    /**
+     * 放入缓存，并指定这条数据的过期时间
+     */
+    public synchronized void put(K key, V value, long ttlMillis) {
+        map.put(key, new Holder<>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public synchronized V remove(K key) {
+        Holder<V> holder = map.remove(key);
+        return holder == null ? null : holder.value;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * 命中率
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private static class Holder<V> {
+
+        private final V value;
+
+        private final long expireAt;
+
+        Holder(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
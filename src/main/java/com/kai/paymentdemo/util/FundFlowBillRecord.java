@@ -0,0 +1,81 @@
+package com.kai.paymentdemo.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 资金账单(fundflowbill)中的一行
+ */
+public class FundFlowBillRecord extends BillRecord {
+
+    private static final byte[] INCOME = "收入".getBytes(StandardCharsets.UTF_8);
+
+    private final int accountingTime;
+
+    private final int bizOrderNo;
+
+    private final int flowId;
+
+    private final int bizName;
+
+    private final int bizType;
+
+    private final int direction;
+
+    private final int amount;
+
+    private final int balance;
+
+    public FundFlowBillRecord(Map<String, Integer> header) {
+        super(header.size());
+        accountingTime = column(header, "记账时间");
+        bizOrderNo = column(header, "微信支付业务单号");
+        flowId = column(header, "资金流水单号");
+        bizName = column(header, "业务名称");
+        bizType = column(header, "业务类型");
+        direction = column(header, "收支类型");
+        amount = column(header, "收支金额");
+        balance = column(header, "账户结余");
+    }
+
+    public String getAccountingTime() {
+        return getString(accountingTime);
+    }
+
+    public String getBizOrderNo() {
+        return getString(bizOrderNo);
+    }
+
+    public String getFlowId() {
+        return getString(flowId);
+    }
+
+    public String getBizName() {
+        return getString(bizName);
+    }
+
+    public String getBizType() {
+        return getString(bizType);
+    }
+
+    /**
+     * 是否为收入(收支类型)
+     */
+    public boolean isIncome() {
+        return fieldEquals(direction, INCOME);
+    }
+
+    /**
+     * 收支金额(分)
+     */
+    public long getAmountCents() {
+        return getCents(amount);
+    }
+
+    /**
+     * 账户结余(分)
+     */
+    public long getBalanceCents() {
+        return getCents(balance);
+    }
+}
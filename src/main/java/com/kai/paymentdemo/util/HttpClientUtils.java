@@ -6,19 +6,13 @@ import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.*;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContextBuilder;
-import org.apache.http.conn.ssl.TrustStrategy;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 
-import javax.net.ssl.SSLContext;
 import java.io.IOException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -27,6 +21,10 @@ import java.util.Map;
 
 /**
  * http请求客户端
+ * <p>
+ * 传入共享的HttpClient(连接池)时 复用连接，请求结束后不关闭HttpClient；
+ * 否则每次请求创建并关闭一个HttpClient
+ * https请求使用默认的证书校验和主机名校验
  */
 public class HttpClientUtils {
     private String url;
@@ -34,15 +32,7 @@ public class HttpClientUtils {
     private int statusCode;
     private String content;
     private String xmlParam;
-    private boolean isHttps;
-
-    public boolean isHttps() {
-        return isHttps;
-    }
-
-    public void setHttps(boolean isHttps) {
-        this.isHttps = isHttps;
-    }
+    private CloseableHttpClient httpClient;
 
     public String getXmlParam() {
         return xmlParam;
@@ -61,6 +51,11 @@ public class HttpClientUtils {
         this.url = url;
     }
 
+    public HttpClientUtils(String url, CloseableHttpClient httpClient) {
+        this.url = url;
+        this.httpClient = httpClient;
+    }
+
     public void setParameter(Map<String, String> map) {
         param = map;
     }
@@ -119,41 +114,25 @@ public class HttpClientUtils {
 
     private void execute(HttpUriRequest http) throws ClientProtocolException,
             IOException {
-        CloseableHttpClient httpClient = null;
+        if (httpClient != null) {
+            //共享的连接池：读完响应后 连接归还连接池，不关闭HttpClient
+            readResponse(httpClient.execute(http));
+            return;
+        }
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            readResponse(client.execute(http));
+        }
+    }
+
+    private void readResponse(CloseableHttpResponse response) throws IOException {
         try {
-            if (isHttps) {
-                SSLContext sslContext = new SSLContextBuilder()
-                        .loadTrustMaterial(null, new TrustStrategy() {
-                            // 信任所有
-                            public boolean isTrusted(X509Certificate[] chain,
-                                                     String authType)
-                                    throws CertificateException {
-                                return true;
-                            }
-                        }).build();
-                SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
-                        sslContext);
-                httpClient = HttpClients.custom().setSSLSocketFactory(sslsf)
-                        .build();
-            } else {
-                httpClient = HttpClients.createDefault();
-            }
-            CloseableHttpResponse response = httpClient.execute(http);
-            try {
-                if (response != null) {
-                    if (response.getStatusLine() != null)
-                        statusCode = response.getStatusLine().getStatusCode();
-                    HttpEntity entity = response.getEntity();
-                    // 响应内容
-                    content = EntityUtils.toString(entity, Consts.UTF_8);
-                }
-            } finally {
-                response.close();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (response.getStatusLine() != null)
+                statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            // 响应内容
+            content = EntityUtils.toString(entity, Consts.UTF_8);
         } finally {
-            httpClient.close();
+            response.close();
         }
     }
 
@@ -0,0 +1,164 @@
+package com.kai.paymentdemo.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * 解密APIv3通知中的resource(AEAD_AES_256_GCM)
+ * <p>
+ * 密钥只创建一次；每个线程复用一个Cipher 和一个缓冲区：
+ * 密文的base64直接解码到缓冲区，再在缓冲区中原地解密，除了返回的明文 不创建新的数组
+ * 线程安全
+ */
+public class NotificationDecryptor {
+
+    private static final int TAG_LENGTH_BIT = 128;
+
+    private static final int KEY_LENGTH_BYTE = 32;
+
+    //线程缓冲区的最大字节数：更大的报文使用临时的数组，避免长期占用内存
+    private static final int MAX_POOLED_BYTES = 64 * 1024;
+
+    private static final int[] BASE64 = new int[128];
+
+    static {
+        Arrays.fill(BASE64, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<Buffer> buffers;
+
+    /**
+     * @param apiV3Key APIv3密钥(32字节)
+     */
+    public NotificationDecryptor(byte[] apiV3Key) {
+        if (apiV3Key.length != KEY_LENGTH_BYTE) {
+            throw new IllegalArgumentException("无效的ApiV3Key，长度必须为32个字节");
+        }
+        this.key = new SecretKeySpec(apiV3Key, "AES");
+        this.buffers = ThreadLocal.withInitial(() -> {
+            try {
+                return new Buffer(Cipher.getInstance("AES/GCM/NoPadding"));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("当前JDK不支持AES/GCM", e);
+            }
+        });
+    }
+
+    /**
+     * 解密
+     *
+     * @param associatedData 附加数据，可以为空
+     * @param nonce          随机串
+     * @param ciphertext     base64编码的密文(含16字节的认证标签)
+     * @return 明文
+     */
+    public String decryptToString(String associatedData, String nonce, String ciphertext) throws GeneralSecurityException {
+
+        Buffer buffer = buffers.get();
+
+        //随机串、附加数据都是ASCII
+        int nonceLength = nonce.length();
+        int aadLength = associatedData == null ? 0 : associatedData.length();
+        byte[] header = buffer.header(nonceLength + aadLength);
+        ascii(nonce, header, 0);
+        if (aadLength > 0) {
+            ascii(associatedData, header, nonceLength);
+        }
+
+        //没有=填充时 最后一组不足4个字符：向上取整
+        int maxLength = (ciphertext.length() * 3 + 3) / 4;
+        byte[] data = maxLength > MAX_POOLED_BYTES ? new byte[maxLength] : buffer.data(maxLength);
+        int length = decodeBase64(ciphertext, data);
+
+        Cipher cipher = buffer.cipher;
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BIT, header, 0, nonceLength));
+        if (aadLength > 0) {
+            cipher.updateAAD(header, nonceLength, aadLength);
+        }
+        //解密后的明文 写回同一个数组
+        int plainLength = cipher.doFinal(data, 0, length, data, 0);
+        return new String(data, 0, plainLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * base64(标准字母表，可以有=填充)解码到dst
+     *
+     * @return 解码后的字节数
+     */
+    static int decodeBase64(String src, byte[] dst) {
+
+        int end = src.length();
+        while (end > 0 && src.charAt(end - 1) == '=') {
+            end--;
+        }
+        if (src.length() - end > 2 || end % 4 == 1) {
+            throw new IllegalArgumentException("无效的base64");
+        }
+
+        int out = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < end; i++) {
+            char c = src.charAt(i);
+            int value = c < 128 ? BASE64[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("无效的base64字符：" + c);
+            }
+            bits = ((bits << 6) | value) & 0xFFFF;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                dst[out++] = (byte) (bits >> bitCount);
+            }
+        }
+        return out;
+    }
+
+    private static void ascii(String value, byte[] dst, int offset) {
+        for (int i = 0; i < value.length(); i++) {
+            dst[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * 每个线程的Cipher和缓冲区
+     */
+    private static class Buffer {
+
+        private final Cipher cipher;
+
+        //随机串 + 附加数据
+        private byte[] header = new byte[64];
+
+        //解码后的密文、解密后的明文
+        private byte[] data = new byte[4096];
+
+        Buffer(Cipher cipher) {
+            this.cipher = cipher;
+        }
+
+        byte[] header(int length) {
+            if (header.length < length) {
+                header = new byte[length];
+            }
+            return header;
+        }
+
+        byte[] data(int length) {
+            if (data.length < length) {
+                data = new byte[Math.min(MAX_POOLED_BYTES, Math.max(length, data.length * 2))];
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+package com.kai.paymentdemo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * 通知日志：只追加写的内存映射文件
+ * <p>
+ * 已经应答微信的通知 在处理完成之前 先写入本地磁盘，进程崩溃后 启动时重放未处理的通知
+ * <ul>
+ *     <li>分段：每个段文件大小固定，写满后滚动到新的段文件，文件名为段内第一条记录的序号</li>
+ *     <li>组提交：多个线程的追加 由一个刷盘线程合并为一次 force(fsync)，追加方法在刷盘完成后才返回</li>
+ *     <li>消费位点：记录已经连续处理完成的最大序号，位点之前的段文件会被删除</li>
+ * </ul>
+ * 记录格式：int 长度 | int CRC32 | long 序号 | short 类型长度 | 类型 | 报文
+ */
+public class NotifyJournal implements Closeable {
+
+    protected static final Logger log = LoggerFactory.getLogger(NotifyJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    //长度 + CRC32
+    private static final int RECORD_PREFIX = 4 + 4;
+
+    //序号 + 类型长度
+    private static final int RECORD_FIXED = 8 + 2;
+
+    //消费位点的持久化间隔
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+    private final Path dir;
+
+    private final int segmentSize;
+
+    //所有段文件的起始序号，按序号升序
+    private final List<Long> segmentBases = new ArrayList<>();
+
+    //当前写入的段
+    private MappedByteBuffer segment;
+
+    private long segmentBase;
+
+    //下一条记录的序号
+    private long nextSeq;
+
+    //已经写入内存映射的最大序号
+    private long writtenSeq;
+
+    //已经刷到磁盘的最大序号
+    private long durableSeq;
+
+    //启动恢复时 日志中最后一条记录的序号
+    private long recoveredSeq;
+
+    //已经连续处理完成的最大序号
+    private long checkpoint;
+
+    private long persistedCheckpoint;
+
+    //已处理完成 但序号在位点之后(前面还有未完成的记录)
+    private final TreeSet<Long> completed = new TreeSet<>();
+
+    private final Object appendLock = new Object();
+
+    private final Object flushLock = new Object();
+
+    private final Object checkpointLock = new Object();
+
+    private final Thread flusher;
+
+    private volatile boolean closed;
+
+    private IOException flushError;
+
+    public NotifyJournal(Path dir, int segmentSize) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+
+        checkpoint = readCheckpoint();
+        persistedCheckpoint = checkpoint;
+        recover();
+
+        flusher = new Thread(this::flushLoop, "notify-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 追加一条记录，刷盘完成后返回
+     *
+     * @param type    记录类型
+     * @param payload 报文
+     * @return 记录的序号
+     */
+    public long append(String type, byte[] payload) throws IOException {
+
+        byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_FIXED + typeBytes.length + payload.length;
+        if (RECORD_PREFIX + length > segmentSize) {
+            throw new IOException("record too large: " + length);
+        }
+
+        long seq;
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IOException("journal closed");
+            }
+            if (segment.remaining() < RECORD_PREFIX + length + RECORD_PREFIX) {
+                roll();
+            }
+            seq = nextSeq++;
+
+            CRC32 crc = new CRC32();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_FIXED);
+            header.putLong(seq).putShort((short) typeBytes.length);
+            crc.update(header.array(), 0, RECORD_FIXED);
+            crc.update(typeBytes, 0, typeBytes.length);
+            crc.update(payload, 0, payload.length);
+
+            //先写内容 最后写长度：长度为0的位置就是写入的末尾
+            int start = segment.position();
+            segment.position(start + 4);
+            segment.putInt((int) crc.getValue());
+            segment.put(header.array());
+            segment.put(typeBytes);
+            segment.put(payload);
+            segment.putInt(start, length);
+            writtenSeq = seq;
+        }
+
+        awaitDurable(seq);
+        return seq;
+    }
+
+    /**
+     * 标记一条记录已经处理完成，推进消费位点
+     *
+     * @param seq 记录的序号
+     */
+    public void commit(long seq) {
+        synchronized (checkpointLock) {
+            if (seq <= checkpoint) {
+                return;
+            }
+            completed.add(seq);
+            while (!completed.isEmpty() && completed.first() == checkpoint + 1) {
+                checkpoint = completed.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * 重放 启动时日志中 消费位点之后的记录
+     * 启动后新追加的记录 不在重放范围内，可以与append并发调用
+     *
+     * @param handler 记录的处理方法
+     * @return 重放的记录数
+     */
+    public long replay(EntryHandler handler) throws IOException {
+
+        long from;
+        synchronized (checkpointLock) {
+            from = checkpoint;
+        }
+
+        long count = 0;
+        List<Long> bases;
+        synchronized (appendLock) {
+            bases = new ArrayList<>(segmentBases);
+        }
+        for (Long base : bases) {
+            MappedByteBuffer buffer = map(segmentFile(base));
+            Entry entry;
+            while ((entry = readEntry(buffer)) != null) {
+                if (entry.seq > recoveredSeq) {
+                    return count;
+                }
+                if (entry.seq > from) {
+                    handler.handle(entry);
+                    count++;
+                }
+                if (entry.seq == recoveredSeq) {
+                    return count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 最后一条记录的序号
+     */
+    public long getLastSeq() {
+        synchronized (appendLock) {
+            return nextSeq - 1;
+        }
+    }
+
+    /**
+     * 已经连续处理完成的最大序号
+     */
+    public long getCheckpoint() {
+        synchronized (checkpointLock) {
+            return checkpoint;
+        }
+    }
+
+    public int getSegmentCount() {
+        synchronized (appendLock) {
+            return segmentBases.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            segment.force();
+        }
+        persistCheckpoint();
+    }
+
+    /**
+     * 等待刷盘线程 将seq之前的记录刷到磁盘
+     */
+    private void awaitDurable(long seq) throws IOException {
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+            while (durableSeq < seq) {
+                if (flushError != null) {
+                    throw new IOException("journal flush failed", flushError);
+                }
+                if (closed && durableSeq < seq) {
+                    //关闭时最后一次刷盘由close完成
+                    break;
+                }
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for journal flush", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 刷盘线程：每次把 当前已写入的全部记录 一起刷盘(组提交)
+     */
+    private void flushLoop() {
+        long lastCheckpointAt = System.currentTimeMillis();
+        while (true) {
+            long target;
+            MappedByteBuffer current;
+            synchronized (flushLock) {
+                while (!closed && getWrittenSeq() <= durableSeq
+                        && System.currentTimeMillis() - lastCheckpointAt < CHECKPOINT_INTERVAL_MILLIS) {
+                    try {
+                        flushLock.wait(CHECKPOINT_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            synchronized (appendLock) {
+                target = writtenSeq;
+                current = segment;
+            }
+
+            try {
+                if (target > durableSeq) {
+                    //滚动段时 旧段已经刷盘，这里只需要刷当前段
+                    current.force();
+                }
+                synchronized (flushLock) {
+                    durableSeq = Math.max(durableSeq, target);
+                    flushLock.notifyAll();
+                }
+
+                if (System.currentTimeMillis() - lastCheckpointAt >= CHECKPOINT_INTERVAL_MILLIS) {
+                    lastCheckpointAt = System.currentTimeMillis();
+                    persistCheckpoint();
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("通知日志刷盘失败", e);
+                synchronized (flushLock) {
+                    flushError = e instanceof IOException ? (IOException) e : new IOException(e);
+                    flushLock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private long getWrittenSeq() {
+        synchronized (appendLock) {
+            return writtenSeq;
+        }
+    }
+
+    /**
+     * 当前段已写满：刷盘后切换到新的段文件
+     */
+    private void roll() throws IOException {
+        segment.force();
+        segmentBase = nextSeq;
+        segment = map(segmentFile(segmentBase));
+        segmentBases.add(segmentBase);
+        log.info("通知日志滚动到新的段 ===> {}", segmentBase);
+    }
+
+    /**
+     * 启动时恢复：找到最后一条完整的记录，从它之后继续写
+     */
+    private void recover() throws IOException {
+
+        File[] files = dir.toFile().listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segmentBases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segmentBases);
+
+        if (segmentBases.isEmpty()) {
+            segmentBase = checkpoint + 1;
+            nextSeq = segmentBase;
+            segment = map(segmentFile(segmentBase));
+            segmentBases.add(segmentBase);
+        } else {
+            segmentBase = segmentBases.get(segmentBases.size() - 1);
+            segment = map(segmentFile(segmentBase));
+            long lastSeq = segmentBase - 1;
+            Entry entry;
+            while ((entry = readEntry(segment)) != null) {
+                lastSeq = entry.seq;
+            }
+            //清除末尾写了一半的记录
+            int end = segment.position();
+            for (int i = end; i < segment.capacity(); i++) {
+                segment.put(i, (byte) 0);
+            }
+            nextSeq = Math.max(lastSeq, checkpoint) + 1;
+        }
+
+        writtenSeq = nextSeq - 1;
+        durableSeq = writtenSeq;
+        recoveredSeq = writtenSeq;
+    }
+
+    /**
+     * 从buffer的当前位置读取一条记录，读到末尾或损坏的记录时返回null
+     */
+    private Entry readEntry(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < RECORD_PREFIX + RECORD_FIXED) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        if (length < RECORD_FIXED || length > buffer.remaining() - RECORD_PREFIX) {
+            return null;
+        }
+        int crcValue = buffer.getInt(start + 4);
+
+        byte[] data = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start + RECORD_PREFIX);
+        view.get(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        if ((int) crc.getValue() != crcValue) {
+            return null;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(data);
+        long seq = record.getLong();
+        int typeLength = record.getShort();
+        if (typeLength < 0 || typeLength > length - RECORD_FIXED) {
+            return null;
+        }
+        String type = new String(data, RECORD_FIXED, typeLength, StandardCharsets.UTF_8);
+        byte[] payload = new byte[length - RECORD_FIXED - typeLength];
+        System.arraycopy(data, RECORD_FIXED + typeLength, payload, 0, payload.length);
+
+        buffer.position(start + RECORD_PREFIX + length);
+        return new Entry(seq, type, payload);
+    }
+
+    /**
+     * 持久化消费位点，并删除已经全部处理完成的段文件
+     */
+    private void persistCheckpoint() throws IOException {
+
+        long current;
+        synchronized (checkpointLock) {
+            current = checkpoint;
+        }
+        if (current == persistedCheckpoint) {
+            return;
+        }
+
+        //先写临时文件再重命名，避免写了一半的位点文件
+        Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(tmp, Long.toString(current).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, dir.resolve(CHECKPOINT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        persistedCheckpoint = current;
+
+        List<Long> obsolete = new ArrayList<>();
+        synchronized (appendLock) {
+            //下一个段的起始序号 <= 位点+1，说明当前段的记录全部处理完成
+            while (segmentBases.size() > 1 && segmentBases.get(1) <= current + 1) {
+                obsolete.add(segmentBases.remove(0));
+            }
+        }
+        for (Long base : obsolete) {
+            Files.deleteIfExists(segmentFile(base).toPath());
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path file = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        String value = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        return value.isEmpty() ? 0 : Long.parseLong(value);
+    }
+
+    private File segmentFile(long base) {
+        return dir.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX)).toFile();
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * 重放时 对每条记录的处理
+     */
+    public interface EntryHandler {
+
+        void handle(Entry entry) throws IOException;
+    }
+
+    /**
+     * 日志中的一条记录
+     */
+    public static class Entry {
+
+        private final long seq;
+
+        private final String type;
+
+        private final byte[] payload;
+
+        Entry(long seq, String type, byte[] payload) {
+            this.seq = seq;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+}
@@ -1,21 +1,96 @@
 package com.kai.paymentdemo.util;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Random;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 订单号工具类
+ * <p>
+ * 编号格式：yyyyMMddHHmmss(14位) + 节点号(2位) + 秒内序号(4位)
+ * 每个节点每秒可以生成10000个编号，超过时借用下一秒，保证同一节点生成的编号单调递增；
+ * 不同节点配置不同的节点号(payment.node-id)，编号不会重复
+ * <p>
+ * 借用的序号只保存在内存中：重启后需要用已经生成的最大编号 调用advanceTo，否则可能重复生成借用过的编号
  */
 public class OrderNoUtils {
 
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    //每秒的序号个数
+    private static final long SEQ_PER_SECOND = 10000;
+
+    private static final int MAX_NODE_ID = 99;
+
+    private static volatile int nodeId = 0;
+
+    //最后一次生成的 秒数 * SEQ_PER_SECOND + 序号
+    private static final AtomicLong last = new AtomicLong();
+
+    //缓存的时间字符串：同一秒内的编号共用，每秒只格式化一次
+    private static volatile Clock clock = new Clock(-1, "");
+
+    /**
+     * 设置当前节点的节点号
+     *
+     * @param id 0-99
+     */
+    public static void setNodeId(int id) {
+        if (id < 0 || id > MAX_NODE_ID) {
+            throw new IllegalArgumentException("node id must be between 0 and " + MAX_NODE_ID);
+        }
+        nodeId = id;
+    }
+
+    public static int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 之后生成的编号 大于已经生成的编号no：重启时用数据库中当前节点的最大编号调用
+     * 其他节点生成的编号(节点号不同)、格式不对的编号 被忽略
+     *
+     * @param no 已经生成的编号(可以带前缀)
+     * @return 是否推进了当前的位置
+     */
+    public static boolean advanceTo(String no) {
+        if (no == null || no.length() < 20) {
+            return false;
+        }
+        String digits = no.substring(no.length() - 20);
+        long value;
+        try {
+            if (Integer.parseInt(digits.substring(14, 16)) != nodeId) {
+                return false;
+            }
+            long second = LocalDateTime.parse(digits.substring(0, 14), FORMATTER).atZone(ZONE).toEpochSecond();
+            value = second * SEQ_PER_SECOND + Integer.parseInt(digits.substring(16));
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return false;
+        }
+        return last.getAndAccumulate(value, Math::max) < value;
+    }
+
+    /**
+     * 恢复初始状态：清除已经生成的位置和节点号，只用于测试
+     */
+    static void reset() {
+        last.set(0);
+        nodeId = 0;
+    }
+
     /**
      * 获取订单编号
      *
      * @return
      */
     public static String getOrderNo() {
-        return "ORDER_" + getNo();
+        return getNo("ORDER_");
     }
 
     /**
@@ -24,7 +99,7 @@ public class OrderNoUtils {
      * @return
      */
     public static String getRefundNo() {
-        return "REFUND_" + getNo();
+        return getNo("REFUND_");
     }
 
     /**
@@ -33,14 +108,66 @@ public class OrderNoUtils {
      * @return
      */
     public static String getNo() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-        String newDate = sdf.format(new Date());
-        String result = "";
-        Random random = new Random();
-        for (int i = 0; i < 3; i++) {
-            result += random.nextInt(10);
+        return getNo("");
+    }
+
+    private static String getNo(String prefix) {
+
+        //无锁递增：取 当前时间的第一个序号 和 上一个编号+1 中较大的一个
+        long now = System.currentTimeMillis() / 1000 * SEQ_PER_SECOND;
+        long prev;
+        long next;
+        do {
+            prev = last.get();
+            next = Math.max(prev + 1, now);
+        } while (!last.compareAndSet(prev, next));
+
+        long second = next / SEQ_PER_SECOND;
+        int seq = (int) (next % SEQ_PER_SECOND);
+
+        StringBuilder sb = new StringBuilder(prefix.length() + 20);
+        sb.append(prefix).append(clockText(second));
+        appendPadded(sb, nodeId, 2);
+        appendPadded(sb, seq, 4);
+        return sb.toString();
+    }
+
+    private static String clockText(long second) {
+        Clock current = clock;
+        if (current.second != second) {
+            current = new Clock(second, FORMATTER.format(Instant.ofEpochSecond(second).atZone(ZONE)));
+            clock = current;
+        }
+        return current.text;
+    }
+
+    /**
+     * 左补0到指定的位数
+     */
+    private static void appendPadded(StringBuilder sb, int value, int width) {
+        for (int divisor = pow10(width - 1); divisor > 0; divisor /= 10) {
+            sb.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static int pow10(int n) {
+        int result = 1;
+        for (int i = 0; i < n; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+
+    private static class Clock {
+
+        private final long second;
+
+        private final String text;
+
+        Clock(long second, String text) {
+            this.second = second;
+            this.text = text;
         }
-        return newDate + result;
     }
 
 }
@@ -0,0 +1,96 @@
+package com.kai.paymentdemo.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 按key的哈希值分区 写入磁盘的临时文件
+ * <p>
+ * 数据量超过内存时，先把两边的数据按相同的规则分区写入文件，再逐个分区在内存中关联(分区哈希连接)：
+ * 同一个key一定在同一个分区，每次只需要把一个分区读入内存
+ * <p>
+ * 只在一个线程中写入；多个线程写入时 每个线程使用不同的前缀
+ */
+public class PartitionedSpill implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final DataOutputStream[] outputs;
+
+    private long records;
+
+    /**
+     * @param dir        临时文件的目录
+     * @param prefix     文件名的前缀：每个分区一个文件 {prefix}-{分区号}
+     * @param partitions 分区数
+     */
+    public PartitionedSpill(Path dir, String prefix, int partitions) throws IOException {
+        outputs = new DataOutputStream[partitions];
+        try {
+            for (int i = 0; i < partitions; i++) {
+                outputs[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file(dir, prefix, i)), BUFFER_SIZE));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * key所在分区的输出流：写入一条记录后调用
+     */
+    public DataOutputStream output(String key) {
+        records++;
+        return outputs[partition(key, outputs.length)];
+    }
+
+    /**
+     * 已写入的记录数
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (DataOutputStream output : outputs) {
+            if (output == null) {
+                continue;
+            }
+            try {
+                output.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public static int partition(String key, int partitions) {
+        return Math.floorMod(key.hashCode(), partitions);
+    }
+
+    public static Path file(Path dir, String prefix, int partition) {
+        return dir.resolve(prefix + "-" + partition);
+    }
+
+    /**
+     * 读取一个分区的文件：文件不存在时返回null
+     */
+    public static DataInputStream open(Path dir, String prefix, int partition) throws IOException {
+        Path file = file(dir, prefix, partition);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+    }
+}
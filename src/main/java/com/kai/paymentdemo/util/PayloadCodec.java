@@ -0,0 +1,79 @@
+package com.kai.paymentdemo.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 原始报文的压缩
+ * <p>
+ * 格式与MySQL的COMPRESS()函数一致：4字节(小端)的原始长度 + zlib格式的压缩数据，空字符串压缩为空数组；
+ * 数据库中已有的报文可以直接用COMPRESS()迁移，排查问题时可以用UNCOMPRESS()查看
+ * 使用最快的压缩级别：json报文的压缩率仍有3~5倍
+ */
+public class PayloadCodec {
+
+    public static byte[] compress(String content) {
+
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        if (raw.length == 0) {
+            return new byte[0];
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 16);
+            out.write(raw.length);
+            out.write(raw.length >>> 8);
+            out.write(raw.length >>> 16);
+            out.write(raw.length >>> 24);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static String decompress(byte[] data) {
+
+        if (data == null) {
+            return null;
+        }
+        if (data.length == 0) {
+            return "";
+        }
+        if (data.length < 4) {
+            throw new IllegalArgumentException("invalid payload: " + data.length + " bytes");
+        }
+
+        int length = (data[0] & 0xff) | (data[1] & 0xff) << 8 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 24;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 4, data.length - 4);
+            byte[] raw = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != length) {
+                throw new IllegalArgumentException("invalid payload: expected " + length + " bytes, got " + n);
+            }
+            return new String(raw, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("invalid payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.kai.paymentdemo.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限流器
+ * <p>
+ * 令牌以固定的速率(每秒permitsPerSecond个)放入桶中，桶中最多保存1秒的令牌；
+ * 获取令牌时 桶中没有令牌则预支一个，并等待到该令牌生成的时间
+ */
+public class RateLimiter {
+
+    private final double permitsPerNano;
+
+    private final double maxPermits;
+
+    //桶中的令牌数：为负数时表示已经被预支的令牌
+    private double storedPermits;
+
+    private long lastRefillNanos;
+
+    public RateLimiter(double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.maxPermits = Math.max(1, permitsPerSecond);
+        this.storedPermits = 0;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * 获取一个令牌，必要时阻塞等待
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * 预定一个令牌，返回需要等待的时间(纳秒)
+     */
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        storedPermits = Math.min(maxPermits, storedPermits + (now - lastRefillNanos) * permitsPerNano);
+        lastRefillNanos = now;
+        storedPermits -= 1;
+        if (storedPermits >= 0) {
+            return 0;
+        }
+        return (long) (-storedPermits / permitsPerNano);
+    }
+}
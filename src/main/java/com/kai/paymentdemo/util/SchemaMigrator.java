@@ -0,0 +1,308 @@
+package com.kai.paymentdemo.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.EncodedResource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.util.StreamUtils;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * 数据库结构的版本管理：按版本号顺序执行 db/migration/V{版本号}__{描述}.sql 中未执行过的脚本
+ * <p>
+ * 已执行的版本记录在t_schema_version表中(含脚本的校验和)，已执行的脚本被修改时 拒绝启动；
+ * 需要修改已执行的脚本时(修改后的脚本 对已执行的数据库不需要再执行)，在脚本中声明旧版本的校验和：
+ * {@code -- 旧版本的校验和：1234567890}，已执行旧版本的数据库 只更新记录的校验和
+ * 多个节点同时启动时 通过MySQL的GET_LOCK保证只有一个节点执行脚本
+ * <p>
+ * MySQL的DDL会隐式提交，脚本执行失败时不能回滚：需要手动修复数据库后 再启动
+ */
+@Slf4j
+public class SchemaMigrator {
+
+    private static final Pattern SCRIPT_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+    private static final Pattern PREVIOUS_CHECKSUM = Pattern.compile("^--\\s*旧版本的校验和：(\\d+)\\s*$", Pattern.MULTILINE);
+
+    private static final String LOCK_NAME = "payment_schema_migration";
+
+    //等待其他节点执行脚本的最长时间(秒)
+    private static final int LOCK_TIMEOUT_SECONDS = 300;
+
+    private final DataSource dataSource;
+
+    private final String location;
+
+    private final int baselineVersion;
+
+    /**
+     * @param dataSource
+     * @param location        脚本的位置，例如 classpath:db/migration
+     * @param baselineVersion 基线版本：首次启用版本管理时，认为不超过该版本的脚本已经手动执行过
+     */
+    public SchemaMigrator(DataSource dataSource, String location, int baselineVersion) {
+        this.dataSource = dataSource;
+        this.location = location;
+        this.baselineVersion = baselineVersion;
+    }
+
+    /**
+     * 执行未执行过的脚本
+     *
+     * @return 本次执行的脚本数
+     */
+    public int migrate() throws IOException, SQLException {
+
+        List<Migration> migrations = resolve(new PathMatchingResourcePatternResolver().getResources(location + "/V*__*.sql"));
+
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            lock(connection);
+            try {
+                createVersionTable(connection);
+                Map<Integer, Long> applied = selectApplied(connection);
+                if (applied.isEmpty() && baselineVersion > 0) {
+                    baseline(connection, migrations, applied);
+                }
+
+                int count = 0;
+                for (Migration migration : migrations) {
+                    Long checksum = applied.get(migration.getVersion());
+                    if (checksum != null) {
+                        if (checksum != migration.getChecksum()) {
+                            if (!migration.getPreviousChecksums().contains(checksum)) {
+                                throw new IllegalStateException("已执行的脚本被修改：" + migration.getScript());
+                            }
+                            updateChecksum(connection, migration);
+                        }
+                        continue;
+                    }
+                    apply(connection, migration);
+                    count++;
+                }
+                return count;
+            } finally {
+                unlock(connection);
+            }
+        }
+    }
+
+    /**
+     * 解析脚本的版本号，按版本号排序
+     */
+    static List<Migration> resolve(Resource[] resources) throws IOException {
+
+        List<Migration> migrations = new ArrayList<>();
+        Map<Integer, String> scripts = new HashMap<>();
+        for (Resource resource : resources) {
+            String script = resource.getFilename();
+            Matcher matcher = SCRIPT_NAME.matcher(script == null ? "" : script);
+            if (!matcher.matches()) {
+                throw new IllegalStateException("脚本的名称应为 V{版本号}__{描述}.sql：" + script);
+            }
+            int version = Integer.parseInt(matcher.group(1));
+            String duplicate = scripts.put(version, script);
+            if (duplicate != null) {
+                throw new IllegalStateException("脚本的版本号重复：" + duplicate + "、" + script);
+            }
+            migrations.add(new Migration(version, matcher.group(2), script, resource, checksum(resource),
+                    previousChecksums(resource)));
+        }
+        migrations.sort(Comparator.comparingInt(Migration::getVersion));
+        return migrations;
+    }
+
+    /**
+     * 脚本的校验和：忽略换行符的差异(\r\n、\n)
+     */
+    static long checksum(Resource resource) throws IOException {
+        try (InputStream in = resource.getInputStream()) {
+            String content = StreamUtils.copyToString(in, StandardCharsets.UTF_8).replace("\r", "");
+            CRC32 crc32 = new CRC32();
+            crc32.update(content.getBytes(StandardCharsets.UTF_8));
+            return crc32.getValue();
+        }
+    }
+
+    /**
+     * 脚本中声明的旧版本的校验和
+     */
+    static Set<Long> previousChecksums(Resource resource) throws IOException {
+        try (InputStream in = resource.getInputStream()) {
+            Matcher matcher = PREVIOUS_CHECKSUM.matcher(StreamUtils.copyToString(in, StandardCharsets.UTF_8).replace("\r", ""));
+            Set<Long> checksums = new HashSet<>();
+            while (matcher.find()) {
+                checksums.add(Long.parseLong(matcher.group(1)));
+            }
+            return checksums;
+        }
+    }
+
+    private void lock(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            ps.setString(1, LOCK_NAME);
+            ps.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1) {
+                    throw new IllegalStateException("等待其他节点执行脚本超时");
+                }
+            }
+        }
+    }
+
+    private void unlock(Connection connection) {
+        try (PreparedStatement ps = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            ps.setString(1, LOCK_NAME);
+            ps.executeQuery().close();
+        } catch (SQLException e) {
+            log.warn("释放数据库版本锁失败：连接关闭时释放 ===> {}", e.getMessage());
+        }
+    }
+
+    private void createVersionTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS `t_schema_version` (" +
+                    "`version` INT NOT NULL COMMENT '版本号'," +
+                    "`description` VARCHAR(200) NOT NULL COMMENT '描述'," +
+                    "`script` VARCHAR(200) NOT NULL COMMENT '脚本'," +
+                    "`checksum` BIGINT NOT NULL COMMENT '脚本的校验和'," +
+                    "`execution_millis` INT NOT NULL COMMENT '执行时间(毫秒)，基线版本为0'," +
+                    "`installed_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '执行的时间'," +
+                    "PRIMARY KEY (`version`)" +
+                    ") ENGINE = InnoDB DEFAULT CHARSET = utf8mb4 COMMENT = '数据库结构的版本'");
+        }
+    }
+
+    private Map<Integer, Long> selectApplied(Connection connection) throws SQLException {
+        Map<Integer, Long> applied = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT version, checksum FROM t_schema_version")) {
+            while (rs.next()) {
+                applied.put(rs.getInt(1), rs.getLong(2));
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * 记录基线版本：不执行脚本
+     */
+    private void baseline(Connection connection, List<Migration> migrations, Map<Integer, Long> applied) throws SQLException {
+        for (Migration migration : migrations) {
+            if (migration.getVersion() <= baselineVersion) {
+                insertVersion(connection, migration, 0);
+                applied.put(migration.getVersion(), migration.getChecksum());
+                log.info("数据库基线版本 ===> {}", migration.getScript());
+            }
+        }
+    }
+
+    private void apply(Connection connection, Migration migration) throws SQLException {
+        log.info("执行数据库脚本 ===> {}", migration.getScript());
+        long start = System.currentTimeMillis();
+        try {
+            ScriptUtils.executeSqlScript(connection, new EncodedResource(migration.getResource(), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            log.error("数据库脚本执行失败：已执行的语句不能回滚，需要手动修复 ===> {}", migration.getScript());
+            throw e;
+        }
+        insertVersion(connection, migration, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 已执行的是旧版本的脚本：只更新校验和，不再执行
+     */
+    private void updateChecksum(Connection connection, Migration migration) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("UPDATE t_schema_version SET checksum = ? WHERE version = ?")) {
+            ps.setLong(1, migration.getChecksum());
+            ps.setInt(2, migration.getVersion());
+            ps.executeUpdate();
+        }
+        log.info("已执行旧版本的数据库脚本，更新校验和 ===> {}", migration.getScript());
+    }
+
+    private void insertVersion(Connection connection, Migration migration, long executionMillis) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "INSERT INTO t_schema_version (version, description, script, checksum, execution_millis) VALUES (?, ?, ?, ?, ?)")) {
+            ps.setInt(1, migration.getVersion());
+            ps.setString(2, migration.getDescription());
+            ps.setString(3, migration.getScript());
+            ps.setLong(4, migration.getChecksum());
+            ps.setInt(5, (int) executionMillis);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * 一个版本的脚本
+     */
+    static class Migration {
+
+        private final int version;
+
+        private final String description;
+
+        private final String script;
+
+        private final Resource resource;
+
+        private final long checksum;
+
+        //旧版本的校验和
+        private final Set<Long> previousChecksums;
+
+        Migration(int version, String description, String script, Resource resource, long checksum,
+                  Set<Long> previousChecksums) {
+            this.version = version;
+            this.description = description;
+            this.script = script;
+            this.resource = resource;
+            this.checksum = checksum;
+            this.previousChecksums = previousChecksums;
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        String getScript() {
+            return script;
+        }
+
+        Resource getResource() {
+            return resource;
+        }
+
+        long getChecksum() {
+            return checksum;
+        }
+
+        Set<Long> getPreviousChecksums() {
+            return previousChecksums;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.kai.paymentdemo.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮：在指定的时间点 执行到期处理
+ * <p>
+ * 第0层每个格子的时间跨度为tickMillis，第i层每个格子的跨度为 tickMillis * wheelSize^i；
+ * 到期时间较远的任务放在高层的格子中，时间推进到该格子时 再降级放入低层的格子，最终在第0层到期
+ * 添加、取消任务的时间复杂度为O(1)，与任务数量无关
+ * <p>
+ * 只有一个工作线程 操作时间轮；其他线程添加的任务 先放入无锁队列，由工作线程在下一个格子取出
+ * 到期处理在工作线程中执行，不能阻塞(耗时的处理应交给其他线程池)
+ */
+@Slf4j
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+
+    private final int wheelSize;
+
+    private final int levels;
+
+    //wheels[i][j]：第i层 第j个格子中的任务
+    private final List<List<Queue<Timeout<T>>>> wheels = new ArrayList<>();
+
+    //超出最高层范围的任务：在最高层的格子推进时重新检查
+    private final List<Timeout<T>> overflow = new ArrayList<>();
+
+    //其他线程添加的任务
+    private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<>();
+
+    private final Consumer<T> expiredHandler;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Thread worker;
+
+    private volatile boolean running;
+
+    //下一个要处理的格子(按tick计算的绝对时间)，只由工作线程访问
+    private long currentTick;
+
+    /**
+     * @param name           工作线程的名称
+     * @param tickMillis     每个格子的时间跨度(毫秒)，也是到期时间的精度
+     * @param wheelSize      每层的格子数
+     * @param levels         层数
+     * @param expiredHandler 到期处理
+     */
+    public TimingWheel(String name, long tickMillis, int wheelSize, int levels, Consumer<T> expiredHandler) {
+        if (tickMillis <= 0 || wheelSize <= 1 || levels < 2) {
+            throw new IllegalArgumentException("invalid timing wheel parameters");
+        }
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.levels = levels;
+        this.expiredHandler = expiredHandler;
+        for (int i = 0; i < levels; i++) {
+            List<Queue<Timeout<T>>> wheel = new ArrayList<>(wheelSize);
+            for (int j = 0; j < wheelSize; j++) {
+                wheel.add(new ArrayDeque<>());
+            }
+            wheels.add(wheel);
+        }
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        worker.interrupt();
+        worker.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    /**
+     * 添加任务：在deadline(毫秒时间戳)到期；已经过期的任务在下一个格子立即到期
+     */
+    public Timeout<T> schedule(T payload, long deadline) {
+        Timeout<T> timeout = new Timeout<>(payload, deadline, size);
+        size.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * 尚未到期、未取消的任务数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long now = System.currentTimeMillis();
+                long nowTick = now / tickMillis;
+                //处理所有已经结束的格子：格子中任务的到期时间都不晚于当前时间
+                while (currentTick < nowTick) {
+                    drainPending();
+                    advance(currentTick);
+                    currentTick++;
+                }
+                drainPending();
+                TimeUnit.MILLISECONDS.sleep((nowTick + 1) * tickMillis - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable e) {
+                log.error("时间轮处理失败", e);
+            }
+        }
+    }
+
+    private void drainPending() {
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            place(timeout);
+        }
+    }
+
+    /**
+     * 处理第tick个格子：高层的格子降级，然后第0层的格子到期
+     */
+    private void advance(long tick) {
+        long span = 1;
+        for (int i = 1; i < levels; i++) {
+            span *= wheelSize;
+        }
+        //从最高层开始：高层降级的任务可能落入本次要处理的低层格子
+        for (int i = levels - 1; i >= 1; i--, span /= wheelSize) {
+            if (tick % span != 0) {
+                continue;
+            }
+            if (i == levels - 1 && !overflow.isEmpty()) {
+                List<Timeout<T>> overflowed = new ArrayList<>(overflow);
+                overflow.clear();
+                overflowed.forEach(this::place);
+            }
+            Queue<Timeout<T>> bucket = wheels.get(i).get((int) ((tick / span) % wheelSize));
+            Timeout<T> timeout;
+            while ((timeout = bucket.poll()) != null) {
+                place(timeout);
+            }
+        }
+
+        Queue<Timeout<T>> bucket = wheels.get(0).get((int) (tick % wheelSize));
+        Timeout<T> timeout;
+        while ((timeout = bucket.poll()) != null) {
+            expire(timeout);
+        }
+    }
+
+    /**
+     * 把任务放入对应层的格子
+     */
+    private void place(Timeout<T> timeout) {
+        if (timeout.isCancelled()) {
+            return;
+        }
+        long deadlineTick = timeout.deadline / tickMillis;
+        if (deadlineTick < currentTick) {
+            expire(timeout);
+            return;
+        }
+        long diff = deadlineTick - currentTick;
+        long span = 1;
+        for (int i = 0; i < levels; i++, span *= wheelSize) {
+            if (diff < span * wheelSize) {
+                wheels.get(i).get((int) ((deadlineTick / span) % wheelSize)).add(timeout);
+                return;
+            }
+        }
+        overflow.add(timeout);
+    }
+
+    private void expire(Timeout<T> timeout) {
+        if (!timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+            return;
+        }
+        size.decrementAndGet();
+        try {
+            expiredHandler.accept(timeout.payload);
+        } catch (Exception e) {
+            log.error("到期处理失败 ===> {}", timeout.payload, e);
+        }
+    }
+
+    /**
+     * 已添加的任务
+     */
+    public static class Timeout<T> {
+
+        private static final int WAITING = 0;
+
+        private static final int CANCELLED = 1;
+
+        private static final int EXPIRED = 2;
+
+        private final T payload;
+
+        private final long deadline;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        //所属时间轮的任务数
+        private final AtomicInteger size;
+
+        Timeout(T payload, long deadline, AtomicInteger size) {
+            this.payload = payload;
+            this.deadline = deadline;
+            this.size = size;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * 取消任务：任务仍留在格子中，到达时被丢弃
+         *
+         * @return 是否取消成功(已经到期的任务不能取消)
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                size.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.kai.paymentdemo.util;
+
+import java.util.Map;
+
+/**
+ * 交易账单(tradebill)中的一行：支付成功的交易，或退款(交易状态为REFUND)
+ */
+public class TradeBillRecord extends BillRecord {
+
+    private final int tradeTime;
+
+    private final int transactionId;
+
+    private final int orderNo;
+
+    private final int tradeType;
+
+    private final int tradeState;
+
+    private final int settlementTotal;
+
+    private final int refundId;
+
+    private final int refundNo;
+
+    private final int refund;
+
+    private final int refundStatus;
+
+    private final int fee;
+
+    private final int total;
+
+    public TradeBillRecord(Map<String, Integer> header) {
+        super(header.size());
+        tradeTime = column(header, "交易时间");
+        transactionId = column(header, "微信订单号");
+        orderNo = column(header, "商户订单号");
+        tradeType = column(header, "交易类型");
+        tradeState = column(header, "交易状态");
+        settlementTotal = column(header, "应结订单金额");
+        refundId = column(header, "微信退款单号");
+        refundNo = column(header, "商户退款单号");
+        refund = column(header, "退款金额");
+        refundStatus = column(header, "退款状态");
+        fee = column(header, "手续费");
+        total = column(header, "订单金额");
+    }
+
+    public String getTradeTime() {
+        return getString(tradeTime);
+    }
+
+    public String getTransactionId() {
+        return getString(transactionId);
+    }
+
+    public String getOrderNo() {
+        return getString(orderNo);
+    }
+
+    public String getTradeType() {
+        return getString(tradeType);
+    }
+
+    public String getTradeState() {
+        return getString(tradeState);
+    }
+
+    public boolean isRefund() {
+        return fieldEquals(tradeState, "REFUND");
+    }
+
+    /**
+     * 应结订单金额(分)
+     */
+    public long getSettlementTotalCents() {
+        return getCents(settlementTotal);
+    }
+
+    /**
+     * 订单金额(分)
+     */
+    public long getTotalCents() {
+        return getCents(total);
+    }
+
+    public String getRefundId() {
+        return getString(refundId);
+    }
+
+    public String getRefundNo() {
+        return getString(refundNo);
+    }
+
+    /**
+     * 退款金额(分)
+     */
+    public long getRefundCents() {
+        return getCents(refund);
+    }
+
+    public String getRefundStatus() {
+        return getString(refundStatus);
+    }
+
+    /**
+     * 手续费(分)
+     */
+    public long getFeeCents() {
+        return getCents(fee);
+    }
+}
@@ -0,0 +1,19 @@
+package com.kai.paymentdemo.vo;
+
+import com.kai.paymentdemo.entity.OrderInfo;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 订单列表的一页：按创建时间倒序
+ */
+@Getter
+@AllArgsConstructor
+public class OrderPage {
+
+    private final List<OrderInfo> list; //本页的订单
+
+    private final String nextCursor; //下一页的游标：没有下一页时为null
+}
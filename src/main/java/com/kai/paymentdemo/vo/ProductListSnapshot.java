@@ -0,0 +1,18 @@
+package com.kai.paymentdemo.vo;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 商品列表接口的响应快照：已经序列化的json 和 对应的ETag
+ */
+@Getter
+@AllArgsConstructor
+public class ProductListSnapshot {
+
+    private final byte[] body; //序列化后的响应体(json)
+
+    private final String etag; //响应体的摘要
+
+    private final long expireAt; //过期时间
+}
@@ -0,0 +1,42 @@
+package com.kai.paymentdemo.vo;
+
+import com.google.gson.annotations.SerializedName;
+import lombok.Data;
+
+/**
+ * APIv3的通知(支付结果通知、退款结果通知)
+ */
+@Data
+public class WxNotification {
+
+    private String id; //通知的唯一id
+
+    @SerializedName("event_type")
+    private String eventType; //通知类型 TRANSACTION.SUCCESS、REFUND.SUCCESS等
+
+    @SerializedName("resource_type")
+    private String resourceType; //通知数据类型
+
+    private String summary; //回调摘要
+
+    private Resource resource; //加密的通知数据
+
+    /**
+     * 加密的通知数据
+     */
+    @Data
+    public static class Resource {
+
+        private String algorithm; //加密算法 AEAD_AES_256_GCM
+
+        private String ciphertext; //base64编码的密文
+
+        @SerializedName("associated_data")
+        private String associatedData; //附加数据
+
+        @SerializedName("original_type")
+        private String originalType; //原始类型
+
+        private String nonce; //随机串
+    }
+}
@@ -0,0 +1,46 @@
+package com.kai.paymentdemo.vo;
+
+import com.google.gson.annotations.SerializedName;
+import lombok.Data;
+
+/**
+ * APIv3的退款结果：退款通知解密后的明文、申请退款和查询退款的返回参数
+ */
+@Data
+public class WxRefund {
+
+    @SerializedName("out_trade_no")
+    private String outTradeNo; //商户订单号
+
+    @SerializedName("out_refund_no")
+    private String outRefundNo; //商户退款单号
+
+    @SerializedName("refund_id")
+    private String refundId; //微信支付退款单号
+
+    private String status; //退款状态：申请退款、查询退款的返回参数
+
+    @SerializedName("refund_status")
+    private String refundStatus; //退款状态：退款通知
+
+    private Amount amount; //金额
+
+    private transient String plainText; //原始的json，保存报文时使用
+
+    /**
+     * 金额(分)
+     */
+    @Data
+    public static class Amount {
+
+        private Integer total; //订单金额
+
+        private Integer refund; //退款金额
+
+        @SerializedName("payer_total")
+        private Integer payerTotal; //用户支付金额
+
+        @SerializedName("payer_refund")
+        private Integer payerRefund; //用户退款金额
+    }
+}
@@ -0,0 +1,44 @@
+package com.kai.paymentdemo.vo;
+
+import com.google.gson.annotations.SerializedName;
+import lombok.Data;
+
+/**
+ * APIv3的支付结果：支付通知解密后的明文、查单结果
+ */
+@Data
+public class WxTransaction {
+
+    @SerializedName("out_trade_no")
+    private String outTradeNo; //商户订单号
+
+    @SerializedName("transaction_id")
+    private String transactionId; //微信支付订单号
+
+    @SerializedName("trade_type")
+    private String tradeType; //交易类型
+
+    @SerializedName("trade_state")
+    private String tradeState; //交易状态
+
+    @SerializedName("success_time")
+    private String successTime; //支付完成时间
+
+    private Amount amount; //订单金额
+
+    private transient String plainText; //原始的json，保存报文时使用
+
+    /**
+     * 订单金额(分)
+     */
+    @Data
+    public static class Amount {
+
+        private Integer total; //订单总金额
+
+        @SerializedName("payer_total")
+        private Integer payerTotal; //用户支付金额
+
+        private String currency; //货币类型
+    }
+}
@@ -0,0 +1,7 @@
+-- 退款单的核实退避：记录已核实的次数、下次核实的时间，重启后不会重置退避
+ALTER TABLE `t_refund_info`
+    ADD COLUMN `check_attempts` INT NOT NULL DEFAULT 0 COMMENT '已核实的次数',
+    ADD COLUMN `next_check_time` DATETIME NULL DEFAULT NULL COMMENT '下次核实的时间';
+
+-- 查询到期需要核实的退款单
+CREATE INDEX `idx_refund_status_next_check_time` ON `t_refund_info` (`refund_status`, `next_check_time`);
@@ -0,0 +1,8 @@
+-- 定时任务的节点租约：每个节点定期续约，租约未过期的节点 按订单号的哈希值 分担核实任务
+CREATE TABLE `t_task_lease` (
+    `node_id` INT NOT NULL COMMENT '节点号',
+    `expire_time` DATETIME(3) NOT NULL COMMENT '租约的过期时间(数据库时间)',
+    `update_time` DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3) COMMENT '更新时间',
+    PRIMARY KEY (`node_id`),
+    KEY `idx_expire_time` (`expire_time`)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4 COMMENT = '定时任务的节点租约';
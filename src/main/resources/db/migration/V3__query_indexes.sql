@@ -0,0 +1,26 @@
+-- 订单、退款单、支付记录的唯一键和查询索引
+-- 添加唯一键前 需要先清理重复的数据：
+--   SELECT order_no FROM t_order_info GROUP BY order_no HAVING COUNT(*) > 1;
+--   SELECT refund_no FROM t_refund_info GROUP BY refund_no HAVING COUNT(*) > 1;
+--   SELECT transaction_id FROM t_payment_info GROUP BY transaction_id HAVING COUNT(*) > 1;
+
+-- 订单：按订单号查询、更新状态(CAS)
+ALTER TABLE `t_order_info`
+    ADD UNIQUE KEY `uk_order_no` (`order_no`),
+    -- 创建订单时 查询该商品未支付的订单
+    ADD KEY `idx_product_status` (`product_id`, `order_status`),
+    -- 核实超时未支付的订单：order_status = ? AND create_time <= ? ORDER BY create_time, id
+    -- 按状态查询订单列表：order_status = ? ORDER BY create_time DESC, id DESC
+    ADD KEY `idx_status_create_time` (`order_status`, `create_time`, `id`),
+    -- 订单列表、导出：ORDER BY create_time DESC, id DESC
+    ADD KEY `idx_create_time` (`create_time`, `id`);
+
+-- 退款单：按退款单号查询、更新
+ALTER TABLE `t_refund_info`
+    ADD UNIQUE KEY `uk_refund_no` (`refund_no`),
+    -- 统计处理中的退款单：refund_status = ? AND create_time <= ?
+    ADD KEY `idx_refund_status_create_time` (`refund_status`, `create_time`);
+
+-- 支付记录：同一笔微信支付订单只记录一次
+ALTER TABLE `t_payment_info`
+    ADD UNIQUE KEY `uk_transaction_id` (`transaction_id`);
@@ -0,0 +1,56 @@
+-- 原始报文：压缩后(与MySQL的COMPRESS()格式一致)保存在独立的表中，支付日志、退款单中只保存报文的id
+-- 只复制报文，可以重复执行：执行中断后 再次启动时继续复制未复制的报文；复制完成后 由V6删除热点表中的报文
+-- 旧版本的校验和：1151636902
+CREATE TABLE IF NOT EXISTS `t_payload` (
+    `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT '报文id',
+    `payload_type` VARCHAR(32) NOT NULL COMMENT '报文类型',
+    `raw_length` INT NOT NULL COMMENT '压缩前的长度(字节)',
+    `data` MEDIUMBLOB NOT NULL COMMENT '压缩后的报文',
+    `source_id` BIGINT NULL DEFAULT NULL COMMENT '迁移时使用：原来的支付日志、退款单的id',
+    `create_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_source` (`payload_type`, `source_id`)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4 COMMENT = '原始报文';
+
+-- MySQL没有ADD COLUMN IF NOT EXISTS：列不存在时才添加
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.COLUMNS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 't_payment_info' AND COLUMN_NAME = 'content_id') = 0,
+    'ALTER TABLE `t_payment_info` ADD COLUMN `content_id` BIGINT NULL DEFAULT NULL COMMENT ''通知参数(t_payload的id)''',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.COLUMNS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 't_refund_info' AND COLUMN_NAME = 'content_return_id') = 0,
+    'ALTER TABLE `t_refund_info` ADD COLUMN `content_return_id` BIGINT NULL DEFAULT NULL COMMENT ''申请退款返回参数(t_payload的id)'', ADD COLUMN `content_notify_id` BIGINT NULL DEFAULT NULL COMMENT ''退款结果通知参数(t_payload的id)''',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+-- 迁移已有的报文：跳过已经复制过的报文
+INSERT INTO `t_payload` (`payload_type`, `raw_length`, `data`, `source_id`)
+SELECT '支付结果', LENGTH(p.`content`), COMPRESS(p.`content`), p.`id` FROM `t_payment_info` p
+WHERE p.`content` IS NOT NULL
+  AND NOT EXISTS (SELECT 1 FROM `t_payload` d WHERE d.`payload_type` = '支付结果' AND d.`source_id` = p.`id`);
+
+UPDATE `t_payment_info` p JOIN `t_payload` d ON d.`payload_type` = '支付结果' AND d.`source_id` = p.`id`
+SET p.`content_id` = d.`id`;
+
+INSERT INTO `t_payload` (`payload_type`, `raw_length`, `data`, `source_id`)
+SELECT '退款返回参数', LENGTH(r.`content_return`), COMPRESS(r.`content_return`), r.`id` FROM `t_refund_info` r
+WHERE r.`content_return` IS NOT NULL
+  AND NOT EXISTS (SELECT 1 FROM `t_payload` d WHERE d.`payload_type` = '退款返回参数' AND d.`source_id` = r.`id`);
+
+UPDATE `t_refund_info` r JOIN `t_payload` d ON d.`payload_type` = '退款返回参数' AND d.`source_id` = r.`id`
+SET r.`content_return_id` = d.`id`;
+
+INSERT INTO `t_payload` (`payload_type`, `raw_length`, `data`, `source_id`)
+SELECT '退款通知参数', LENGTH(r.`content_notify`), COMPRESS(r.`content_notify`), r.`id` FROM `t_refund_info` r
+WHERE r.`content_notify` IS NOT NULL
+  AND NOT EXISTS (SELECT 1 FROM `t_payload` d WHERE d.`payload_type` = '退款通知参数' AND d.`source_id` = r.`id`);
+
+UPDATE `t_refund_info` r JOIN `t_payload` d ON d.`payload_type` = '退款通知参数' AND d.`source_id` = r.`id`
+SET r.`content_notify_id` = d.`id`;
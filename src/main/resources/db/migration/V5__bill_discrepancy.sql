@@ -0,0 +1,27 @@
+-- 对账：交易账单与本地的订单、支付记录、退款单 不一致的记录
+CREATE TABLE `t_bill_discrepancy` (
+    `id` BIGINT NOT NULL AUTO_INCREMENT COMMENT 'id',
+    `bill_date` DATE NOT NULL COMMENT '账单日期',
+    `discrepancy_type` VARCHAR(32) NOT NULL COMMENT '差异类型',
+    `order_no` VARCHAR(50) NOT NULL COMMENT '商户订单编号',
+    `refund_no` VARCHAR(50) NULL DEFAULT NULL COMMENT '商户退款单编号',
+    `transaction_id` VARCHAR(50) NULL DEFAULT NULL COMMENT '微信订单号',
+    `bill_amount` BIGINT NULL DEFAULT NULL COMMENT '账单中的金额(分)',
+    `local_amount` BIGINT NULL DEFAULT NULL COMMENT '本地的金额(分)',
+    `bill_status` VARCHAR(32) NULL DEFAULT NULL COMMENT '账单中的状态',
+    `local_status` VARCHAR(32) NULL DEFAULT NULL COMMENT '本地的状态',
+    `remark` VARCHAR(100) NULL DEFAULT NULL COMMENT '说明',
+    `repair_status` VARCHAR(32) NULL DEFAULT NULL COMMENT '自动修复的结果，未修复为空',
+    `create_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `update_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    KEY `idx_bill_date_type` (`bill_date`, `discrepancy_type`),
+    KEY `idx_order_no` (`order_no`)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4 COMMENT = '对账差异';
+
+-- 对账时 按创建时间范围读取支付记录、退款单
+ALTER TABLE `t_payment_info`
+    ADD KEY `idx_create_time` (`create_time`);
+
+ALTER TABLE `t_refund_info`
+    ADD KEY `idx_create_time` (`create_time`);
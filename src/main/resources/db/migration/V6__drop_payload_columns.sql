@@ -0,0 +1,25 @@
+-- V4复制报文完成后 删除热点表中的报文
+-- 列存在时才删除：执行过旧版本V4(复制后直接删除)的数据库中 这些列已经不存在
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.COLUMNS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 't_payload' AND COLUMN_NAME = 'source_id') > 0,
+    'ALTER TABLE `t_payload` DROP KEY `idx_source`, DROP COLUMN `source_id`',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.COLUMNS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 't_payment_info' AND COLUMN_NAME = 'content') > 0,
+    'ALTER TABLE `t_payment_info` DROP COLUMN `content`',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
+
+SET @ddl = IF((SELECT COUNT(*) FROM information_schema.COLUMNS
+               WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 't_refund_info' AND COLUMN_NAME = 'content_return') > 0,
+    'ALTER TABLE `t_refund_info` DROP COLUMN `content_return`, DROP COLUMN `content_notify`',
+    'SELECT 1');
+PREPARE stmt FROM @ddl;
+EXECUTE stmt;
+DEALLOCATE PREPARE stmt;
@@ -0,0 +1,127 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.kai.paymentdemo.entity.OrderInfo;
+import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.event.OrderStatusChangedEvent;
+import com.kai.paymentdemo.mapper.OrderInfoMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderStatusTransitionTests {
+
+    /**
+     * 数千个不同订单的通知并发到达，每个订单的重复通知也同时到达：
+     * 不同订单一个都不能被跳过，同一订单只有一个通知更新成功(只记录一次支付日志)
+     */
+    @Test
+    void exactlyOneWinnerPerOrder() throws Exception {
+        int orders = 5000;
+        int duplicates = 4;
+        Map<String, String> table = new ConcurrentHashMap<>();
+        for (int i = 0; i < orders; i++) {
+            table.put("ORDER_" + i, OrderStatus.NOTPAY.getType());
+        }
+        Map<String, AtomicInteger> winners = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> events = new ConcurrentHashMap<>();
+        OrderInfoServiceImpl orderInfoService = orderInfoService(table, events);
+
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int d = 0; d < duplicates; d++) {
+            for (int i = 0; i < orders; i++) {
+                String orderNo = "ORDER_" + i;
+                pool.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (orderInfoService.transitionStatus(orderNo, OrderStatus.NOTPAY, OrderStatus.SUCCESS)) {
+                        winners.computeIfAbsent(orderNo, k -> new AtomicInteger()).incrementAndGet();
+                    }
+                });
+            }
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(orders, winners.size());
+        assertEquals(orders, events.size());
+        for (int i = 0; i < orders; i++) {
+            String orderNo = "ORDER_" + i;
+            assertEquals(1, winners.get(orderNo).get());
+            assertEquals(1, events.get(orderNo).get());
+            assertEquals(OrderStatus.SUCCESS.getType(), table.get(orderNo));
+        }
+    }
+
+    /**
+     * 订单状态不是期望的状态时 不更新，也不发布状态变更事件
+     */
+    @Test
+    void rejectsUnexpectedStatus() throws Exception {
+        Map<String, String> table = new ConcurrentHashMap<>();
+        table.put("ORDER_1", OrderStatus.CLOSED.getType());
+        Map<String, AtomicInteger> events = new ConcurrentHashMap<>();
+        OrderInfoServiceImpl orderInfoService = orderInfoService(table, events);
+
+        assertFalse(orderInfoService.transitionStatus("ORDER_1", OrderStatus.NOTPAY, OrderStatus.SUCCESS));
+        assertFalse(orderInfoService.transitionStatus("ORDER_2", OrderStatus.NOTPAY, OrderStatus.SUCCESS));
+        assertEquals(OrderStatus.CLOSED.getType(), table.get("ORDER_1"));
+        assertTrue(events.isEmpty());
+    }
+
+    /**
+     * 使用内存中的表代替数据库：UPDATE ... WHERE order_no = ? AND order_status = ? 对单行是原子的
+     */
+    private static OrderInfoServiceImpl orderInfoService(Map<String, String> table,
+                                                         Map<String, AtomicInteger> events) throws Exception {
+
+        OrderInfoMapper mapper = (OrderInfoMapper) Proxy.newProxyInstance(OrderInfoMapper.class.getClassLoader(),
+                new Class<?>[]{OrderInfoMapper.class}, (proxy, method, args) -> {
+                    if (!"update".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    OrderInfo orderInfo = (OrderInfo) args[0];
+                    //生成SQL时才填充条件的参数：按添加的顺序 order_no、order_status
+                    QueryWrapper<?> queryWrapper = (QueryWrapper<?>) args[1];
+                    queryWrapper.getSqlSegment();
+                    Object[] params = new TreeMap<>(queryWrapper.getParamNameValuePairs()).values().toArray();
+                    String orderNo = (String) params[0];
+                    String expected = (String) params[1];
+                    return table.replace(orderNo, expected, orderInfo.getOrderStatus()) ? 1 : 0;
+                });
+        ApplicationEventPublisher eventPublisher = event -> events
+                .computeIfAbsent(((OrderStatusChangedEvent) event).getOrderNo(), k -> new AtomicInteger())
+                .incrementAndGet();
+
+        OrderInfoServiceImpl orderInfoService = new OrderInfoServiceImpl();
+        set(ServiceImpl.class, orderInfoService, "baseMapper", mapper);
+        set(OrderInfoServiceImpl.class, orderInfoService, "eventPublisher", eventPublisher);
+        return orderInfoService;
+    }
+
+    private static void set(Class<?> type, Object target, String name, Object value) throws Exception {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
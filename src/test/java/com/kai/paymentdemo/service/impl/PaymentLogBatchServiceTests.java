@@ -0,0 +1,184 @@
+package com.kai.paymentdemo.service.impl;
+
+import com.baomidou.mybatisplus.extension.spring.MybatisSqlSessionFactoryBean;
+import com.kai.paymentdemo.entity.Payload;
+import com.kai.paymentdemo.entity.PaymentInfo;
+import com.kai.paymentdemo.enums.OrderStatus;
+import com.kai.paymentdemo.event.OrderStatusChangedEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 批量写入支付日志：使用H2(MySQL兼容模式)代替MySQL，执行真实的mapper语句、批量执行和事务
+ */
+class PaymentLogBatchServiceTests {
+
+    private DriverManagerDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private PaymentLogBatchServiceImpl paymentLogBatchService;
+
+    private final Map<String, AtomicInteger> events = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:payment_log_batch;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE t_order_info (id BIGINT AUTO_INCREMENT PRIMARY KEY, title VARCHAR(256),"
+                + " order_no VARCHAR(50), user_id BIGINT, product_id BIGINT, total_fee INT, code_url VARCHAR(50),"
+                + " order_status VARCHAR(10), create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP,"
+                + " update_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE t_payment_info (id BIGINT AUTO_INCREMENT PRIMARY KEY, order_no VARCHAR(50),"
+                + " transaction_id VARCHAR(50), payment_type VARCHAR(20), trade_type VARCHAR(20),"
+                + " trade_state VARCHAR(50), payer_total INT, content_id BIGINT,"
+                + " create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, update_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE t_payload (id BIGINT AUTO_INCREMENT PRIMARY KEY, payload_type VARCHAR(32),"
+                + " raw_length INT, data BLOB, create_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP,"
+                + " update_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+
+        MybatisSqlSessionFactoryBean sqlSessionFactory = new MybatisSqlSessionFactoryBean();
+        sqlSessionFactory.setDataSource(dataSource);
+        sqlSessionFactory.setMapperLocations(new PathMatchingResourcePatternResolver()
+                .getResources("classpath:com/kai/paymentdemo/mapper/xml/*.xml"));
+        ApplicationEventPublisher eventPublisher = event -> events
+                .computeIfAbsent(((OrderStatusChangedEvent) event).getOrderNo(), k -> new AtomicInteger())
+                .incrementAndGet();
+
+        paymentLogBatchService = new PaymentLogBatchServiceImpl();
+        set(paymentLogBatchService, "sqlSessionFactory", sqlSessionFactory.getObject());
+        set(paymentLogBatchService, "transactionTemplate", new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+        set(paymentLogBatchService, "eventPublisher", eventPublisher);
+        //所有通知攒成一批
+        set(paymentLogBatchService, "batchSize", 200);
+        set(paymentLogBatchService, "maxDelayMillis", 1000L);
+        set(paymentLogBatchService, "queueCapacity", 1000);
+        paymentLogBatchService.init();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        paymentLogBatchService.destroy();
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+    }
+
+    /**
+     * 同一批中 每个订单有多个重复的通知：只有第一条更新成功，每个订单只记录一条支付日志和一条原始报文
+     */
+    @Test
+    void duplicatesInOneBatch() throws Exception {
+        int orders = 50;
+        int duplicates = 4;
+        for (int i = 0; i < orders; i++) {
+            insertOrder("ORDER_" + i, OrderStatus.NOTPAY);
+        }
+
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int d = 0; d < duplicates; d++) {
+            for (int i = 0; i < orders; i++) {
+                futures.add(submit("ORDER_" + i));
+            }
+        }
+        for (int k = 0; k < futures.size(); k++) {
+            //先提交的通知更新成功
+            assertEquals(k < orders, futures.get(k).get(30, TimeUnit.SECONDS));
+        }
+
+        Map<String, Object> stats = paymentLogBatchService.getStats();
+        assertEquals(1L, stats.get("batches"));
+        assertEquals((long) orders * duplicates, stats.get("lastBatchSize"));
+        assertEquals((long) orders, stats.get("paid"));
+        assertEquals(0L, stats.get("failed"));
+
+        assertEquals(orders, count("SELECT COUNT(*) FROM t_order_info WHERE order_status = ?", OrderStatus.SUCCESS.getType()));
+        assertEquals(orders, count("SELECT COUNT(*) FROM t_payment_info"));
+        assertEquals(orders, count("SELECT COUNT(DISTINCT order_no) FROM t_payment_info"));
+        assertEquals(orders, count("SELECT COUNT(*) FROM t_payload"));
+        //支付日志引用本批插入的原始报文
+        assertEquals(orders, count("SELECT COUNT(*) FROM t_payment_info p JOIN t_payload d ON d.id = p.content_id"));
+
+        assertEquals(orders, events.size());
+        for (int i = 0; i < orders; i++) {
+            assertEquals(1, events.get("ORDER_" + i).get());
+        }
+    }
+
+    /**
+     * 订单已经不是未支付状态、订单不存在：不更新，不记录支付日志，不影响同批的其他订单
+     */
+    @Test
+    void skipsOrdersThatAreNotUnpaid() throws Exception {
+        insertOrder("ORDER_PAID", OrderStatus.NOTPAY);
+        insertOrder("ORDER_CLOSED", OrderStatus.CLOSED);
+
+        CompletableFuture<Boolean> closed = submit("ORDER_CLOSED");
+        CompletableFuture<Boolean> missing = submit("ORDER_MISSING");
+        CompletableFuture<Boolean> paid = submit("ORDER_PAID");
+
+        assertFalse(closed.get(30, TimeUnit.SECONDS));
+        assertFalse(missing.get(30, TimeUnit.SECONDS));
+        assertTrue(paid.get(30, TimeUnit.SECONDS));
+
+        assertEquals(OrderStatus.CLOSED.getType(), jdbcTemplate.queryForObject(
+                "SELECT order_status FROM t_order_info WHERE order_no = ?", String.class, "ORDER_CLOSED"));
+        assertEquals(1, count("SELECT COUNT(*) FROM t_payment_info"));
+        assertNotNull(jdbcTemplate.queryForObject(
+                "SELECT content_id FROM t_payment_info WHERE order_no = ?", Long.class, "ORDER_PAID"));
+        assertEquals(1, events.size());
+        assertEquals(1, events.get("ORDER_PAID").get());
+    }
+
+    private CompletableFuture<Boolean> submit(String orderNo) throws InterruptedException {
+        PaymentInfo paymentInfo = new PaymentInfo();
+        paymentInfo.setOrderNo(orderNo);
+        paymentInfo.setTransactionId("TX_" + orderNo);
+        paymentInfo.setPaymentType("微信");
+        paymentInfo.setTradeType("NATIVE");
+        paymentInfo.setTradeState("SUCCESS");
+        paymentInfo.setPayerTotal(1);
+
+        byte[] body = ("{\"out_trade_no\":\"" + orderNo + "\"}").getBytes(StandardCharsets.UTF_8);
+        Payload payload = new Payload();
+        payload.setPayloadType("支付结果");
+        payload.setRawLength(body.length);
+        payload.setData(body);
+        return paymentLogBatchService.submitPaid(orderNo, paymentInfo, payload);
+    }
+
+    private void insertOrder(String orderNo, OrderStatus orderStatus) {
+        jdbcTemplate.update("INSERT INTO t_order_info (title, order_no, total_fee, order_status) VALUES (?, ?, ?, ?)",
+                "测试订单", orderNo, 1, orderStatus.getType());
+    }
+
+    private int count(String sql, Object... args) {
+        return jdbcTemplate.queryForObject(sql, Integer.class, args);
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,169 @@
+package com.kai.paymentdemo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BillParserTests {
+
+    private static final String TRADE_HEADER = "\uFEFF交易时间,公众账号ID,商户号,特约商户号,设备号,微信订单号,商户订单号,用户标识,交易类型,交易状态," +
+            "付款银行,货币种类,应结订单金额,代金券金额,微信退款单号,商户退款单号,退款金额,充值券退款金额,退款类型,退款状态," +
+            "商品名称,商户数据包,手续费,费率,订单金额,申请退款金额,费率备注";
+
+    /**
+     * 生成交易账单：每10条中第10条为退款，金额为 行号 分
+     */
+    private static Path writeTradeBill(int rows) throws IOException {
+        Path file = Files.createTempFile("tradebill", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(TRADE_HEADER + "\r\n");
+            for (int i = 1; i <= rows; i++) {
+                boolean refund = i % 10 == 0;
+                String amount = (i / 100) + "." + String.format("%02d", i % 100);
+                writer.write("`2022-01-01 12:00:00,`wx74862e0dfcf69954,`1558950191,`0,`,`42000012342022" + i +
+                        ",`ORDER_" + i + ",`oHkLxtx0vUqe,`NATIVE,`" + (refund ? "REFUND" : "SUCCESS") +
+                        ",`OTHERS,`CNY,`" + (refund ? "0.00" : amount) + ",`0.00,`" + (refund ? "50300" + i : "") +
+                        ",`" + (refund ? "REFUND_" + i : "") + ",`" + (refund ? amount : "0.00") +
+                        ",`0.00,`" + (refund ? "ORIGINAL" : "") + ",`" + (refund ? "SUCCESS" : "") +
+                        ",`课程,`,`0.01,`0.60%,`" + amount + ",`0.00,`\r\n");
+            }
+            writer.write("总交易单数,应结订单总金额,退款总金额,充值券退款总金额,手续费总金额,订单总金额,申请退款总金额\r\n");
+            writer.write("`" + rows + ",`1.00,`0.10,`0.00,`0.01,`1.10,`0.00\r\n");
+        }
+        return file;
+    }
+
+    @Test
+    void parsesTradeBill() throws Exception {
+        Path file = writeTradeBill(3);
+        try {
+            List<String> orderNos = new ArrayList<>();
+            List<Long> amounts = new ArrayList<>();
+            BillParser.Result<Consumer<TradeBillRecord>> result = BillParser.parseTradeBill(file, 1,
+                    () -> record -> {
+                        orderNos.add(record.getOrderNo());
+                        amounts.add(record.getSettlementTotalCents());
+                        assertFalse(record.isRefund());
+                        assertEquals("SUCCESS", record.getTradeState());
+                    });
+
+            assertEquals(3, result.getRecords());
+            assertEquals(0, result.getSkipped());
+            assertEquals("交易时间", result.getHeader().get(0));
+            assertEquals("3", result.getSummary().get("总交易单数"));
+            assertEquals("1.10", result.getSummary().get("订单总金额"));
+            assertEquals("[ORDER_1, ORDER_2, ORDER_3]", orderNos.toString());
+            assertEquals("[1, 2, 3]", amounts.toString());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * 多线程按行分段：结果与单线程一致
+     */
+    @Test
+    void splitsOnLineBoundaries() throws Exception {
+        int rows = 20000;
+        Path file = writeTradeBill(rows);
+        try {
+            for (int threads : new int[]{1, 3, 8}) {
+                BillParser.Result<Totals> result = BillParser.parseTradeBill(file, threads, Totals::new);
+                Totals sum = new Totals();
+                result.getHandlers().forEach(sum::merge);
+
+                long expectedPaid = 0;
+                long expectedRefund = 0;
+                for (int i = 1; i <= rows; i++) {
+                    if (i % 10 == 0) {
+                        expectedRefund += i;
+                    } else {
+                        expectedPaid += i;
+                    }
+                }
+                assertEquals(rows, result.getRecords());
+                assertEquals(0, result.getSkipped());
+                assertEquals(rows / 10, sum.refunds);
+                assertEquals(expectedPaid, sum.paidCents);
+                assertEquals(expectedRefund, sum.refundCents);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void parsesFundFlowBill() throws Exception {
+        Path file = Files.createTempFile("fundflowbill", ".csv");
+        try {
+            Files.write(file, ("记账时间,微信支付业务单号,资金流水单号,业务名称,业务类型,收支类型,收支金额（元）,账户结余（元）,资金变更提交申请人,备注,业务凭证号\n" +
+                    "`2022-01-01 12:00:10,`4200001234,`1900000109,`交易,`交易,`收入,`12.3,`100.00,`system,`缺省,`\n" +
+                    "`2022-01-01 13:00:00,`50300123,`1900000110,`退款,`退款,`支出,`0.05,`99.95,`system,`缺省,`\n" +
+                    "`broken line\n" +
+                    "资金流水总笔数,收入笔数,收入金额,支出笔数,支出金额\n" +
+                    "`2,`1,`12.30,`1,`0.05\n").getBytes(StandardCharsets.UTF_8));
+
+            List<String> flows = Collections.synchronizedList(new ArrayList<>());
+            BillParser.Result<Consumer<FundFlowBillRecord>> result = BillParser.parseFundFlowBill(file, 2,
+                    () -> record -> flows.add(record.getFlowId() + ":" + record.isIncome() + ":" + record.getAmountCents() + ":" + record.getBalanceCents()));
+
+            assertEquals(2, result.getRecords());
+            assertEquals(1, result.getSkipped());
+            assertEquals("12.30", result.getSummary().get("收入金额"));
+            assertTrue(flows.contains("1900000109:true:1230:10000"));
+            assertTrue(flows.contains("1900000110:false:5:9995"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void rejectsInvalidAmount() throws Exception {
+        Path file = Files.createTempFile("fundflowbill", ".csv");
+        try {
+            Files.write(file, ("记账时间,收支类型,收支金额（元）\n`2022-01-01 12:00:10,`收入,`1.234\n").getBytes(StandardCharsets.UTF_8));
+            assertThrows(IllegalArgumentException.class,
+                    () -> BillParser.parseFundFlowBill(file, 1, () -> FundFlowBillRecord::getAmountCents));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static class Totals implements Consumer<TradeBillRecord> {
+
+        private long refunds;
+
+        private long paidCents;
+
+        private long refundCents;
+
+        @Override
+        public void accept(TradeBillRecord record) {
+            if (record.isRefund()) {
+                refunds++;
+                refundCents += record.getRefundCents();
+            } else {
+                paidCents += record.getSettlementTotalCents();
+            }
+        }
+
+        void merge(Totals other) {
+            refunds += other.refunds;
+            paidCents += other.paidCents;
+            refundCents += other.refundCents;
+        }
+    }
+}
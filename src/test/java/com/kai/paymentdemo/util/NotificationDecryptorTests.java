@@ -0,0 +1,116 @@
+package com.kai.paymentdemo.util;
+
+import com.wechat.pay.contrib.apache.httpclient.util.AesUtil;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NotificationDecryptorTests {
+
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 解密结果与微信SDK的AesUtil一致；同一线程重复解密 不受缓冲区中上一次数据的影响
+     */
+    @Test
+    void decryptsLikeAesUtil() throws Exception {
+        NotificationDecryptor decryptor = new NotificationDecryptor(KEY);
+        AesUtil aesUtil = new AesUtil(KEY);
+
+        String[] plainTexts = {
+                "{\"out_trade_no\":\"ORDER_20211201000001\",\"trade_state\":\"SUCCESS\",\"amount\":{\"total\":1}}",
+                "{}",
+                repeat("{\"描述\":\"退款\"}", 2000)
+        };
+        for (String plainText : plainTexts) {
+            String ciphertext = encrypt(plainText, "transaction", "0123456789ab");
+            assertEquals(plainText, decryptor.decryptToString("transaction", "0123456789ab", ciphertext));
+            assertEquals(plainText, aesUtil.decryptToString("transaction".getBytes(StandardCharsets.UTF_8),
+                    "0123456789ab".getBytes(StandardCharsets.UTF_8), ciphertext));
+        }
+
+        String ciphertext = encrypt("no-aad", null, "ba9876543210");
+        assertEquals("no-aad", decryptor.decryptToString(null, "ba9876543210", ciphertext));
+    }
+
+    /**
+     * 密文、附加数据被修改时 认证失败
+     */
+    @Test
+    void rejectsTamperedData() throws Exception {
+        NotificationDecryptor decryptor = new NotificationDecryptor(KEY);
+        String ciphertext = encrypt("{\"refund_status\":\"SUCCESS\"}", "refund", "0123456789ab");
+
+        byte[] bytes = Base64.getDecoder().decode(ciphertext);
+        bytes[0] ^= 1;
+        String tampered = Base64.getEncoder().encodeToString(bytes);
+
+        assertThrows(AEADBadTagException.class, () -> decryptor.decryptToString("refund", "0123456789ab", tampered));
+        assertThrows(AEADBadTagException.class, () -> decryptor.decryptToString("transaction", "0123456789ab", ciphertext));
+    }
+
+    @Test
+    void decodesBase64() {
+        Random random = new Random(1);
+        byte[] dst = new byte[64];
+        for (int length = 0; length < 40; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            String encoded = Base64.getEncoder().encodeToString(bytes);
+            int decoded = NotificationDecryptor.decodeBase64(encoded, dst);
+            assertEquals(length, decoded);
+            assertArrayEquals(bytes, Arrays.copyOf(dst, decoded));
+        }
+        assertThrows(IllegalArgumentException.class, () -> NotificationDecryptor.decodeBase64("ab-c", dst));
+        assertThrows(IllegalArgumentException.class, () -> NotificationDecryptor.decodeBase64("abcde", dst));
+    }
+
+    /**
+     * 没有=填充的密文：超过线程缓冲区的大小时 使用临时数组，长度也要足够
+     */
+    @Test
+    void decryptsUnpaddedCiphertext() throws Exception {
+        NotificationDecryptor decryptor = new NotificationDecryptor(KEY);
+        for (String plainText : new String[]{"{\"a\":1}", repeat("x", 70 * 1024)}) {
+            String ciphertext = encrypt(plainText, "transaction", "0123456789ab");
+            String unpadded = ciphertext.replace("=", "");
+            assertTrue(unpadded.length() % 4 != 0);
+            assertEquals(plainText, decryptor.decryptToString("transaction", "0123456789ab", unpadded));
+        }
+    }
+
+    @Test
+    void rejectsInvalidKey() {
+        assertThrows(IllegalArgumentException.class, () -> new NotificationDecryptor(new byte[16]));
+    }
+
+    private static String encrypt(String plainText, String associatedData, String nonce) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"),
+                new GCMParameterSpec(128, nonce.getBytes(StandardCharsets.UTF_8)));
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData.getBytes(StandardCharsets.UTF_8));
+        }
+        return Base64.getEncoder().encodeToString(cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package com.kai.paymentdemo.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Slf4j
+class NotifyJournalTests {
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * 重启后 只重放位点之后的记录
+     */
+    @Test
+    void replaysEntriesAfterCheckpoint() throws Exception {
+        NotifyJournal journal = new NotifyJournal(dir, SEGMENT_SIZE);
+        for (int i = 1; i <= 100; i++) {
+            journal.append("NATIVE_NOTIFY", ("body-" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        //乱序完成：位点只推进到连续完成的位置
+        for (long seq = 40; seq >= 1; seq--) {
+            journal.commit(seq);
+        }
+        journal.commit(42);
+        assertEquals(40, journal.getCheckpoint());
+        journal.close();
+
+        NotifyJournal reopened = new NotifyJournal(dir, SEGMENT_SIZE);
+        List<Long> replayed = new ArrayList<>();
+        reopened.replay(entry -> {
+            replayed.add(entry.getSeq());
+            assertEquals("NATIVE_NOTIFY", entry.getType());
+            assertArrayEquals(("body-" + entry.getSeq()).getBytes(StandardCharsets.UTF_8), entry.getPayload());
+        });
+        assertEquals(60, replayed.size());
+        assertEquals(41L, (long) replayed.get(0));
+        assertEquals(100L, (long) replayed.get(59));
+
+        //新的记录接着上次的序号
+        assertEquals(101, reopened.append("REFUND_NOTIFY", new byte[]{1}));
+        reopened.close();
+    }
+
+    /**
+     * 段写满后滚动，位点之前的段被删除
+     */
+    @Test
+    void rollsSegmentsAndDeletesProcessedOnes() throws Exception {
+        NotifyJournal journal = new NotifyJournal(dir, 4096);
+        byte[] payload = new byte[100];
+        for (int i = 0; i < 500; i++) {
+            journal.append("NATIVE_NOTIFY", payload);
+        }
+        assertTrue(journal.getSegmentCount() > 1);
+        for (long seq = 1; seq <= 500; seq++) {
+            journal.commit(seq);
+        }
+        journal.close();
+
+        NotifyJournal reopened = new NotifyJournal(dir, 4096);
+        assertEquals(1, reopened.getSegmentCount());
+        assertEquals(0, reopened.replay(entry -> {
+        }));
+        assertEquals(501, reopened.append("NATIVE_NOTIFY", payload));
+        reopened.close();
+    }
+
+    /**
+     * 多线程并发追加(组提交)后重启：每条记录都能恢复，序号连续不重复
+     */
+    @Test
+    void recoversConcurrentAppends() throws Exception {
+        int threads = 4;
+        int perThread = 500;
+        NotifyJournal journal = new NotifyJournal(dir, 64 * 1024);
+        appendConcurrently(journal, threads, perThread, new byte[64]);
+        journal.close();
+
+        NotifyJournal reopened = new NotifyJournal(dir, 64 * 1024);
+        boolean[] seen = new boolean[threads * perThread + 1];
+        reopened.replay(entry -> {
+            assertTrue(entry.getSeq() >= 1 && entry.getSeq() <= threads * perThread);
+            assertFalse(seen[(int) entry.getSeq()]);
+            seen[(int) entry.getSeq()] = true;
+        });
+        for (int seq = 1; seq <= threads * perThread; seq++) {
+            assertTrue(seen[seq]);
+        }
+        reopened.close();
+    }
+
+    /**
+     * 基准：多线程追加的吞吐量(组提交) 和 100万条记录的恢复时间
+     * 每次追加都要fsync，耗时较长：不在单元测试中执行，需要时手动去掉@Disabled执行
+     */
+    @Test
+    @Tag("benchmark")
+    @Disabled("基准测试：手动执行")
+    void benchmarkAppendAndRecovery() throws Exception {
+        int entries = 1_000_000;
+        int threads = 16;
+
+        NotifyJournal journal = new NotifyJournal(dir, SEGMENT_SIZE);
+        long start = System.nanoTime();
+        appendConcurrently(journal, threads, entries / threads, new byte[256]);
+        long appendNanos = System.nanoTime() - start;
+        journal.close();
+        log.info("append: {} entries, {} appends/s", entries, String.format("%.0f", entries / (appendNanos / 1e9)));
+
+        start = System.nanoTime();
+        NotifyJournal reopened = new NotifyJournal(dir, SEGMENT_SIZE);
+        AtomicLong count = new AtomicLong();
+        reopened.replay(entry -> count.incrementAndGet());
+        long recoveryNanos = System.nanoTime() - start;
+        reopened.close();
+        log.info("recovery: {} entries in {} ms", count.get(), recoveryNanos / 1_000_000);
+
+        assertEquals(entries, count.get());
+    }
+
+    private static void appendConcurrently(NotifyJournal journal, int threads, int perThread, byte[] payload) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        journal.append("NATIVE_NOTIFY", payload);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
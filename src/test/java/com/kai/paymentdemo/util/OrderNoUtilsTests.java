@@ -0,0 +1,96 @@
+package com.kai.paymentdemo.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderNoUtilsTests {
+
+    /**
+     * 编号的生成位置是静态的：借用的序号、推进到未来的位置 不能留给其他测试
+     */
+    @AfterEach
+    void reset() {
+        OrderNoUtils.reset();
+    }
+
+    /**
+     * 多线程并发生成的编号不重复，且每个线程看到的编号单调递增
+     */
+    @Test
+    void concurrentNumbersAreUniqueAndMonotonic() throws Exception {
+        int threads = 16;
+        int perThread = 50_000;
+        Set<String> numbers = ConcurrentHashMap.newKeySet();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                String prev = "";
+                for (int i = 0; i < perThread; i++) {
+                    String orderNo = OrderNoUtils.getOrderNo();
+                    assertTrue(orderNo.compareTo(prev) > 0, orderNo + " <= " + prev);
+                    numbers.add(orderNo);
+                    prev = orderNo;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        assertEquals(threads * perThread, numbers.size());
+    }
+
+    /**
+     * 保留前缀，编号为 14位时间 + 2位节点号 + 4位序号
+     */
+    @Test
+    void keepsPrefixAndNodeId() {
+        OrderNoUtils.setNodeId(7);
+        try {
+            String orderNo = OrderNoUtils.getOrderNo();
+            String refundNo = OrderNoUtils.getRefundNo();
+
+            assertTrue(orderNo.startsWith("ORDER_"));
+            assertTrue(refundNo.startsWith("REFUND_"));
+            assertEquals("ORDER_".length() + 20, orderNo.length());
+            assertEquals("07", orderNo.substring("ORDER_".length() + 14, "ORDER_".length() + 16));
+        } finally {
+            OrderNoUtils.setNodeId(0);
+        }
+    }
+
+    /**
+     * 重启后从已经生成的最大编号继续：之前借用的编号不会重复生成；其他节点的编号被忽略
+     */
+    @Test
+    void advancesPastIssuedNumbers() {
+        String future = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").format(LocalDateTime.now().plusMinutes(10));
+        String issued = "ORDER_" + future + "00" + "0042";
+
+        assertFalse(OrderNoUtils.advanceTo("ORDER_" + future + "01" + "9999"));
+        assertFalse(OrderNoUtils.advanceTo("ORDER_not-a-number"));
+        assertTrue(OrderNoUtils.advanceTo(issued));
+        assertFalse(OrderNoUtils.advanceTo(issued));
+
+        assertEquals("ORDER_" + future + "00" + "0043", OrderNoUtils.getOrderNo());
+        assertEquals("REFUND_" + future + "00" + "0044", OrderNoUtils.getRefundNo());
+    }
+}
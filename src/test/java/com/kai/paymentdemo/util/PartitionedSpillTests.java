@@ -0,0 +1,55 @@
+package com.kai.paymentdemo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PartitionedSpillTests {
+
+    /**
+     * 同一个key的记录都在同一个分区，读回的记录与写入的一致
+     */
+    @Test
+    void spillsByKey() throws Exception {
+        Path dir = Files.createTempDirectory("spill");
+        int partitions = 8;
+        try {
+            try (PartitionedSpill spill = new PartitionedSpill(dir, "local", partitions)) {
+                for (int i = 0; i < 1000; i++) {
+                    String key = "ORDER_" + (i % 100);
+                    spill.output(key).writeUTF(key);
+                    spill.output(key).writeLong(i);
+                }
+            }
+
+            Map<String, Long> sums = new HashMap<>();
+            Map<String, Integer> partitionOfKey = new HashMap<>();
+            for (int p = 0; p < partitions; p++) {
+                try (DataInputStream in = PartitionedSpill.open(dir, "local", p)) {
+                    while (in.available() > 0) {
+                        String key = in.readUTF();
+                        sums.merge(key, in.readLong(), Long::sum);
+                        assertEquals(p, (int) partitionOfKey.computeIfAbsent(key, k -> PartitionedSpill.partition(k, partitions)));
+                    }
+                }
+            }
+
+            assertEquals(100, sums.size());
+            //ORDER_7：7 + 107 + ... + 907
+            assertEquals(10 * 7 + 100 * 45, (long) sums.get("ORDER_7"));
+            assertNull(PartitionedSpill.open(dir, "bill", 0));
+        } finally {
+            for (int p = 0; p < partitions; p++) {
+                Files.deleteIfExists(PartitionedSpill.file(dir, "local", p));
+            }
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.kai.paymentdemo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadCodecTests {
+
+    private static final String NOTIFY = "{\"mchid\":\"1558950191\",\"appid\":\"wx74862e0dfcf69954\"," +
+            "\"out_trade_no\":\"ORDER_20220101120000123\",\"transaction_id\":\"4200001234202201011234567890\"," +
+            "\"trade_type\":\"NATIVE\",\"trade_state\":\"SUCCESS\",\"trade_state_desc\":\"支付成功\"," +
+            "\"bank_type\":\"OTHERS\",\"attach\":\"\",\"success_time\":\"2022-01-01T12:00:10+08:00\"," +
+            "\"payer\":{\"openid\":\"oHkLxtx0vUqe-18p_AXTZ1innxkY\"}," +
+            "\"amount\":{\"total\":1,\"payer_total\":1,\"currency\":\"CNY\",\"payer_currency\":\"CNY\"}}";
+
+    @Test
+    void roundTrip() {
+        byte[] data = PayloadCodec.compress(NOTIFY);
+        assertEquals(NOTIFY, PayloadCodec.decompress(data));
+        assertEquals("", PayloadCodec.decompress(PayloadCodec.compress("")));
+        assertNull(PayloadCodec.decompress(null));
+    }
+
+    /**
+     * 与MySQL的COMPRESS()格式一致：4字节(小端)的原始长度 + zlib格式的压缩数据
+     */
+    @Test
+    void decodesMysqlCompressFormat() {
+        byte[] raw = NOTIFY.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[raw.length + 64];
+        int n = deflater.deflate(buffer);
+        deflater.end();
+
+        byte[] data = new byte[4 + n];
+        data[0] = (byte) raw.length;
+        data[1] = (byte) (raw.length >>> 8);
+        data[2] = (byte) (raw.length >>> 16);
+        data[3] = (byte) (raw.length >>> 24);
+        System.arraycopy(buffer, 0, data, 4, n);
+
+        assertEquals(NOTIFY, PayloadCodec.decompress(data));
+        assertEquals(raw.length, PayloadCodec.compress(NOTIFY)[0] & 0xff | (PayloadCodec.compress(NOTIFY)[1] & 0xff) << 8);
+    }
+
+    @Test
+    void repetitiveJsonIsCompressed() {
+        StringBuilder bill = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            bill.append(NOTIFY);
+        }
+        byte[] data = PayloadCodec.compress(bill.toString());
+        assertTrue(data.length * 10 < bill.length(), data.length + " bytes");
+        assertEquals(bill.toString(), PayloadCodec.decompress(data));
+    }
+
+    @Test
+    void truncatedPayloadIsRejected() {
+        byte[] data = PayloadCodec.compress(NOTIFY);
+        byte[] truncated = new byte[data.length / 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        assertThrows(IllegalArgumentException.class, () -> PayloadCodec.decompress(truncated));
+    }
+}
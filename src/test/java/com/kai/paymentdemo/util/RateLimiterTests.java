@@ -0,0 +1,45 @@
+package com.kai.paymentdemo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTests {
+
+    /**
+     * 多个线程共用一个限流器：总的速率不超过配置的QPS
+     */
+    @Test
+    void limitsRateAcrossThreads() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(100);
+        int threads = 8;
+        int permitsPerThread = 25;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < permitsPerThread; i++) {
+                    rateLimiter.acquire();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pool.shutdown();
+
+        //200个令牌，每秒100个：至少需要约2秒
+        assertTrue(elapsedMillis >= 1900, "elapsed " + elapsedMillis + " ms");
+    }
+}
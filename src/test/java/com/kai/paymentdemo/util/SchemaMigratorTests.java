@@ -0,0 +1,87 @@
+package com.kai.paymentdemo.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SchemaMigratorTests {
+
+    /**
+     * 按版本号的数值排序：V10在V2之后
+     */
+    @Test
+    void migrationsAreOrderedByNumericVersion() throws Exception {
+        List<SchemaMigrator.Migration> migrations = SchemaMigrator.resolve(new Resource[]{
+                script("V10__later.sql", "SELECT 10;"),
+                script("V2__task_lease.sql", "SELECT 2;"),
+                script("V1__init.sql", "SELECT 1;")
+        });
+
+        assertEquals(3, migrations.size());
+        assertEquals(1, migrations.get(0).getVersion());
+        assertEquals(2, migrations.get(1).getVersion());
+        assertEquals(10, migrations.get(2).getVersion());
+        assertEquals("task_lease", migrations.get(1).getDescription());
+    }
+
+    @Test
+    void duplicateVersionIsRejected() {
+        assertThrows(IllegalStateException.class, () -> SchemaMigrator.resolve(new Resource[]{
+                script("V1__a.sql", "SELECT 1;"),
+                script("V01__b.sql", "SELECT 1;")
+        }));
+    }
+
+    @Test
+    void invalidScriptNameIsRejected() {
+        assertThrows(IllegalStateException.class, () -> SchemaMigrator.resolve(new Resource[]{
+                script("V1_missing_separator.sql", "SELECT 1;")
+        }));
+    }
+
+    /**
+     * 校验和不受换行符影响：在Windows上检出的脚本不会被认为已修改
+     */
+    @Test
+    void checksumIgnoresLineEndings() throws Exception {
+        long lf = SchemaMigrator.checksum(script("V1__a.sql", "SELECT 1;\nSELECT 2;\n"));
+        long crlf = SchemaMigrator.checksum(script("V1__a.sql", "SELECT 1;\r\nSELECT 2;\r\n"));
+        long changed = SchemaMigrator.checksum(script("V1__a.sql", "SELECT 1;\nSELECT 3;\n"));
+
+        assertEquals(lf, crlf);
+        assertNotEquals(lf, changed);
+    }
+
+    /**
+     * 修改已执行的脚本时 声明旧版本的校验和：修改后的脚本本身的校验和 与旧版本不同
+     */
+    @Test
+    void previousChecksumsAreDeclaredInScript() throws Exception {
+        String previous = "CREATE TABLE `t_a` (`id` BIGINT);\nALTER TABLE `t_a` DROP COLUMN `b`;\n";
+        long previousChecksum = SchemaMigrator.checksum(script("V1__a.sql", previous));
+        Resource modified = script("V1__a.sql", "-- 旧版本的校验和：" + previousChecksum + "\r\n"
+                + "CREATE TABLE IF NOT EXISTS `t_a` (`id` BIGINT);\r\n");
+
+        assertEquals(Collections.singleton(previousChecksum), SchemaMigrator.previousChecksums(modified));
+        assertNotEquals(previousChecksum, SchemaMigrator.checksum(modified));
+        assertTrue(SchemaMigrator.previousChecksums(script("V1__a.sql", previous)).isEmpty());
+    }
+
+    private static Resource script(String filename, String content) {
+        return new ByteArrayResource(content.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public String getFilename() {
+                return filename;
+            }
+        };
+    }
+}
@@ -0,0 +1,78 @@
+package com.kai.paymentdemo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTests {
+
+    /**
+     * 任务不会提前到期，并在一个格子的时间内到期(跨越多层)
+     */
+    @Test
+    void expiresOnTimeAcrossLevels() throws Exception {
+        int count = 10_000;
+        long tickMillis = 10;
+        Map<Integer, Long> deadlines = new ConcurrentHashMap<>();
+        Map<Integer, Long> lateness = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(count);
+
+        //每层8个格子：第0层80ms，第1层640ms，2秒内的任务会经过第2层
+        TimingWheel<Integer> timingWheel = new TimingWheel<>("test-wheel", tickMillis, 8, 3, id -> {
+            lateness.put(id, System.currentTimeMillis() - deadlines.get(id));
+            latch.countDown();
+        });
+        timingWheel.start();
+
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            long deadline = now + random.nextInt(2000);
+            deadlines.put(i, deadline);
+            timingWheel.schedule(i, deadline);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        timingWheel.stop();
+
+        long maxLateness = lateness.values().stream().mapToLong(Long::longValue).max().orElse(0);
+        long minLateness = lateness.values().stream().mapToLong(Long::longValue).min().orElse(0);
+        assertTrue(minLateness >= 0, "expired early: " + minLateness);
+        assertTrue(maxLateness < 200, "expired late: " + maxLateness);
+        assertEquals(0, timingWheel.size());
+    }
+
+    /**
+     * 取消的任务不会到期
+     */
+    @Test
+    void cancelledTimeoutDoesNotExpire() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Map<String, Boolean> expired = new ConcurrentHashMap<>();
+        TimingWheel<String> timingWheel = new TimingWheel<>("test-wheel", 10, 8, 2, id -> {
+            expired.put(id, true);
+            latch.countDown();
+        });
+        timingWheel.start();
+
+        long now = System.currentTimeMillis();
+        TimingWheel.Timeout<String> cancelled = timingWheel.schedule("cancelled", now + 100);
+        timingWheel.schedule("kept", now + 200);
+        assertTrue(cancelled.cancel());
+        assertEquals(1, timingWheel.size());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        timingWheel.stop();
+        assertTrue(expired.containsKey("kept"));
+        assertFalse(expired.containsKey("cancelled"));
+        assertFalse(cancelled.cancel());
+    }
+}